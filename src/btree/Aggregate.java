@@ -0,0 +1,39 @@
+package btree;
+
+/**
+ * An aggregate of the values of a B-Tree - such as their sum, least or greatest -
+ * that the inner-nodes keep for each child (see {@link BTree#aggregateWith(Aggregate)}).
+ *
+ *   An aggregate is a monoid: the aggregates of neighbouring runs of values can be
+ *   combined into the aggregate of the whole run, and combining with the identity
+ *   changes nothing.  The combination must be associative, but it need not have an
+ *   inverse - when a value is removed, the aggregates are rebuilt from the children.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <V> - The value type of the key-value pair
+ * @param <A> - The type of the aggregate
+ */
+public interface Aggregate<V, A> {
+
+	/**
+	 * The aggregate of no values
+	 */
+	A identity( );
+
+	/**
+	 * The aggregate of a single value
+	 * @param value - the value
+	 */
+	A lift(V value);
+
+	/**
+	 * Combine the aggregate of a run of values with the aggregate of the run that follows it
+	 * @param left - the aggregate of the lesser keys
+	 * @param right - the aggregate of the greater keys
+	 * @return the aggregate of both runs
+	 */
+	A combine(A left, A right);
+}
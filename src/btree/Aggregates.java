@@ -0,0 +1,63 @@
+package btree;
+
+/**
+ * The built-in {@link Aggregate}s.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ */
+public final class Aggregates {
+
+	private Aggregates( ) { }
+
+	/**
+	 * The sum of Long values
+	 */
+	public static final Aggregate<Long,Long> LONG_SUM = new Aggregate<Long,Long>() {
+		public Long identity() { return 0L; }
+		public Long lift(Long value) { return value; }
+		public Long combine(Long left, Long right) { return left + right; }
+	};
+
+	/**
+	 * The sum of Double values
+	 */
+	public static final Aggregate<Double,Double> DOUBLE_SUM = new Aggregate<Double,Double>() {
+		public Double identity() { return 0.0; }
+		public Double lift(Double value) { return value; }
+		public Double combine(Double left, Double right) { return left + right; }
+	};
+
+	/**
+	 * The least value (null if there are no values)
+	 */
+	public static <V extends Comparable<V>> Aggregate<V,V> min( )
+	{
+		return new Aggregate<V,V>() {
+			public V identity() { return null; }
+			public V lift(V value) { return value; }
+			public V combine(V left, V right) {
+				if (left == null) return right;
+				if (right == null) return left;
+				return (right.compareTo(left) < 0) ? right : left;
+			}
+		};
+	}
+
+	/**
+	 * The greatest value (null if there are no values)
+	 */
+	public static <V extends Comparable<V>> Aggregate<V,V> max( )
+	{
+		return new Aggregate<V,V>() {
+			public V identity() { return null; }
+			public V lift(V value) { return value; }
+			public V combine(V left, V right) {
+				if (left == null) return right;
+				if (right == null) return left;
+				return (right.compareTo(left) > 0) ? right : left;
+			}
+		};
+	}
+}
@@ -1,7 +1,15 @@
 package btree;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Stack;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -38,9 +46,37 @@ import java.util.Stack;
  */
 public class BTree<K extends Comparable<K>, V> {
 
+	public static final int DEFAULT_PAGE_BYTES = 1024;	// the node budget used by withPageSize
+	static final int REF_BYTES = 4;		// a (compressed) reference to an object
+	static final int ENTRY_BYTES = 16;	// an Entry object, less its key and value
+	static final int NODE_BYTES = 64;	// a node, and the headers of its lists
+
 	BTreeNode<K, V> root;	// the root of the tree
 	
-	final int maxEntries;	// the maximum number of entries in the nodes
+	final int maxEntries;		// the maximum number of entries in the leaf-nodes
+	final int maxInnerEntries;	// the maximum number of keys in the inner-nodes
+
+	boolean counted;			// true if the inner-nodes count the entries beneath each child
+	Aggregate<V,Object> aggregator;	// the aggregate the inner-nodes keep for each child, or null
+	int bloomBits;				// the bits per key of the leaf filters kept by the inner-nodes, or 0
+	LookupCache<K,V> cache;		// the recently found pairs, or null if the tree keeps no cache
+	Finger<K,V> finger;			// the path to the leaf last inserted into, or null after a change to the structure
+	int structure;				// the number of changes to the structure (splits and removed nodes) so far
+	ChangeFeed<K,V> feed;		// the feed the changes are published on, or null if there is none
+
+	// the path and split result reused by every insert and delete, so they allocate nothing
+	private final NodePath<K,V> path = new NodePath<K,V>( );
+	private final NodeSplitResult<K,V> split = new NodeSplitResult<K,V>( );
+
+	// the finger of each thread that looks keys up, moved by its own lookups alone
+	private final ThreadLocal<LookupFinger<K,V>> lookups = new ThreadLocal<LookupFinger<K,V>>() {
+		@Override
+		protected LookupFinger<K,V> initialValue() { return new LookupFinger<K,V>( ); }
+	};
+
+	Clock clock = Clock.systemUTC( );	// the clock the expiry times are read from
+	boolean expiring;			// true once any entry has been given a time-to-live
+	long expired;				// the number of expired entries removed by sweeps
 	
 	
 	/**
@@ -50,10 +86,64 @@ public class BTree<K extends Comparable<K>, V> {
 	 */
 	public BTree( int maxEntries )
 	{
-		this.maxEntries = maxEntries;
+		this(maxEntries, maxEntries);
+	}
+
+	/**
+	 * Construct an empty B-Tree with separate degrees for the inner- and leaf-nodes.
+	 * An inner-node only holds keys (and child pointers), so it can hold many more of
+	 * them than a leaf holds key/value pairs in the same space.
+	 *
+	 * @param maxInnerEntries - The degree of the inner-nodes (maximum number of keys)
+	 * @param maxLeafEntries - The degree of the leaf-nodes (maximum number of entries)
+	 */
+	public BTree( int maxInnerEntries, int maxLeafEntries )
+	{
+		if ((maxInnerEntries < 2) || (maxLeafEntries < 2))
+			throw new RuntimeException("Error - the degree of the nodes must be at least 2");
+
+		this.maxInnerEntries = maxInnerEntries;
+		this.maxEntries = maxLeafEntries;
 		root = null;
 	}
 
+	/**
+	 * Construct an empty B-Tree sized so that each node fits the default budget of
+	 * {@link #DEFAULT_PAGE_BYTES}.
+	 *
+	 * @param keyBytes - the typical size of a key (in bytes)
+	 * @param valueBytes - the typical size of a value (in bytes)
+	 * @return the new tree
+	 */
+	public static <K extends Comparable<K>, V> BTree<K,V> withPageSize(int keyBytes, int valueBytes)
+	{
+		return withPageSize(DEFAULT_PAGE_BYTES, keyBytes, valueBytes);
+	}
+
+	/**
+	 * Construct an empty B-Tree with the degrees of its nodes derived from a budget for
+	 * the size of a node - a disk page, or a number of cache lines.
+	 *
+	 * An inner-node is searched by comparing keys, so its budget is spent on the keys and
+	 * the pointers to its children.  A leaf is searched the same way, but also holds an
+	 * entry (and the value) for each key.  The default budget of 1 KB was the fastest for
+	 * random lookups of Long keys in a tree of a million pairs: 2 KB was within a few
+	 * percent, 256 bytes was around 40% slower, and 16 KB around twice as slow.
+	 *
+	 * @param pageBytes - the budget for the size of a node (in bytes)
+	 * @param keyBytes - the typical size of a key (in bytes)
+	 * @param valueBytes - the typical size of a value (in bytes)
+	 * @return the new tree
+	 */
+	public static <K extends Comparable<K>, V> BTree<K,V> withPageSize(int pageBytes, int keyBytes, int valueBytes)
+	{
+		int space = Math.max(0, pageBytes - NODE_BYTES);
+		int inner = space / (keyBytes + 2 * REF_BYTES);
+		int leaf = space / (keyBytes + valueBytes + ENTRY_BYTES + REF_BYTES);
+
+		return new BTree<K,V>(Math.max(2, inner), Math.max(2, leaf));
+	}
+
 	/**
 	 * Insert a key/value pair into the B-Tree.  The keys must be unique.
 	 * Inserting a key that already exists will cause the insertion to fail
@@ -64,7 +154,35 @@ public class BTree<K extends Comparable<K>, V> {
 	 */
 	public void insert(K key, V value) 
 	{
-		insert(key, value, root);
+		insert(key, value, 0L);
+	}
+
+	/**
+	 * Insert a key/value pair into the B-Tree that expires after a time-to-live.  Once it
+	 * has expired, the pair is no longer found (or scanned), and a later insert of the key
+	 * succeeds; the pair itself is removed by the next sweep of {@link #expire()}, or of
+	 * an {@link ExpirySweeper}.
+	 *
+	 * @param key - they key to add
+	 * @param value - the value to add
+	 * @param ttl - the time the pair lives for
+	 * @param unit - the unit of the time-to-live
+	 */
+	public void insert(K key, V value, long ttl, TimeUnit unit)
+	{
+		insert(key, value, expiresAt(ttl, unit));
+	}
+
+	/**
+	 * Insert a key/value pair with an expiry time (or 0 if it never expires), taking the
+	 * place of an expired pair with the same key
+	 */
+	private void insert(K key, V value, long expires)
+	{
+		if (!expiring || !replaceExpired(key, value, expires))
+			insert(key, value, root, expires);
+		if (feed != null)
+			feed.publish(Change.Type.INSERT, key, value);
 	}
 	
 	/**
@@ -74,85 +192,178 @@ public class BTree<K extends Comparable<K>, V> {
 	 * @param key	- they key to insert into the tree
 	 * @param value - the associated value
 	 * @param node - the starting node (typically the root)
+	 * @param expires - the time the pair expires, or 0 if it never does
 	 */
-	private void insert(K key, V value, BTreeNode<K,V> node)
+	private void insert(K key, V value, BTreeNode<K,V> node, long expires)
 	{
 		// if the tree is empty, then the root node will be null
 		// so create a new root node containing this K-V pair
 		if (root == null) {
 			LeafNode<K, V> l = new LeafNode<K,V>(this.maxEntries);
 			l.insert(key, value);
+			if (expires != 0)
+				l.getEntry(key).expires = expires;
 			root = l;
 			return;
 		}
 		
-		// start a descent into the tree at the given starting node
-		BTreeNode<K,V> curr = node;
-		LeafNode<K,V> leaf = null;
-		
-		// use the local stack to avoid recursive calling overhead
-		Stack<InnerNode<K,V>> stack = new Stack<InnerNode<K,V>>( );
-
-		// traverse the inner-nodes, following the separating keys
-		while (! (curr instanceof LeafNode))
-		{
-			InnerNode<K,V> inner = (InnerNode<K,V>) curr;
-			stack.push(inner);
-			curr = inner.getChildForKey(key);
+		// a key in the range of the last leaf goes straight to it, otherwise
+		// descend into the tree at the given starting node, along the path the
+		// tree reuses - the finger is left as it is, rather than built anew
+		Finger<K,V> f = finger;
+		InnerNode<K,V>[] nodes;
+		int[] index;
+		int depth;
+		LeafNode<K,V> leaf;
+		if ((f != null) && (node == root) && f.covers(key)) {
+			nodes = f.nodes;
+			index = f.index;
+			depth = f.depth;
+			leaf = f.leaf;
+		}
+		else {
+			path.descend(node, key);
+			nodes = path.nodes;
+			index = path.index;
+			depth = path.depth;
+			leaf = path.leaf;
 		}
 		
 		// we've landed at the leaf node, insert the K/V pair
-		leaf = (LeafNode<K,V>) curr;
 		leaf.insert(key, value);
+		if (expires != 0)
+			leaf.getEntry(key).expires = expires;
+
+		// there is one more entry beneath every node on the way down
+		if (counted) {
+			for (int i = 0; i < depth; i++)
+				nodes[i].adjust(index[i], 1);
+		}
+		if (aggregator != null) {
+			for (int i = depth - 1; i >= 0; i--)
+				nodes[i].reaggregate(index[i]);
+		}
+		if ((bloomBits > 0) && (depth > 0))
+			nodes[depth - 1].filters.get(index[depth - 1]).add(key);
 		
 		// the leaf is not over-capacity, so we're done now
-		if (!leaf.isOverCapacity()) return;
+		if (!leaf.isOverCapacity())
+			return;
+
+		// the split changes the structure of the tree, so the fingers no longer hold
+		restructured();
 		
 		// this could over-fill the leaf, so check and handle that
 		// split the leaf into two nodes, a "least" and "greatest" half
 		// insert the new node into the containing parent
-		NodeSplitResult<K, V> result = leaf.split();
+		NodeSplitResult<K, V> result = leaf.split(split);
 		
 		// there was no containing parent (root was this leaf), so make
 		// a new inner node containing the two new children
-		if (node == leaf) {
-			InnerNode<K,V> newRoot = new InnerNode<K,V>(maxEntries );
-			newRoot.children.add(0, leaf);
-			newRoot.children.add(1, result.sibling);
-			newRoot.keys.add(0, result.key);
-			root = newRoot;
-			
-			return;
-		}
+		if (node == leaf)
+			root = newRoot(leaf, result);
 		
-		// there was a history, so start unwinding the stack until we can insert
+		// there was a history, so start unwinding the path until we can insert
 		// the last split without over-filling
-		InnerNode<K,V> inner = null;
-		while(! stack.isEmpty() )
+		for (int d = depth - 1; d >= 0; d--)
 		{
-			inner = stack.pop();
+			InnerNode<K,V> inner = nodes[d];
 			inner.addChild(result.key, result.sibling);
 			
 			// we find a node that was not over-full
 			if (!inner.isOverCapacity())
-				return;
+				break;
 			
 			// putting the previous split value into this node left it 
 			// over-full, so this node needs to be split, and the new value
 			// sent up to its parent (or promote it to root)
-			result = inner.split();
-			if (inner == node) {
-				InnerNode<K,V> newRoot = new InnerNode<K,V>(maxEntries );
-				newRoot.children.add(0, inner);
-				newRoot.children.add(1, result.sibling);
-				newRoot.keys.add(0, result.key);
-				root = newRoot;
-				
-				return;
-			} // end if inner == node
-		} // end stack unwind
+			result = inner.split(split);
+			if (inner == node)
+				root = newRoot(inner, result);
+		} // end path unwind
+
+		// keys that follow this one in order land in the same leaf, so the
+		// finger is built again (once for each split, not for each insert)
+		result.key = null;
+		result.sibling = null;
+		finger = new Finger<K,V>(root, key);
 	} // end insert
-	
+
+	/**
+	 * Make a new root, holding a node that was split and its new sibling
+	 */
+	private InnerNode<K,V> newRoot(BTreeNode<K,V> node, NodeSplitResult<K,V> result)
+	{
+		InnerNode<K,V> newRoot = new InnerNode<K,V>(maxInnerEntries );
+		newRoot.children.add(0, node);
+		newRoot.children.add(1, result.sibling);
+		newRoot.keys.add(0, result.key);
+		if (counted) newRoot.startCounting();
+		if (aggregator != null) newRoot.startAggregating(aggregator);
+		if (bloomBits > 0) newRoot.startFiltering(bloomBits);
+		return newRoot;
+	}
+
+
+	/**
+	 * Insert a key/value pair into the B-Tree, replacing the value of the key
+	 * if it already exists (rather than failing as {@link #insert(Comparable, Object)} does).
+	 *
+	 * @param key - the key to add or update
+	 * @param value - the value to associate with the key
+	 * @return true if an existing value was replaced, false if the pair was added
+	 */
+	public boolean upsert(K key, V value)
+	{
+		return upsert(key, value, 0L);
+	}
+
+	/**
+	 * Insert a key/value pair that expires after a time-to-live, replacing the value (and
+	 * the expiry time) of the key if it already exists.
+	 *
+	 * @param key - the key to add or update
+	 * @param value - the value to associate with the key
+	 * @param ttl - the time the pair lives for
+	 * @param unit - the unit of the time-to-live
+	 * @return true if an existing value was replaced, false if the pair was added
+	 */
+	public boolean upsert(K key, V value, long ttl, TimeUnit unit)
+	{
+		return upsert(key, value, expiresAt(ttl, unit));
+	}
+
+	/**
+	 * Insert or update a key/value pair with an expiry time (or 0 if it never expires)
+	 */
+	private boolean upsert(K key, V value, long expires)
+	{
+		if (root != null) {
+			path.descend(root, key);
+
+			// the key is present, so just replace its value in the leaf - an expired
+			// value is replaced too, but as far as the caller can tell, it was added
+			Entry<K,V> entry = path.leaf.getEntry(key);
+			if (entry != null) {
+				boolean live = !entry.isExpired(now());
+				entry.value = value;
+				entry.expires = expires;
+				if (aggregator != null)
+					reaggregate(path);
+				if (cache != null) {
+					if (expires == 0) cache.update(key, value);
+					else cache.invalidate(key);
+				}
+				if (feed != null)
+					feed.publish(live ? Change.Type.UPDATE : Change.Type.INSERT, key, value);
+				return live;
+			}
+		}
+
+		insert(key, value, expires);
+		return false;
+	}
+
 	
 	/**
 	 * Search the B-Tree for the indicated key and return the associated value.
@@ -165,23 +376,135 @@ public class BTree<K extends Comparable<K>, V> {
 		// if the root is empty, throw an error
 		if (root == null) 
 			throw new RuntimeException("Error - tree is empty");
-		
-		// start at the root and following the separating values to a leaf
-		BTreeNode<K, V> curr = root;
-		while (curr instanceof InnerNode)
-		{
-			InnerNode<K,V> inner = (InnerNode<K,V>) curr;
-			curr = inner.getChildForKey(key);
+
+		// a hot key is answered without descending the tree
+		if (cache != null) {
+			LookupCache.Slot<K,V> slot = cache.lookup(key);
+			if (slot != null)
+				return slot.value;
 		}
 		
-		// scan the leaf for the key, leaf.find throws an exception is 
-		// the keys is not found
-		LeafNode<K,V> leaf = (LeafNode<K,V>) curr;
-		V value = leaf.find(key);
-		
-		return value;
+		// scan the leaf for the key - an expired key is not found either
+		Entry<K,V> entry = lookup(key);
+		if ((entry == null) || entry.isExpired(now()))
+			throw new RuntimeException("Error - key was not found in this node. ");
+
+		// a pair that will expire is not cached, as the cache cannot tell when it has
+		if ((cache != null) && (entry.expires == 0))
+			cache.put(key, entry.value);
+		return entry.value;
 	}
-	
+
+	/**
+	 * Look up a batch of keys, returning their values in the order of the batch.  A key that
+	 * is not in the tree has a null value, rather than raising an exception as
+	 * {@link #find(Comparable)} does.
+	 *
+	 * The batch is sorted and searched in a single descent, visiting each node on the way
+	 * down once for the whole batch, so it costs far less than a find for each key.
+	 *
+	 * @param keys - the keys to look up
+	 * @return the value of each key (or null if the key was not found)
+	 */
+	public List<V> getAll(Collection<K> keys)
+	{
+		return getAll(keys, null);
+	}
+
+	/**
+	 * Look up a batch of keys as {@link #getAll(Collection)} does, searching the subtrees
+	 * beneath a large batch in parallel on the tasks of a pool.  The tree must not be
+	 * changed while the batch is searched.
+	 *
+	 * @param keys - the keys to look up
+	 * @param pool - the pool to search on, or null to search on the calling thread
+	 * @return the value of each key (or null if the key was not found)
+	 */
+	public List<V> getAll(Collection<K> keys, ForkJoinPool pool)
+	{
+		if (keys.isEmpty())
+			return Collections.<V>emptyList();
+
+		MultiGet<K,V> batch = new MultiGet<K,V>(keys, now());
+		if (root == null)
+			return batch.results();
+
+		if ((pool != null) && (keys.size() >= MultiGet.FORK_THRESHOLD))
+			batch.search(root, pool);
+		else
+			batch.search(root, 0, keys.size());
+		return batch.results();
+	}
+
+	/**
+	 * Predicate to test if the B-Tree holds the indicated key.  Unlike {@link #find(Comparable)}
+	 * this does not raise an exception when the key (or the whole tree) is missing.
+	 *
+	 * @param key - the key to find
+	 * @return true if the key is in the tree, false otherwise
+	 */
+	public boolean containsKey(K key)
+	{
+		if (root == null) return false;
+		if ((cache != null) && cache.slots.containsKey(key)) return true;
+
+		return getEntry(key) != null;
+	}
+
+	/**
+	 * Find the entry of a key in a single lookup, without raising an exception when the key
+	 * (or the whole tree) is missing.  The lookup cache is not consulted.
+	 *
+	 * @param key - the key to find
+	 * @return the entry, or null if the key is not in the tree (or has expired)
+	 */
+	Entry<K,V> getEntry(K key)
+	{
+		if (root == null) return null;
+
+		Entry<K,V> entry = lookup(key);
+		return ((entry == null) || entry.isExpired(now())) ? null : entry;
+	}
+
+	/**
+	 * Find the entry of a key, moving the calling thread's finger to the leaf that should
+	 * contain it: straight to the leaf if the finger already covers the key, and otherwise
+	 * from the lowest node on its path that covers the key, following the separating values
+	 * to a leaf.  The finger belongs to the thread, so a lookup neither allocates nor
+	 * changes the tree, and keys looked up in order visit a constant number of nodes each.
+	 *
+	 * @param key - the key to find
+	 * @return the entry, or null if the key is not in its leaf (or the filter of the leaf rules it out)
+	 */
+	private Entry<K,V> lookup(K key)
+	{
+		LookupFinger<K,V> f = lookups.get();
+		LeafNode<K,V> leaf = f.moveTo(this, key);
+
+		// the filter of the leaf can rule the key out without scanning the leaf
+		if (!f.mightContain(key))
+			return null;
+		return leaf.getEntry(key);
+	}
+
+	/**
+	 * The finger the calling thread looks keys up with
+	 */
+	LookupFinger<K,V> lookupFinger( )
+	{
+		return lookups.get();
+	}
+
+	/**
+	 * Note a change to the structure of the tree (a split, or a removed node), which the
+	 * fingers of the inserts and the lookups no longer hold across
+	 */
+	private void restructured( )
+	{
+		finger = null;
+		structure++;
+	}
+
 	
 
 	/**
@@ -205,35 +528,55 @@ public class BTree<K extends Comparable<K>, V> {
 	 * This is one of the most complex B-Tree operations - and certainly one of the most difficult to 
 	 * implement efficiently.  A recursive solution exists, but will quickly degrade performance, especially
 	 * if the node size is small and the height of the tree is large.  The recursive implementation will 
-	 * eat into the available program stack.  Instead, a local Stack ADT is used to capture the path 
-	 * that is followed to leaf, and then we can unwind the stack as the deletion progresses.
+	 * eat into the available program stack.  Instead, the path that is followed to the leaf is 
+	 * captured (in the path the tree reuses), and then we unwind the path as the deletion progresses.
 	 * 
 	 * Ultimately, this deletion operation ust preserve the B-Tree properties, maintaining the balanced 
 	 * nature of the tre.
 	 * 
 	 * @param key the key to delete
-	 * @return true if the node was found and deleted, false otherwise
+	 * @return true if the node was found and deleted, false otherwise (or if it had expired)
 	 */
 	public boolean delete(K key)
 	{
-		// create a stack containing the path to the leaf node
-		Stack<BTreeNode<K, V>> stack = descendToLeaf(key);
-		
-		LeafNode<K,V> leaf = (LeafNode<K,V>) stack.pop();
+		// there is nothing to delete from an empty tree
+		if (root == null) return false;
+
+		// follow the path to the leaf node
+		path.descend(root, key);
+		LeafNode<K,V> leaf = path.leaf;
 		
-		// the node was not found, so return false
-		if (!leaf.delete(key)) return false;
+		// the node was not found, so return false - an expired key is removed
+		// all the same, but was not there as far as the caller can tell
+		Entry<K,V> entry = leaf.getEntry(key);
+		if (entry == null) return false;
+		boolean live = !entry.isExpired(now());
+		leaf.delete(key);
+		if (cache != null)
+			cache.invalidate(key);
+		if (feed != null)
+			feed.publish(Change.Type.DELETE, key, null);
+		if (leaf.isEmpty())
+			restructured();
+
+		// there is one less entry beneath every node on the way down
+		if (counted) {
+			for (int i = 0; i < path.depth; i++)
+				path.nodes[i].adjust(path.index[i], -1);
+		}
+		if (aggregator != null)
+			reaggregate(path);
 
 		// leaf node is still viable, so just return
-		if (!leaf.isEmpty()) return true;
+		if (!leaf.isEmpty()) return live;
 		
 		BTreeNode<K,V> prevNode = leaf;
 		BTreeNode<K,V> currNode = null;
-		while (stack.size() > 0)
+		for (int d = path.depth - 1; d >= 0; d--)
 		{
 			if (!prevNode.isEmpty()) break;
 			
-			currNode = stack.pop();
+			currNode = path.nodes[d];
 			InnerNode<K,V> inner = (InnerNode<K,V>) currNode;
 			
 			// the previous node was a leaf node that became empty
@@ -254,25 +597,38 @@ public class BTree<K extends Comparable<K>, V> {
 				int posn = inner.findNode(empty);
 				inner.deleteChild(empty);
 				
+				// the remaining child moves into the neighbour on the right (becoming its
+				// first child), or onto the end of the neighbour on the left if there is none
 				BTreeNode<K,V> remain = empty.children.get(0);
-				InnerNode<K,V> sibling = (InnerNode<K,V>) inner.children.get(posn); 
-				if (posn == 0) 
-					sibling.addChild(sibling.getMinKey(), remain);
-							
-				else
+				InnerNode<K,V> sibling;
+				if (posn < inner.children.size()) {
+					sibling = (InnerNode<K,V>) inner.children.get(posn);
+					sibling.addFirstChild(sibling.getMinKey(), remain);
+				}
+				else {
+					sibling = (InnerNode<K,V>) inner.children.get(--posn);
 					sibling.addChild(remain.getMinKey(), remain);
+				}
+				if (counted)
+					inner.recount(posn);
+				if (aggregator != null)
+					inner.reaggregate(posn);
 				
 				// if the sibling becomes over-capacity, then we split it,
 				// allowing this node to remain.
 				if (sibling.isOverCapacity())
 				{
-					NodeSplitResult<K, V> result = sibling.split();
+					NodeSplitResult<K, V> result = sibling.split(split);
 					inner.addChild(result.key, result.sibling);
 				}
 				
 				// adjust the root to remaining sibling
 				if ((inner == root) && (inner.isEmpty()))
 					root = sibling;
+				
+				// the parent lost a child, so it may now be empty in turn
+				prevNode = inner;
+				currNode = null;
 			}
 			
 		}
@@ -284,30 +640,548 @@ public class BTree<K extends Comparable<K>, V> {
 		if ((currNode == null) && (prevNode != null) && (prevNode instanceof LeafNode) && (prevNode.isEmpty()))
 			root = null;
 		
-		return true;
+		return live;
 	}
 
 	/**
-	 * Descend through the inner-nodes to find the leaf-node that should contains the given key, returning a stack 
-	 * that includes the leaf and all of its parent inner-nodes.
-	 * 
-	 * @param key - the leaf node
-	 * @return
+	 * Keep a count of the entries beneath each child of the inner-nodes, from now on.
+	 * The counts cost a little on every insert and delete, and make {@link #rank},
+	 * {@link #select} and {@link #count} take logarithmic (rather than linear) time.
+	 * Counting the existing nodes visits every inner-node once.
+	 */
+	public void countSubtrees( )
+	{
+		if (counted) return;
+
+		if (root instanceof InnerNode)
+			startCounting((InnerNode<K,V>) root);
+		counted = true;
+	}
+
+	/**
+	 * The number of entries in the B-Tree.  Without subtree counts, this visits every leaf.
+	 *
+	 * @return the number of key/value pairs
 	 */
-	private Stack<BTreeNode<K,V>> descendToLeaf(K key) {
-		Stack<BTreeNode<K,V>> path = new Stack<BTreeNode<K,V>>( );
+	public int size( )
+	{
+		if (root == null)
+			return 0;
+		if (counted)
+			return InnerNode.sizeOf(root);
+
+		int n = 0;
+		Cursor<K,V> cursor = new Cursor<K,V>(this);
+		for (LeafNode<K,V> leaf = cursor.leaf; leaf != null; leaf = cursor.nextLeaf())
+			n += leaf.children.size();
+		return n;
+	}
+
+	/**
+	 * The rank of a key - the number of keys in the B-Tree less than it.  The key need
+	 * not be present.  This needs subtree counts (see {@link #countSubtrees()}).
+	 *
+	 * @param key - the key to rank
+	 * @return the number of keys less than the key
+	 */
+	public int rank(K key)
+	{
+		checkCounted();
+		if (root == null) return 0;
+
+		int rank = 0;
 		BTreeNode<K,V> curr = root;
-		while ( curr instanceof InnerNode)
+		while (curr instanceof InnerNode)
 		{
 			InnerNode<K,V> inner = (InnerNode<K,V>) curr;
-			path.push(inner);
-			curr = inner.getChildForKey(key);
+			int i = inner.getChildIndexForKey(key);
+			for (int j = 0; j < i; j++)
+				rank += inner.counts[j];
+			curr = inner.children.get(i);
 		}
-		
-		// push the leaf node onto the path
-		path.push(curr);
-		
-		return path;
+
+		for (Entry<K,V> entry : ((LeafNode<K,V>) curr).children)
+		{
+			if (entry.key.compareTo(key) >= 0) break;
+			rank++;
+		}
+		return rank;
+	}
+
+	/**
+	 * Select the key of the given rank - the i-th least key in the B-Tree, counting
+	 * from 0.  This needs subtree counts (see {@link #countSubtrees()}).
+	 *
+	 * @param i - the rank of the key
+	 * @return the key
+	 */
+	public K select(int i)
+	{
+		checkCounted();
+		if ((i < 0) || (i >= size()))
+			throw new RuntimeException("Error - rank " + i + " is outside the tree");
+
+		BTreeNode<K,V> curr = root;
+		while (curr instanceof InnerNode)
+		{
+			InnerNode<K,V> inner = (InnerNode<K,V>) curr;
+			int j = 0;
+			while (i >= inner.counts[j])
+				i -= inner.counts[j++];
+			curr = inner.children.get(j);
+		}
+
+		return ((LeafNode<K,V>) curr).children.get(i).key;
+	}
+
+	/**
+	 * Count the keys from a key (inclusive) up to another (exclusive).  This needs
+	 * subtree counts (see {@link #countSubtrees()}).
+	 *
+	 * @param from - the least key to count, or null to count from the first key
+	 * @param to - the key to count up to, or null to count to the last key
+	 * @return the number of keys in the range
+	 */
+	public int count(K from, K to)
+	{
+		checkCounted();
+		int lo = (from == null) ? 0 : rank(from);
+		int hi = (to == null) ? size() : rank(to);
+		return Math.max(0, hi - lo);
+	}
+
+	/**
+	 * Keep an aggregate of the values beneath each child of the inner-nodes, from now on,
+	 * replacing any aggregate kept before.  Each insert, delete or update then rebuilds
+	 * the aggregates on the path to its leaf, and {@link #aggregate(Aggregate, Comparable,
+	 * Comparable)} takes logarithmic (rather than linear) time.  Aggregating the existing
+	 * nodes visits every entry once.
+	 *
+	 * @param aggregate - the aggregate to keep, or null to stop keeping one
+	 */
+	@SuppressWarnings("unchecked")
+	public <A> void aggregateWith(Aggregate<V,A> aggregate)
+	{
+		aggregator = (Aggregate<V,Object>) aggregate;
+		if (root instanceof InnerNode)
+			startAggregating((InnerNode<K,V>) root);
+	}
+
+	/**
+	 * Aggregate the values of the keys from a key (inclusive) up to another (exclusive).
+	 * Only the nodes on the paths to the two ends of the range are visited; the subtrees
+	 * between them are covered by the aggregates kept in their parents.
+	 *
+	 * @param aggregate - the aggregate, which must be the one the tree keeps
+	 * @param from - the least key of the range, or null to start at the first key
+	 * @param to - the key to aggregate up to, or null to finish at the last key
+	 * @return the aggregate of the values in the range
+	 */
+	@SuppressWarnings("unchecked")
+	public <A> A aggregate(Aggregate<V,A> aggregate, K from, K to)
+	{
+		if ((aggregate == null) || (aggregate != (Object) aggregator))
+			throw new RuntimeException("Error - the tree does not keep this aggregate, see aggregateWith()");
+
+		if ((root == null) || ((from != null) && (to != null) && (from.compareTo(to) >= 0)))
+			return aggregate.identity();
+
+		return (A) aggregate(root, from, to);
+	}
+
+	/**
+	 * Keep a Bloom filter of the keys of each leaf, from now on, in the parent of the leaf.
+	 * {@link #find(Comparable)} and {@link #containsKey(Comparable)} consult the filter
+	 * before scanning the leaf, so most lookups of a missing key end without comparing it
+	 * to the keys in the leaf.  A filter is sized for the degree of the leaves, and rebuilt
+	 * whenever its leaf is split or merged; a deleted key stays in its filter until then,
+	 * which only costs the scan the filter would have saved.
+	 *
+	 * At 10 bits per key, around 1% of the lookups of missing keys still scan the leaf.
+	 * Building the filters for the existing leaves visits every entry once.
+	 *
+	 * The keys are hashed, so their hashCode must agree with compareTo: two keys that compare
+	 * as equal (such as the BigDecimals 1.0 and 1.00) must have the same hashCode, or a key
+	 * that is in the tree may be reported missing.
+	 *
+	 * @param bitsPerKey - the bits per key of each filter, or 0 to stop keeping them
+	 */
+	public void useBloomFilters(int bitsPerKey)
+	{
+		if (bitsPerKey < 0)
+			throw new RuntimeException("Error - the bits per key of a filter cannot be negative");
+
+		bloomBits = bitsPerKey;
+		if (root instanceof InnerNode)
+			startFiltering((InnerNode<K,V>) root);
+	}
+
+	/**
+	 * Keep a bounded cache of recently found pairs in front of {@link #find(Comparable)}, from
+	 * now on, replacing any cache kept before.  A key that is found again while it is cached
+	 * is answered without descending the tree, which pays off when a few hot keys take most
+	 * of the lookups.  The cache evicts with the CLOCK policy, so a key has to be found again
+	 * before the sweep comes round to keep its place.  Deletes drop their key from the cache,
+	 * and updates replace its value, so the cache never answers with a stale value.
+	 *
+	 * The keys are hashed, so their hashCode and equals must agree with compareTo.
+	 *
+	 * The cache is safe for any number of readers at once, so a tree that is read under a
+	 * shared lock (and written under an exclusive one) can keep a cache as it is.  Starting
+	 * or stopping the cache is a change to the tree, and needs the exclusive lock.
+	 *
+	 * @param entries - the maximum number of pairs to cache, or 0 to stop caching
+	 */
+	public void useLookupCache(int entries)
+	{
+		if (entries < 0)
+			throw new RuntimeException("Error - the size of the cache cannot be negative");
+
+		cache = (entries == 0) ? null : new LookupCache<K,V>(entries);
+	}
+
+	/**
+	 * The number of finds answered by the lookup cache (since it was started)
+	 */
+	public long getCacheHits( )
+	{
+		return (cache == null) ? 0 : cache.hits.sum();
+	}
+
+	/**
+	 * The number of finds that missed the lookup cache and descended the tree
+	 */
+	public long getCacheMisses( )
+	{
+		return (cache == null) ? 0 : cache.misses.sum();
+	}
+
+	/**
+	 * The fraction of finds answered by the lookup cache, or 0 if there have been none
+	 */
+	public double getCacheHitRate( )
+	{
+		long total = getCacheHits() + getCacheMisses();
+		return (total == 0) ? 0 : (double) getCacheHits() / total;
+	}
+
+	/**
+	 * Publish every change made to the tree from now on to a feed, replacing any feed
+	 * published to before.  The feed holds the most recent changes, for consumers to pull
+	 * at their own pace; see {@link ChangeFeed}.
+	 *
+	 * @param capacity - the number of changes the feed holds, or 0 to stop publishing
+	 * @return the feed, or null if publishing was stopped
+	 */
+	public ChangeFeed<K,V> useChangeFeed(int capacity)
+	{
+		feed = (capacity == 0) ? null : new ChangeFeed<K,V>(capacity);
+		return feed;
+	}
+
+	/**
+	 * The feed the changes to the tree are published on, or null if there is none
+	 */
+	public ChangeFeed<K,V> getChangeFeed( )
+	{
+		return feed;
+	}
+
+	/**
+	 * Remove every expired pair from the tree now.  The leaves are swept one at a time:
+	 * the expired pairs of a leaf are removed together, after a single descent to it, and
+	 * a leaf left empty is removed by the usual restructuring of {@link #delete(Comparable)}.
+	 *
+	 * Expired pairs are not found or scanned even before they are swept, but they are
+	 * still counted by {@link #size()} (and the other order statistics) until then.
+	 *
+	 * @return the number of pairs removed
+	 */
+	public int expire( )
+	{
+		if (!expiring || (root == null))
+			return 0;
+
+		long before = expired;
+		long now = clock.millis();
+		K from = root.getMinKey();
+		while ((from != null) && (root != null))
+			from = sweep(from, now);
+		return (int) (expired - before);
+	}
+
+	/**
+	 * Build an immutable, read-only copy of the B-Tree, laid out for fast lookups and
+	 * range scans.  Later changes to this tree do not affect the copy.
+	 *
+	 * @return the frozen copy
+	 */
+	public FrozenBTree<K,V> freeze( )
+	{
+		return new FrozenBTree<K,V>(this);
+	}
+
+	/**
+	 * Write a checkpoint of the B-Tree to a file.  The leaf level is streamed to the file
+	 * in key order, giving a compact snapshot that {@link #restore(Path)} can rebuild the
+	 * tree from.  The keys and values must be Serializable.
+	 *
+	 * @param path - the snapshot file to write (any existing file is replaced)
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	public void checkpoint(Path path) throws IOException
+	{
+		Snapshot.write(this, path);
+	}
+
+	/**
+	 * Rebuild a B-Tree from a checkpoint written by {@link #checkpoint(Path)}.  The tree is
+	 * built bottom-up in a single pass over the file, without descending the tree or
+	 * splitting any nodes, so restoring is bounded by reading the file.
+	 *
+	 * @param path - the snapshot file to read
+	 * @return the restored tree
+	 * @throws IOException if the snapshot cannot be read
+	 */
+	public static <K extends Comparable<K>, V> BTree<K,V> restore(Path path) throws IOException
+	{
+		return Snapshot.read(path);
+	}
+
+	/**
+	 * Write a checkpoint of the B-Tree to a file, encoding the keys and values with the
+	 * given serializers rather than Java serialization.  Each leaf is written as a page
+	 * that can be searched in place, and {@link #restore(Path, Serializer, Serializer)}
+	 * reads the snapshot by mapping the file.
+	 *
+	 * @param path - the snapshot file to write (any existing file is replaced)
+	 * @param keySerializer - the serializer for the keys
+	 * @param valueSerializer - the serializer for the values
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	public void checkpoint(Path path, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException
+	{
+		Snapshot.write(this, path, keySerializer, valueSerializer);
+	}
+
+	/**
+	 * Rebuild a B-Tree from a checkpoint written by {@link #checkpoint(Path, Serializer, Serializer)},
+	 * mapping the file and building the tree bottom-up in a single pass.
+	 *
+	 * @param path - the snapshot file to read
+	 * @param keySerializer - the serializer for the keys
+	 * @param valueSerializer - the serializer for the values
+	 * @return the restored tree
+	 * @throws IOException if the snapshot cannot be read
+	 */
+	public static <K extends Comparable<K>, V> BTree<K,V> restore(Path path,
+			Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException
+	{
+		return Snapshot.read(path, keySerializer, valueSerializer);
+	}
+
+	/**
+	 * The time a pair given a time-to-live now expires
+	 */
+	private long expiresAt(long ttl, TimeUnit unit)
+	{
+		if (ttl <= 0)
+			throw new RuntimeException("Error - the time-to-live must be positive");
+
+		expiring = true;
+		return clock.millis() + unit.toMillis(ttl);
+	}
+
+	/**
+	 * The time the expiry of the pairs is judged at, or 0 if no pair can expire
+	 */
+	long now( )
+	{
+		return expiring ? clock.millis() : 0;
+	}
+
+	/**
+	 * Put a new value (and expiry time) in place of an expired pair with the same key
+	 * @return true if there was an expired pair to replace
+	 */
+	private boolean replaceExpired(K key, V value, long expires)
+	{
+		if (root == null)
+			return false;
+
+		path.descend(root, key);
+		Entry<K,V> entry = path.leaf.getEntry(key);
+		if ((entry == null) || !entry.isExpired(clock.millis()))
+			return false;
+
+		entry.value = value;
+		entry.expires = expires;
+		if (aggregator != null)
+			reaggregate(path);
+		return true;
+	}
+
+	/**
+	 * Remove the expired pairs of the leaf that holds a key.  The pairs are removed from
+	 * the leaf together, unless that would empty it, in which case the last is deleted
+	 * through {@link #delete(Comparable)} to remove the leaf from the tree.
+	 *
+	 * @param from - a key in the range of the leaf
+	 * @param now - the time the expiry is judged at
+	 * @return the least key of the next leaf, or null if this was the last leaf
+	 */
+	K sweep(K from, long now)
+	{
+		Finger<K,V> f = new Finger<K,V>(root, from);
+		LeafNode<K,V> leaf = f.leaf;
+
+		ArrayList<Entry<K,V>> live = new ArrayList<Entry<K,V>>(leaf.children.size());
+		ArrayList<Entry<K,V>> gone = new ArrayList<Entry<K,V>>( );
+		for (Entry<K,V> entry : leaf.children)
+		{
+			if (entry.isExpired(now)) gone.add(entry);
+			else live.add(entry);
+		}
+		if (gone.isEmpty())
+			return f.high;
+
+		Entry<K,V> last = null;
+		if (live.isEmpty())
+			live.add(last = gone.remove(gone.size() - 1));
+		leaf.children = live;
+
+		// there are fewer entries beneath every node on the way down
+		if (counted) {
+			for (int i = 0; i < f.depth; i++)
+				f.nodes[i].adjust(f.index[i], -gone.size());
+		}
+		if (aggregator != null) {
+			for (int i = f.depth - 1; i >= 0; i--)
+				f.nodes[i].reaggregate(f.index[i]);
+		}
+		for (Entry<K,V> entry : gone)
+		{
+			if (cache != null)
+				cache.invalidate(entry.key);
+			if (feed != null)
+				feed.publish(Change.Type.DELETE, entry.key, null);
+		}
+		expired += gone.size();
+
+		if (last != null) {
+			delete(last.key);
+			expired++;
+		}
+		return f.high;
+	}
+
+	/**
+	 * Start counting the entries beneath an inner-node, and all of the inner-nodes below it
+	 */
+	private void startCounting(InnerNode<K,V> inner)
+	{
+		for (BTreeNode<K,V> child : inner.children)
+		{
+			if (child instanceof InnerNode)
+				startCounting((InnerNode<K,V>) child);
+		}
+		inner.startCounting();
+	}
+
+	/**
+	 * Start keeping aggregates in an inner-node, and all of the inner-nodes below it
+	 */
+	private void startAggregating(InnerNode<K,V> inner)
+	{
+		for (BTreeNode<K,V> child : inner.children)
+		{
+			if (child instanceof InnerNode)
+				startAggregating((InnerNode<K,V>) child);
+		}
+
+		if (aggregator == null) {
+			inner.aggregator = null;
+			inner.aggregates = null;
+		}
+		else
+			inner.startAggregating(aggregator);
+	}
+
+	/**
+	 * Start keeping leaf filters in an inner-node, and all of the inner-nodes below it
+	 */
+	private void startFiltering(InnerNode<K,V> inner)
+	{
+		for (BTreeNode<K,V> child : inner.children)
+		{
+			if (child instanceof InnerNode)
+				startFiltering((InnerNode<K,V>) child);
+		}
+
+		if (bloomBits == 0) {
+			inner.bloomBits = 0;
+			inner.filters = null;
+		}
+		else
+			inner.startFiltering(bloomBits);
+	}
+
+	/**
+	 * Rebuild the aggregates on a path, from the leaf up to the root
+	 */
+	private void reaggregate(NodePath<K,V> path)
+	{
+		for (int i = path.depth - 1; i >= 0; i--)
+			path.nodes[i].reaggregate(path.index[i]);
+	}
+
+	/**
+	 * Aggregate the values beneath a node, with keys in the range [from, to) - a null
+	 * bound is open
+	 */
+	private Object aggregate(BTreeNode<K,V> node, K from, K to)
+	{
+		Object a = aggregator.identity();
+
+		if (node instanceof LeafNode) {
+			for (Entry<K,V> entry : ((LeafNode<K,V>) node).children)
+			{
+				if ((from != null) && (entry.key.compareTo(from) < 0)) continue;
+				if ((to != null) && (entry.key.compareTo(to) >= 0)) break;
+				a = aggregator.combine(a, aggregator.lift(entry.value));
+			}
+			return a;
+		}
+
+		// child i holds the keys in [keys[i-1], keys[i])
+		InnerNode<K,V> inner = (InnerNode<K,V>) node;
+		int last = inner.children.size() - 1;
+		for (int i = 0; i <= last; i++)
+		{
+			K lo = (i == 0) ? null : inner.keys.get(i - 1);
+			K hi = (i == last) ? null : inner.keys.get(i);
+
+			// skip the children outside the range
+			if ((to != null) && (lo != null) && (lo.compareTo(to) >= 0)) break;
+			if ((from != null) && (hi != null) && (hi.compareTo(from) <= 0)) continue;
+
+			// a child entirely inside the range is covered by its aggregate
+			boolean inside = ((from == null) || ((lo != null) && (from.compareTo(lo) <= 0)))
+					&& ((to == null) || ((hi != null) && (hi.compareTo(to) <= 0)));
+
+			Object b = inside ? inner.aggregates.get(i) : aggregate(inner.children.get(i), from, to);
+			a = aggregator.combine(a, b);
+		}
+		return a;
+	}
+
+	/**
+	 * Check that the tree keeps subtree counts (or throw an exception)
+	 */
+	private void checkCounted( )
+	{
+		if (!counted)
+			throw new RuntimeException("Error - the tree does not keep subtree counts, see countSubtrees()");
 	}
 
 	/**
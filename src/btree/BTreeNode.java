@@ -9,7 +9,19 @@ public abstract class BTreeNode<K extends Comparable<K>, V>
 	
 	abstract boolean isEmpty( );
 	
-	abstract NodeSplitResult split( );
+	/**
+	 * Split an over-full node, filling in (and returning) the given result, so a
+	 * caller that splits often can reuse one result rather than allocate each time
+	 */
+	abstract NodeSplitResult<K,V> split(NodeSplitResult<K,V> result);
+
+	/**
+	 * Split an over-full node, returning a new result
+	 */
+	NodeSplitResult<K,V> split( )
+	{
+		return split(new NodeSplitResult<K,V>( ));
+	}
 	
 	abstract K getMaxKey( );
 	abstract K getMinKey( );
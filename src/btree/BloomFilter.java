@@ -0,0 +1,95 @@
+package btree;
+
+/**
+ * A Bloom filter over the keys of a leaf-node.
+ *
+ * This is an internal class that should not be used outside the btree package.
+ *
+ * The filter answers whether a key might be in the leaf: a "no" is always right, while
+ * a "yes" is wrong for a small fraction of absent keys (around 1% at 10 bits per key).
+ * Keys can be added but not removed, so a deleted key stays in the filter (as a false
+ * "yes") until the filter is rebuilt.
+ *
+ * Each key is hashed once, and the probes are derived from the two halves of the hash
+ * (double hashing), so the filter needs nothing from the keys but their hashCode - which
+ * must agree with the compareTo the tree orders them by, or a key may be ruled out wrongly.
+ *
+ * @author tbriggs
+ */
+final class BloomFilter {
+
+	final long[] bits;		// the bit array, a multiple of 64 bits long
+	final int hashes;		// the number of bits set for each key
+
+
+	/**
+	 * Construct an empty filter
+	 * @param capacity - the number of keys the filter is sized for
+	 * @param bitsPerKey - the number of bits per key (more bits, fewer false positives)
+	 */
+	BloomFilter(int capacity, int bitsPerKey)
+	{
+		int words = Math.max(1, (Math.max(1, capacity) * bitsPerKey + 63) / 64);
+		bits = new long[words];
+		hashes = Math.max(1, Math.min(8, (int) Math.round(bitsPerKey * Math.log(2))));
+	}
+
+	/**
+	 * Build a filter holding the keys of a leaf.  It is sized for the degree of the leaf
+	 * (or the number of keys, if that is more), since a leaf fills up to its degree before
+	 * it is split, and the filter is rebuilt then.
+	 * @param leaf - the leaf to filter
+	 * @param bitsPerKey - the number of bits per key
+	 */
+	static <K extends Comparable<K>, V> BloomFilter of(LeafNode<K,V> leaf, int bitsPerKey)
+	{
+		BloomFilter filter = new BloomFilter(Math.max(leaf.maxEntries, leaf.children.size()), bitsPerKey);
+		for (Entry<K,V> entry : leaf.children)
+			filter.add(entry.key);
+		return filter;
+	}
+
+	/**
+	 * Add a key to the filter
+	 */
+	void add(Object key)
+	{
+		long h = hash(key);
+		int h1 = (int) h, h2 = (int) (h >>> 32);
+		long m = bits.length * 64L;
+		for (int i = 0; i < hashes; i++)
+		{
+			int bit = (int) (((h1 + i * h2) & 0xffffffffL) % m);
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Predicate to test if the key might have been added to the filter
+	 * @return false if the key was certainly never added, true if it might have been
+	 */
+	boolean mightContain(Object key)
+	{
+		long h = hash(key);
+		int h1 = (int) h, h2 = (int) (h >>> 32);
+		long m = bits.length * 64L;
+		for (int i = 0; i < hashes; i++)
+		{
+			int bit = (int) (((h1 + i * h2) & 0xffffffffL) % m);
+			if ((bits[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Spread the hashCode of a key over 64 bits
+	 */
+	private static long hash(Object key)
+	{
+		long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 32;
+		h *= 0xC2B2AE3D27D4EB4FL;
+		return h ^ (h >>> 29);
+	}
+}
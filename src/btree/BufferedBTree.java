@@ -0,0 +1,418 @@
+package btree;
+
+import java.util.ArrayList;
+
+
+/**
+ * A write-optimized (B-epsilon) variant of the {@link BTree}.
+ *
+ *   Every inner-node of this tree carries a buffer of pending messages (inserts, upserts
+ *   and deletes).  Updates are appended to the buffer of the root, and only when a buffer
+ *   fills are its messages moved down a level - taking the whole batch destined for the
+ *   busiest child at once.  A leaf-node is therefore only read and re-written when a batch
+ *   of updates has gathered for it, and the cost of that block I/O is shared by every
+ *   update in the batch, instead of being paid once per insert.
+ *
+ *   Lookups follow the separating keys just as in the {@link BTree}, but must also check
+ *   the buffers along the path, as the newest state of a key may not have reached its
+ *   leaf yet.  Buffers closer to the root always hold the newer messages for a key.
+ *
+ *   Updates are "blind", so the unique-key check of {@link BTree#insert(Comparable, Object)}
+ *   cannot be made when the insert is issued.  Instead, an insert of a key that is already
+ *   present is dropped when it is applied (the existing value is kept), while an upsert
+ *   replaces the existing value.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <K> - A Comparable type for the key of the key-value pair
+ * @param <V> - The value for the key-value pair for this type of B-Tree
+ */
+public class BufferedBTree<K extends Comparable<K>, V> {
+
+	BTreeNode<K, V> root;	// the root of the tree
+
+	final int maxEntries;	// the maximum number of entries in the nodes
+
+	final int bufferSize;	// the maximum number of messages buffered by an inner-node
+
+
+	/**
+	 * Construct an empty buffered B-Tree.
+	 *
+	 * @param maxEntries - The degree (maximum number of entries in the nodes)
+	 * @param bufferSize - The number of messages an inner-node holds before flushing them down
+	 */
+	public BufferedBTree( int maxEntries, int bufferSize )
+	{
+		this.maxEntries = maxEntries;
+		this.bufferSize = bufferSize;
+		root = null;
+	}
+
+	/**
+	 * Insert a key/value pair into the B-Tree.  If the key is already present when
+	 * the insert reaches its leaf, the insert is dropped and the existing value kept.
+	 *
+	 * @param key - the key to add
+	 * @param value - the value to add
+	 */
+	public void insert(K key, V value)
+	{
+		put(new Message<K,V>(Message.Op.INSERT, key, value));
+	}
+
+	/**
+	 * Insert a key/value pair into the B-Tree, replacing any existing value of the key.
+	 *
+	 * @param key - the key to add or update
+	 * @param value - the value to associate with the key
+	 */
+	public void upsert(K key, V value)
+	{
+		put(new Message<K,V>(Message.Op.UPSERT, key, value));
+	}
+
+	/**
+	 * Delete a key (and its value) from the B-Tree.  Deleting a key that is not
+	 * present has no effect.
+	 *
+	 * @param key - the key to delete
+	 */
+	public void delete(K key)
+	{
+		put(new Message<K,V>(Message.Op.DELETE, key, null));
+	}
+
+	/**
+	 * Search the B-Tree for the indicated key and return the associated value.
+	 *
+	 * The leaf holds the oldest state of the key, so the pending messages along the
+	 * path are replayed on top of it, from the deepest buffer up to the root.
+	 *
+	 * @param key - the key to find
+	 * @return the value associated with the key
+	 */
+	public V find(K key)
+	{
+		// if the root is empty, throw an error
+		if (root == null)
+			throw new RuntimeException("Error - tree is empty");
+
+		// follow the separating values to a leaf, remembering the buffers passed
+		ArrayList<InnerNode<K,V>> path = new ArrayList<InnerNode<K,V>>( );
+		BTreeNode<K,V> curr = root;
+		while (curr instanceof InnerNode)
+		{
+			InnerNode<K,V> inner = (InnerNode<K,V>) curr;
+			path.add(inner);
+			curr = inner.getChildForKey(key);
+		}
+
+		Entry<K,V> entry = ((LeafNode<K,V>) curr).getEntry(key);
+		boolean present = (entry != null);
+		V value = present ? entry.value : null;
+
+		// replay the pending messages for this key, oldest first
+		for (int i = path.size() - 1; i >= 0; i--)
+		{
+			for (Message<K,V> msg : path.get(i).buffer)
+			{
+				if (msg.key.compareTo(key) != 0) continue;
+
+				switch (msg.op)
+				{
+				case INSERT:
+					if (!present) value = msg.value;
+					present = true;
+					break;
+
+				case UPSERT:
+					value = msg.value;
+					present = true;
+					break;
+
+				case DELETE:
+					value = null;
+					present = false;
+					break;
+				}
+			}
+		}
+
+		if (!present)
+			throw new RuntimeException("Error - key was not found in the tree");
+
+		return value;
+	}
+
+	/**
+	 * Push every pending message down to the leaf-nodes, leaving all of the buffers empty.
+	 */
+	public void flush( )
+	{
+		while (hasPending(root))
+		{
+			drain((InnerNode<K,V>) root);
+			fixRoot();
+		}
+	}
+
+	/**
+	 * Add a message to the tree.  A tree without inner-nodes has no buffers, so the
+	 * message is applied to the (root) leaf-node directly.
+	 *
+	 * @param msg - the message to add
+	 */
+	private void put(Message<K,V> msg)
+	{
+		if (root == null)
+			root = new LeafNode<K,V>(maxEntries);
+
+		if (root instanceof LeafNode)
+		{
+			LeafNode<K,V> leaf = (LeafNode<K,V>) root;
+			leaf.apply(msg);
+
+			if (leaf.isEmpty())
+				root = null;
+
+			else if (leaf.isOverCapacity()) {
+				InnerNode<K,V> newRoot = newInnerNode( );
+				newRoot.children.add(leaf);
+				root = newRoot;
+				splitNode(newRoot, leaf);
+			}
+			return;
+		}
+
+		InnerNode<K,V> inner = (InnerNode<K,V>) root;
+		inner.buffer.add(msg);
+
+		if (inner.buffer.size() > bufferSize) {
+			flush(inner, bufferSize);
+			fixRoot();
+		}
+	}
+
+	/**
+	 * Move batches of messages out of a node's buffer until it holds no more than
+	 * the given number of messages.  Each batch holds all of the messages for the
+	 * child with the most pending messages.  A batch for a leaf is applied to it,
+	 * while a batch for an inner-node is added to its buffer (which may in turn be flushed).
+	 *
+	 * The children of the node are repaired after each batch, but the node itself may be
+	 * left over-full, or with a single child, which its parent is responsible for fixing.
+	 *
+	 * @param node - the node whose buffer is flushed
+	 * @param limit - the number of messages that may remain in the buffers
+	 */
+	private void flush(InnerNode<K,V> node, int limit)
+	{
+		while ((node.buffer.size() > limit) && (node.children.size() > 0))
+		{
+			// route every message, and find the child with the most pending messages
+			int[] route = new int[node.buffer.size()];
+			int[] pending = new int[node.children.size()];
+			int busiest = 0;
+			for (int i = 0; i < route.length; i++)
+			{
+				route[i] = node.getChildIndexForKey(node.buffer.get(i).key);
+				if (++pending[route[i]] > pending[busiest]) busiest = route[i];
+			}
+
+			// split the buffer into the batch for that child and the rest
+			ArrayList<Message<K,V>> batch = new ArrayList<Message<K,V>>(pending[busiest]);
+			ArrayList<Message<K,V>> rest = new ArrayList<Message<K,V>>(route.length - pending[busiest]);
+			for (int i = 0; i < route.length; i++)
+			{
+				if (route[i] == busiest) batch.add(node.buffer.get(i));
+				else rest.add(node.buffer.get(i));
+			}
+			node.buffer = rest;
+
+			BTreeNode<K,V> child = node.children.get(busiest);
+			if (child instanceof LeafNode)
+			{
+				LeafNode<K,V> leaf = (LeafNode<K,V>) child;
+				for (Message<K,V> msg : batch)
+					leaf.apply(msg);
+
+				if (leaf.isEmpty()) node.deleteChild(leaf);
+				else splitNode(node, leaf);
+			}
+			else
+			{
+				InnerNode<K,V> inner = (InnerNode<K,V>) child;
+				inner.buffer.addAll(batch);
+
+				if (inner.buffer.size() > limit)
+					flush(inner, limit);
+
+				repair(node, inner);
+			}
+		}
+	}
+
+	/**
+	 * Empty the buffers of a node and of every inner-node beneath it.
+	 *
+	 * @param node - the top of the sub-tree to drain
+	 */
+	private void drain(InnerNode<K,V> node)
+	{
+		flush(node, 0);
+
+		for (BTreeNode<K,V> child : new ArrayList<BTreeNode<K,V>>(node.children))
+		{
+			// earlier repairs may have merged this child away
+			if (!(child instanceof InnerNode) || !node.children.contains(child)) continue;
+
+			drain((InnerNode<K,V>) child);
+			repair(node, (InnerNode<K,V>) child);
+		}
+	}
+
+	/**
+	 * Restore the shape of an inner-node after a flush changed its children.  A node that
+	 * lost all of its children is removed, a node with a single child is merged into a
+	 * neighbour, and a node that was over-filled is split.
+	 *
+	 * @param parent - the parent of the node
+	 * @param node - the node to repair
+	 */
+	private void repair(InnerNode<K,V> parent, InnerNode<K,V> node)
+	{
+		// every child was emptied - any pending messages are older than the
+		// parent's messages, so they go back to the front of the parent's buffer
+		if (node.children.size() == 0) {
+			parent.buffer.addAll(0, node.buffer);
+			parent.deleteChild(node);
+			return;
+		}
+
+		// a single remaining child moves into a neighbour, taking the separating key
+		// (and the pending messages) with it.  Without a neighbour, the node is left
+		// for its own parent to merge.
+		if ((node.children.size() == 1) && (parent.children.size() > 1))
+		{
+			int posn = parent.findNode(node);
+			BTreeNode<K,V> remain = node.children.get(0);
+			InnerNode<K,V> sibling;
+
+			if (posn > 0) {
+				sibling = (InnerNode<K,V>) parent.children.get(posn - 1);
+				sibling.keys.add(parent.keys.remove(posn - 1));
+				sibling.children.add(remain);
+			}
+			else {
+				sibling = (InnerNode<K,V>) parent.children.get(1);
+				sibling.keys.add(0, parent.keys.remove(0));
+				sibling.children.add(0, remain);
+			}
+
+			parent.children.remove(posn);
+			sibling.buffer.addAll(node.buffer);
+			splitNode(parent, sibling);
+			return;
+		}
+
+		splitNode(parent, node);
+	}
+
+	/**
+	 * Split an over-full node (repeatedly, if a batch over-filled it by more than one entry),
+	 * adding the new siblings to the parent immediately after the node.
+	 *
+	 * @param parent - the parent of the node
+	 * @param node - the node to split
+	 */
+	@SuppressWarnings("unchecked")
+	private void splitNode(InnerNode<K,V> parent, BTreeNode<K,V> node)
+	{
+		if (!node.isOverCapacity()) return;
+
+		NodeSplitResult<K,V> result = node.split();
+		int posn = parent.findNode(node);
+		parent.keys.add(posn, result.key);
+		parent.children.add(posn + 1, result.sibling);
+
+		splitNode(parent, node);
+		splitNode(parent, result.sibling);
+	}
+
+	/**
+	 * Grow or shrink the tree at the root after a flush.  An over-full root is split
+	 * under a new root, and a root with a single child is replaced by that child.
+	 */
+	private void fixRoot( )
+	{
+		while (root instanceof InnerNode)
+		{
+			InnerNode<K,V> inner = (InnerNode<K,V>) root;
+
+			if (inner.isOverCapacity()) {
+				InnerNode<K,V> newRoot = newInnerNode( );
+				newRoot.children.add(inner);
+				root = newRoot;
+				splitNode(newRoot, inner);
+				continue;
+			}
+
+			if (inner.children.size() > 1)
+				return;
+
+			// the root's messages are newer than those below, so they go to the end
+			// of the child's buffer - or are re-applied once the tree has no buffers
+			if (inner.children.size() == 1) {
+				root = inner.children.get(0);
+				if (root instanceof InnerNode) {
+					((InnerNode<K,V>) root).buffer.addAll(inner.buffer);
+					continue;
+				}
+			}
+			else
+				root = null;
+
+			for (Message<K,V> msg : inner.buffer)
+				put(msg);
+			return;
+		}
+	}
+
+	/**
+	 * Predicate to test if any buffer in the sub-tree still holds messages
+	 */
+	private boolean hasPending(BTreeNode<K,V> node)
+	{
+		if (!(node instanceof InnerNode)) return false;
+
+		InnerNode<K,V> inner = (InnerNode<K,V>) node;
+		if (inner.buffer.size() > 0) return true;
+
+		for (BTreeNode<K,V> child : inner.children)
+			if (hasPending(child)) return true;
+
+		return false;
+	}
+
+	/**
+	 * Create an inner-node with an empty message buffer
+	 */
+	private InnerNode<K,V> newInnerNode( )
+	{
+		InnerNode<K,V> inner = new InnerNode<K,V>(maxEntries);
+		inner.buffer = new ArrayList<Message<K,V>>( );
+		return inner;
+	}
+
+	/**
+	 * Provide a string representation of the B-Tree
+	 */
+	@Override
+	public String toString( )
+	{
+		return root.toString();
+	}
+}
@@ -0,0 +1,131 @@
+package btree;
+
+import java.util.ArrayList;
+
+/**
+ * Builds a B-Tree bottom-up from key/value pairs supplied in ascending key order.
+ *
+ * This is an internal class that should not be used outside the btree package.
+ *
+ * Rather than descending the tree (and splitting nodes) once per pair, the loader
+ * fills each leaf-node in turn, and once all of the leaves are built, groups them
+ * under inner-nodes, one level at a time, until a single root remains.  Every node
+ * is written exactly once, so loading is bounded by reading the input.
+ *
+ * @author tbriggs
+ *
+ * @param <K> - The key type of the key-value pair
+ * @param <V> - The value type of the key-value pair
+ */
+class BulkLoader<K extends Comparable<K>, V> {
+
+	final int maxEntries;			// the maximum number of entries in the leaf-nodes
+	final int maxInnerEntries;		// the maximum number of keys in the inner-nodes
+
+	ArrayList<BTreeNode<K,V>> leaves;	// the leaves built so far, in key order
+	ArrayList<K> minKeys;				// the least key of each leaf
+	LeafNode<K,V> leaf;					// the leaf being filled
+	K lastKey;							// the last key added
+
+
+	/**
+	 * Construct a loader for a tree with the given degree
+	 * @param maxEntries - the maximum number of entries in the nodes
+	 */
+	BulkLoader(int maxEntries)
+	{
+		this(maxEntries, maxEntries);
+	}
+
+	/**
+	 * Construct a loader for a tree with the given degrees
+	 * @param maxInnerEntries - the maximum number of keys in the inner-nodes
+	 * @param maxEntries - the maximum number of entries in the leaf-nodes
+	 */
+	BulkLoader(int maxInnerEntries, int maxEntries)
+	{
+		this.maxInnerEntries = maxInnerEntries;
+		this.maxEntries = maxEntries;
+		leaves = new ArrayList<BTreeNode<K,V>>( );
+		minKeys = new ArrayList<K>( );
+		leaf = null;
+		lastKey = null;
+	}
+
+	/**
+	 * Add the next key/value pair.  Keys must be unique and arrive in ascending order.
+	 * @param key - the key to add
+	 * @param value - the associated value
+	 */
+	void add(K key, V value)
+	{
+		if ((lastKey != null) && (key.compareTo(lastKey) <= 0))
+			throw new RuntimeException("Error - bulk-loaded keys must be unique and in ascending order");
+
+		// start a new leaf once the current one is full
+		if ((leaf == null) || (leaf.children.size() >= maxEntries)) {
+			leaf = new LeafNode<K,V>(maxEntries);
+			leaves.add(leaf);
+			minKeys.add(key);
+		}
+
+		leaf.children.add(new Entry<K,V>(key, value));
+		lastKey = key;
+	}
+
+	/**
+	 * Add the next key/value pair, with the time it expires.  Keys must be unique and arrive
+	 * in ascending order.
+	 * @param key - the key to add
+	 * @param value - the associated value
+	 * @param expires - the time the pair expires, or 0 if it never does
+	 */
+	void add(K key, V value, long expires)
+	{
+		add(key, value);
+		leaf.children.get(leaf.children.size() - 1).expires = expires;
+	}
+
+	/**
+	 * Build the inner-nodes above the leaves, and return the root of the tree
+	 * @return the new root, or null if no pairs were added
+	 */
+	BTreeNode<K,V> finish( )
+	{
+		if (leaves.isEmpty()) return null;
+
+		ArrayList<BTreeNode<K,V>> level = leaves;
+		ArrayList<K> mins = minKeys;
+
+		while (level.size() > 1)
+		{
+			ArrayList<BTreeNode<K,V>> parents = new ArrayList<BTreeNode<K,V>>( );
+			ArrayList<K> parentMins = new ArrayList<K>( );
+
+			int i = 0;
+			while (i < level.size())
+			{
+				// take up to a full node of children, but never leave a
+				// single child behind for the last parent of the level
+				int n = Math.min(maxInnerEntries + 1, level.size() - i);
+				if (level.size() - i - n == 1) n--;
+
+				InnerNode<K,V> inner = new InnerNode<K,V>(maxInnerEntries);
+				inner.children.add(level.get(i));
+				for (int j = i + 1; j < i + n; j++) {
+					inner.keys.add(mins.get(j));
+					inner.children.add(level.get(j));
+				}
+
+				parents.add(inner);
+				parentMins.add(mins.get(i));
+				i += n;
+			}
+
+			level = parents;
+			mins = parentMins;
+		}
+
+		return level.get(0);
+	}
+}
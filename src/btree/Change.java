@@ -0,0 +1,78 @@
+package btree;
+
+/**
+ * A change made to a {@link BTree}, as published on its {@link ChangeFeed}.
+ *
+ *   Each change carries the sequence number it was given by the feed; the numbers start
+ *   at 1 and go up by one with each change, in the order the changes were made to the
+ *   tree.  A consumer that has applied every change up to a sequence number can resume
+ *   the feed from the next one.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <K> - The key type of the key-value pair
+ * @param <V> - The value type of the key-value pair
+ */
+public final class Change<K, V> {
+
+	/**
+	 * The kind of change
+	 */
+	public enum Type {
+		INSERT,		// a pair was added
+		UPDATE,		// the value of an existing key was replaced
+		DELETE		// a key was removed (the change carries no value)
+	}
+
+	private final long sequence;
+	private final Type type;
+	private final K key;
+	private final V value;
+
+	Change(long sequence, Type type, K key, V value)
+	{
+		this.sequence = sequence;
+		this.type = type;
+		this.key = key;
+		this.value = value;
+	}
+
+	/**
+	 * The position of the change in the feed
+	 */
+	public long getSequence( )
+	{
+		return sequence;
+	}
+
+	/**
+	 * The kind of change
+	 */
+	public Type getType( )
+	{
+		return type;
+	}
+
+	/**
+	 * The key that was changed
+	 */
+	public K getKey( )
+	{
+		return key;
+	}
+
+	/**
+	 * The new value of the key, or null for a delete
+	 */
+	public V getValue( )
+	{
+		return value;
+	}
+
+	public String toString( )
+	{
+		return sequence + ":" + type + "(" + key + ")";
+	}
+}
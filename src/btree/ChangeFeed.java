@@ -0,0 +1,189 @@
+package btree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A bounded, ordered feed of the changes made to a {@link BTree}, started by
+ * {@link BTree#useChangeFeed(int)}.
+ *
+ *   Every insert, update and delete made to the tree is numbered and appended to the feed,
+ *   which holds the most recent changes in a ring of fixed size.  A downstream cache or
+ *   replica subscribes from a sequence number and pulls the changes in batches, at its own
+ *   pace: asking for at most n changes at a time is its backpressure.  The tree never waits
+ *   for a consumer, so a consumer that falls more than the size of the ring behind can no
+ *   longer be brought up to date from the feed - its next poll fails, and it must re-read
+ *   the tree (noting {@link #getNextSequence()} first) before subscribing again.
+ *
+ *   Publishing a change costs the tree a short hold of the lock of the feed.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <K> - The key type of the key-value pair
+ * @param <V> - The value type of the key-value pair
+ */
+public class ChangeFeed<K, V> {
+
+	private final Change<?,?>[] ring;	// the most recent changes, by sequence number modulo the size
+	private long next = 1;				// the sequence number of the next change
+
+	private final ReentrantLock lock = new ReentrantLock( );
+	private final Condition published = lock.newCondition( );
+
+
+	/**
+	 * Construct an empty feed
+	 * @param capacity - the number of changes the feed holds
+	 */
+	ChangeFeed(int capacity)
+	{
+		if (capacity < 1)
+			throw new RuntimeException("Error - the feed must hold at least one change");
+		ring = new Change<?,?>[capacity];
+	}
+
+	/**
+	 * Append a change to the feed, waking any consumer waiting for it
+	 */
+	void publish(Change.Type type, K key, V value)
+	{
+		lock.lock();
+		try {
+			ring[(int) (next % ring.length)] = new Change<K,V>(next, type, key, value);
+			next++;
+			published.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The sequence number of the oldest change the feed still holds (or of the next
+	 * change, if it holds none)
+	 */
+	public long getFirstSequence( )
+	{
+		lock.lock();
+		try {
+			return Math.max(1, next - ring.length);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The sequence number the next change will be given
+	 */
+	public long getNextSequence( )
+	{
+		lock.lock();
+		try {
+			return next;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Subscribe to the changes from a sequence number onwards
+	 * @param from - the sequence number of the first change to deliver
+	 * @return the subscription
+	 */
+	public Subscription subscribe(long from)
+	{
+		if (from < getFirstSequence())
+			throw new RuntimeException("Error - the feed no longer holds change " + from);
+		return new Subscription(from);
+	}
+
+	/**
+	 * Copy up to max changes from a position, under the lock
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Change<K,V>> read(long position, int max)
+	{
+		if (position < Math.max(1, next - ring.length))
+			throw new RuntimeException("Error - the subscription has fallen behind the feed, at change " + position);
+
+		int n = (int) Math.min(max, next - position);
+		List<Change<K,V>> batch = new ArrayList<Change<K,V>>(n);
+		for (long s = position; s < position + n; s++)
+			batch.add((Change<K,V>) ring[(int) (s % ring.length)]);
+		return batch;
+	}
+
+
+	/**
+	 * A consumer of the feed, delivering the changes in order from the sequence number it
+	 * was subscribed at.  A subscription should only be used by one thread at a time.
+	 */
+	public class Subscription {
+
+		private long position;		// the sequence number of the next change to deliver
+
+		Subscription(long from)
+		{
+			position = from;
+		}
+
+		/**
+		 * The sequence number of the next change the subscription will deliver
+		 */
+		public long getPosition( )
+		{
+			return position;
+		}
+
+		/**
+		 * Deliver the next changes, without waiting
+		 * @param max - the most changes to deliver
+		 * @return the changes, in order (empty if there are none yet)
+		 */
+		public List<Change<K,V>> poll(int max)
+		{
+			lock.lock();
+			try {
+				List<Change<K,V>> batch = read(position, max);
+				position += batch.size();
+				return batch;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Deliver the next changes, waiting for at least one to be published
+		 * @param max - the most changes to deliver
+		 * @param timeout - the longest time to wait
+		 * @param unit - the unit of the timeout
+		 * @return the changes, in order (empty if none were published before the timeout)
+		 * @throws InterruptedException if the thread is interrupted while waiting
+		 */
+		public List<Change<K,V>> poll(int max, long timeout, TimeUnit unit) throws InterruptedException
+		{
+			long nanos = unit.toNanos(timeout);
+			lock.lock();
+			try {
+				while ((next <= position) && (nanos > 0))
+					nanos = published.awaitNanos(nanos);
+
+				List<Change<K,V>> batch = read(position, max);
+				position += batch.size();
+				return batch;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+}
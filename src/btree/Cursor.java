@@ -0,0 +1,221 @@
+package btree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A cursor over the entries of a B-Tree, in key order.
+ *
+ * This is an internal class that should not be used outside the btree package.
+ *
+ * The leaf-nodes are not linked to each other, so the cursor keeps the path of
+ * inner-nodes (and the child followed in each) down to its current leaf.  Moving to
+ * the next leaf climbs the path until there is a child to the right, and then descends
+ * to the left-most leaf beneath it.  Any structural change to the tree (a split or a
+ * deleted node) invalidates the cursor.
+ *
+ * @author tbriggs
+ *
+ * @param <K> - The key type of the key-value pair
+ * @param <V> - The value type of the key-value pair
+ */
+class Cursor<K extends Comparable<K>, V> implements Iterator<Entry<K,V>> {
+
+	final BTree<K,V> tree;
+
+	ArrayList<InnerNode<K,V>> path;	// the inner-nodes from the root down to the leaf
+	int[] index;					// the child followed in each node of the path
+
+	LeafNode<K,V> leaf;				// the current leaf, or null when the cursor is exhausted
+	int pos;						// the position of the next entry in the leaf
+
+	final long now;					// the time the expiry of the entries is judged at
+
+
+	/**
+	 * Construct a cursor positioned at the first (least) entry of the tree
+	 * @param tree - the tree to traverse
+	 */
+	Cursor(BTree<K,V> tree)
+	{
+		this.tree = tree;
+		now = tree.now();
+		path = new ArrayList<InnerNode<K,V>>( );
+		index = new int[8];
+		first();
+	}
+
+	/**
+	 * Position the cursor at the first (least) entry of the tree
+	 */
+	void first( )
+	{
+		path.clear();
+		leaf = null;
+		pos = 0;
+
+		if (tree.root != null)
+			descendFirst(tree.root);
+		skipExpired();
+	}
+
+	/**
+	 * Position the cursor at the first entry with a key greater than or equal to
+	 * the given key.
+	 * @param key - the key to seek to
+	 */
+	void seek(K key)
+	{
+		path.clear();
+		leaf = null;
+		pos = 0;
+
+		if (tree.root == null) return;
+
+		BTreeNode<K,V> curr = tree.root;
+		while (curr instanceof InnerNode)
+		{
+			InnerNode<K,V> inner = (InnerNode<K,V>) curr;
+			int i = inner.getChildIndexForKey(key);
+			push(inner, i);
+			curr = inner.children.get(i);
+		}
+
+		leaf = (LeafNode<K,V>) curr;
+		while ((pos < leaf.children.size()) && (leaf.children.get(pos).key.compareTo(key) < 0))
+			pos++;
+
+		// every key in this leaf is less than the key, so start at the next one
+		if (pos >= leaf.children.size())
+			nextLeaf();
+		skipExpired();
+	}
+
+	/**
+	 * Move the cursor forward to the first entry with a key greater than or equal to the
+	 * given key, which should not be less than the key of the next entry.  A key within
+	 * the current leaf is found by a binary search of the leaf; a key beyond it is sought
+	 * from the root, skipping the leaves in between without visiting them.
+	 * @param key - the key to advance to
+	 */
+	void advanceTo(K key)
+	{
+		if (!hasNext()) return;
+
+		if (leaf.children.get(leaf.children.size() - 1).key.compareTo(key) < 0) {
+			seek(key);
+			return;
+		}
+
+		int lo = pos, hi = leaf.children.size() - 1;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (leaf.children.get(mid).key.compareTo(key) < 0) lo = mid + 1;
+			else hi = mid;
+		}
+		pos = lo;
+		skipExpired();
+	}
+
+	/**
+	 * Return the next entry, without advancing the cursor
+	 */
+	Entry<K,V> peek( )
+	{
+		if (!hasNext())
+			throw new NoSuchElementException( );
+		return leaf.children.get(pos);
+	}
+
+	/**
+	 * Move the cursor to the first entry of the next leaf-node (in key order)
+	 * @return the next leaf, or null if the cursor was on the last leaf
+	 */
+	LeafNode<K,V> nextLeaf( )
+	{
+		pos = 0;
+
+		// climb until there is a child to the right of the one followed
+		int depth = path.size() - 1;
+		while ((depth >= 0) && (index[depth] >= path.get(depth).children.size() - 1))
+			path.remove(depth--);
+
+		if (depth < 0) {
+			leaf = null;
+			return null;
+		}
+
+		index[depth]++;
+		descendFirst(path.get(depth).children.get(index[depth]));
+		return leaf;
+	}
+
+	/**
+	 * Predicate to test if there is another entry
+	 */
+	@Override
+	public boolean hasNext( )
+	{
+		return (leaf != null) && (pos < leaf.children.size());
+	}
+
+	/**
+	 * Return the next entry and advance the cursor
+	 */
+	@Override
+	public Entry<K,V> next( )
+	{
+		if (!hasNext())
+			throw new NoSuchElementException( );
+
+		Entry<K,V> entry = leaf.children.get(pos++);
+		if (pos >= leaf.children.size())
+			nextLeaf();
+		skipExpired();
+
+		return entry;
+	}
+
+	/**
+	 * Move the cursor past any expired entries (which have not been swept yet)
+	 */
+	private void skipExpired( )
+	{
+		while ((leaf != null) && (pos < leaf.children.size()) && leaf.children.get(pos).isExpired(now))
+		{
+			if (++pos >= leaf.children.size())
+				nextLeaf();
+		}
+	}
+
+	/**
+	 * Descend from the given node to its left-most leaf, extending the path
+	 * @param node - the node to start from
+	 */
+	private void descendFirst(BTreeNode<K,V> node)
+	{
+		while (node instanceof InnerNode)
+		{
+			InnerNode<K,V> inner = (InnerNode<K,V>) node;
+			push(inner, 0);
+			node = inner.children.get(0);
+		}
+
+		leaf = (LeafNode<K,V>) node;
+	}
+
+	/**
+	 * Add an inner-node (and the child followed) to the end of the path
+	 */
+	private void push(InnerNode<K,V> inner, int child)
+	{
+		if (path.size() == index.length)
+			index = Arrays.copyOf(index, index.length * 2);
+
+		index[path.size()] = child;
+		path.add(inner);
+	}
+}
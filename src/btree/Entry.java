@@ -12,6 +12,7 @@ class Entry<K extends Comparable<K>,V> implements Comparable<Entry<K,V>>
 {
 	K key;
 	V value;
+	long expires;		// the time the entry expires (in milliseconds since the epoch), or 0 if it never does
 
 	Entry(K key, V value)
 	{
@@ -19,6 +20,15 @@ class Entry<K extends Comparable<K>,V> implements Comparable<Entry<K,V>>
 		this.value = value;
 	}
 	
+	/**
+	 * Predicate to test if the entry has expired
+	 * @param now - the current time, or 0 if the tree holds no entries that can expire
+	 */
+	boolean isExpired(long now)
+	{
+		return (expires != 0) && (expires <= now);
+	}
+
 	public String toString( ) {
 		return "(" + key.toString() + "->" + value.toString() + ")";
 	}
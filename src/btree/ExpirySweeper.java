@@ -0,0 +1,156 @@
+package btree;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A background thread that removes the expired pairs from a {@link BTree}.
+ *
+ *   Pairs inserted with a time-to-live stop being found as soon as they expire, but they
+ *   stay in their leaves until they are swept.  The sweeper wakes up once per period and
+ *   sweeps the whole tree, a leaf at a time, as {@link BTree#expire()} does.  The tree is
+ *   not thread-safe, so the sweeper holds the lock that guards it - the same lock the rest
+ *   of the application takes around its use of the tree - for one leaf at a time, letting
+ *   the other users of the tree in between the leaves.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <K> - A Comparable type for the key of the key-value pair
+ * @param <V> - The value for the key-value pair for this type of B-Tree
+ */
+public class ExpirySweeper<K extends Comparable<K>, V> implements AutoCloseable {
+
+	final BTree<K,V> tree;			// the tree to sweep
+	final Lock treeLock;			// the lock that guards the tree
+	final long period;				// the time (ms) between sweeps
+
+	private final AtomicLong swept = new AtomicLong( );	// the pairs removed by the sweeper
+	private volatile boolean closed = false;
+	private final ReentrantLock signal = new ReentrantLock( );
+	private final Condition wake = signal.newCondition( );
+	private final Thread sweeper;
+
+
+	/**
+	 * Start sweeping a tree
+	 *
+	 * @param tree - the tree to sweep
+	 * @param treeLock - the lock that guards the tree
+	 * @param period - the time between sweeps
+	 * @param unit - the unit of the period
+	 */
+	public ExpirySweeper(BTree<K,V> tree, Lock treeLock, long period, TimeUnit unit)
+	{
+		if (period <= 0)
+			throw new RuntimeException("Error - the period of the sweeps must be positive");
+
+		this.tree = tree;
+		this.treeLock = treeLock;
+		this.period = unit.toMillis(period);
+
+		sweeper = new Thread(new Runnable() {
+			public void run() { runSweeper(); }
+		}, "btree-expiry");
+		sweeper.setDaemon(true);
+		sweeper.start();
+	}
+
+	/**
+	 * The number of expired pairs the sweeper has removed
+	 */
+	public long getSweptCount( )
+	{
+		return swept.get();
+	}
+
+	/**
+	 * Sweep the whole tree now, on the calling thread
+	 * @return the number of pairs removed
+	 */
+	public int sweepNow( )
+	{
+		long now = tree.clock.millis();
+		int removed = 0;
+		K from = null;
+		boolean first = true;
+
+		// one leaf for each hold of the lock; the next leaf is found again from its
+		// least key, as the tree may have changed while the lock was released
+		while (first || (from != null))
+		{
+			treeLock.lock();
+			try {
+				if (!tree.expiring || (tree.root == null))
+					break;
+				if (first)
+					from = tree.root.getMinKey();
+
+				long before = tree.expired;
+				from = tree.sweep(from, now);
+				removed += tree.expired - before;
+			}
+			finally {
+				treeLock.unlock();
+			}
+			first = false;
+		}
+
+		swept.addAndGet(removed);
+		return removed;
+	}
+
+	/**
+	 * Stop the sweeper, waiting for any sweep in progress to finish
+	 */
+	@Override
+	public void close( )
+	{
+		closed = true;
+
+		signal.lock();
+		try {
+			wake.signalAll();
+		}
+		finally {
+			signal.unlock();
+		}
+
+		try {
+			sweeper.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The body of the background thread - sweep once per period, until closed
+	 */
+	private void runSweeper( )
+	{
+		while (!closed)
+		{
+			signal.lock();
+			try {
+				long wait = TimeUnit.MILLISECONDS.toNanos(period);
+				while (!closed && (wait > 0))
+					wait = wake.awaitNanos(wait);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			finally {
+				signal.unlock();
+			}
+
+			if (!closed)
+				sweepNow();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package btree;
+
+import java.util.Arrays;
+
+/**
+ * The path from the root of a B-Tree to the leaf a key was last added to, along with the
+ * range of keys that leaf covers.
+ *
+ * This is an internal class that should not be used outside the btree package.
+ *
+ * Keys that arrive in order - timestamps, sequence numbers - land in the same leaf over and
+ * over.  The tree keeps the finger of the leaf its inserts last split, and a key inside its
+ * range goes straight to the leaf, without comparing it to the keys of the inner-nodes on
+ * the way down.  The finger is only valid while the structure of the tree is unchanged, so
+ * the tree drops it whenever a node is split or removed.
+ *
+ * Only inserts build a finger.  Lookups may share the tree, so each reading thread keeps
+ * a {@link LookupFinger} of its own instead, and a lookup writes nothing to the tree.
+ *
+ * @author tbriggs
+ *
+ * @param <K> - The key type of the key-value pair
+ * @param <V> - The value type of the key-value pair
+ */
+final class Finger<K extends Comparable<K>, V> {
+
+	final InnerNode<K,V>[] nodes;	// the inner-nodes on the path, from the root
+	final int[] index;				// the child followed in each of the inner-nodes
+	final int depth;				// the number of inner-nodes on the path
+
+	final LeafNode<K,V> leaf;		// the leaf at the end of the path
+	final K low;					// the least key the leaf covers (inclusive), or null if unbounded
+	final K high;					// the key the leaf covers up to (exclusive), or null if unbounded
+
+
+	/**
+	 * Descend from the root to the leaf that should contain a key, following the
+	 * separating keys, and recording the path and the bounds of the leaf
+	 * @param root - the root of the tree (which must not be empty)
+	 * @param key - the key to descend to
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	Finger(BTreeNode<K,V> root, K key)
+	{
+		InnerNode<K,V>[] n = (InnerNode<K,V>[]) new InnerNode[8];
+		int[] x = new int[8];
+		int d = 0;
+		K lo = null, hi = null;
+
+		// each level narrows the range to the keys either side of the child followed
+		BTreeNode<K,V> curr = root;
+		while (curr instanceof InnerNode)
+		{
+			InnerNode<K,V> inner = (InnerNode<K,V>) curr;
+			int i = inner.getChildIndexForKey(key);
+			if (i > 0)
+				lo = inner.keys.get(i - 1);
+			if (i < inner.keys.size())
+				hi = inner.keys.get(i);
+
+			if (d == n.length) {
+				n = Arrays.copyOf(n, d * 2);
+				x = Arrays.copyOf(x, d * 2);
+			}
+			n[d] = inner;
+			x[d++] = i;
+			curr = inner.children.get(i);
+		}
+
+		nodes = n;
+		index = x;
+		depth = d;
+		leaf = (LeafNode<K,V>) curr;
+		low = lo;
+		high = hi;
+	}
+
+	/**
+	 * Predicate to test if a key falls in the range of the leaf
+	 */
+	boolean covers(K key)
+	{
+		return ((low == null) || (key.compareTo(low) >= 0)) &&
+				((high == null) || (key.compareTo(high) < 0));
+	}
+
+	/**
+	 * Predicate to test if the filter of the leaf (if the tree keeps one) might hold a key
+	 */
+	boolean mightContain(K key)
+	{
+		return (depth == 0) || nodes[depth - 1].mightContain(index[depth - 1], key);
+	}
+}
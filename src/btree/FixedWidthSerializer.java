@@ -0,0 +1,48 @@
+package btree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Serializer} whose encodings all have the same width.
+ *
+ * The encoded value in slot i of a run of fixed-width encodings is found at
+ * (start + i * width), so a node page can be binary searched in place.  The
+ * {@link #compareAt(ByteBuffer, int, Object)} method compares an encoded value
+ * with a key, without decoding it into an object.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <T> - the type that is encoded
+ */
+public interface FixedWidthSerializer<T> extends Serializer<T> {
+
+	/**
+	 * Read the encoded value at an absolute offset, without moving the position of the buffer
+	 * @param buf - the buffer to read from
+	 * @param offset - the offset of the encoding
+	 * @return the decoded value
+	 */
+	T readAt(ByteBuffer buf, int offset);
+
+	/**
+	 * Compare the encoded value at an absolute offset with the given value, in the natural
+	 * ordering of the type, without decoding it (or moving the position of the buffer)
+	 * @param buf - the buffer holding the encoding
+	 * @param offset - the offset of the encoding
+	 * @param value - the value to compare with
+	 * @return a negative number, zero, or a positive number as the encoded value is less
+	 * 		than, equal to, or greater than the given value
+	 */
+	int compareAt(ByteBuffer buf, int offset, T value);
+
+	/**
+	 * The size of every encoding is the fixed width
+	 */
+	@Override
+	default int sizeOf(T value)
+	{
+		return width();
+	}
+}
@@ -0,0 +1,346 @@
+package btree;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * A read-only copy of a {@link BTree} (the leader), kept current by tailing the
+ * {@link ChangeFeed} of the leader on a background thread.
+ *
+ *   The follower starts from a copy of the leader, taken under the lock that guards the
+ *   leader, noting the sequence number of the next change at the same time.  From then on
+ *   the thread pulls the changes in batches and applies each batch to its own tree through
+ *   the ordinary upsert and delete paths, under a write lock, so a reader sees either all
+ *   of a batch or none of it.  Reads are served from the follower's tree under a read lock;
+ *   they are as current as the last batch applied, which is reported as the lag - the
+ *   number of changes the leader has made that the follower has not yet applied.
+ *
+ *   A follower that falls more than the size of the feed behind copies the leader again.
+ *   A leader that fails can be replaced by promoting its follower: the changes still in
+ *   the feed are applied, the thread stops, and the follower's tree is handed over as it
+ *   is, without being rebuilt.
+ *
+ *   The feed carries no expiry times, so a pair inserted on the leader with a
+ *   time-to-live never expires on the follower - it is removed when the leader sweeps it.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <K> - A Comparable type for the key of the key-value pair
+ * @param <V> - The value for the key-value pair for this type of B-Tree
+ */
+public class Follower<K extends Comparable<K>, V> implements AutoCloseable {
+
+	public static final int DEFAULT_BATCH = 1024;	// the most changes applied under one hold of the lock
+	static final long POLL_MS = 100;				// the longest wait for a change before checking for close
+
+	final BTree<K,V> leader;		// the tree followed
+	final Lock leaderLock;			// the lock that guards the leader
+	final int batch;				// the most changes applied at a time
+
+	volatile BTree<K,V> tree;		// the copy of the leader
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock( );
+	private volatile ChangeFeed<K,V> feed;				// the feed of the leader
+	private ChangeFeed<K,V>.Subscription subscription;	// the position in the feed - used by the thread alone
+	private volatile long applied;		// the sequence number of the next change to apply
+	private volatile long resyncs = 0;	// the times the leader was copied after the follower fell behind
+	private final ReentrantLock signal = new ReentrantLock( );
+	private final Condition progress = signal.newCondition( );	// signalled as each batch is applied
+
+	private volatile boolean closed = false;
+	private volatile boolean promoted = false;
+	private final Thread follower;
+
+
+	/**
+	 * Start following a tree, applying up to {@link #DEFAULT_BATCH} changes at a time
+	 *
+	 * @param leader - the tree to follow, which must publish a change feed
+	 * @param leaderLock - the lock that guards the leader
+	 */
+	public Follower(BTree<K,V> leader, Lock leaderLock)
+	{
+		this(leader, leaderLock, DEFAULT_BATCH);
+	}
+
+	/**
+	 * Start following a tree
+	 *
+	 * @param leader - the tree to follow, which must publish a change feed
+	 * @param leaderLock - the lock that guards the leader
+	 * @param batch - the most changes to apply under one hold of the follower's lock
+	 */
+	public Follower(BTree<K,V> leader, Lock leaderLock, int batch)
+	{
+		if (batch < 1)
+			throw new RuntimeException("Error - the batch must hold at least one change");
+
+		this.leader = leader;
+		this.leaderLock = leaderLock;
+		this.batch = batch;
+		copyLeader();
+
+		follower = new Thread(new Runnable() {
+			public void run() { runFollower(); }
+		}, "btree-follower");
+		follower.setDaemon(true);
+		follower.start();
+	}
+
+	/**
+	 * Search the follower for the indicated key and return the associated value.
+	 *
+	 * @param key - the key to find
+	 * @return the value
+	 */
+	public V find(K key)
+	{
+		lock.readLock().lock();
+		try {
+			return tree.find(key);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Predicate to test if the follower holds the indicated key
+	 */
+	public boolean containsKey(K key)
+	{
+		lock.readLock().lock();
+		try {
+			return tree.containsKey(key);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The number of pairs the follower holds
+	 */
+	public int size( )
+	{
+		lock.readLock().lock();
+		try {
+			return tree.size();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The sequence number of the next change the follower will apply - every change
+	 * before it is visible to the readers of the follower
+	 */
+	public long getAppliedSequence( )
+	{
+		return applied;
+	}
+
+	/**
+	 * The replication lag: the number of changes made to the leader that are not yet
+	 * visible on the follower
+	 */
+	public long getLag( )
+	{
+		if (promoted)
+			return 0;
+		return Math.max(0, feed.getNextSequence() - applied);
+	}
+
+	/**
+	 * The number of times the follower fell behind the feed and copied the leader again
+	 */
+	public long getResyncCount( )
+	{
+		return resyncs;
+	}
+
+	/**
+	 * Wait for the follower to apply every change up to (but not including) a sequence
+	 * number, such as the {@link ChangeFeed#getNextSequence()} of the leader after a write
+	 *
+	 * @param sequence - the sequence number to catch up to
+	 * @param timeout - the longest time to wait
+	 * @param unit - the unit of the timeout
+	 * @return true if the follower caught up, false if the time ran out first
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public boolean awaitSequence(long sequence, long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long nanos = unit.toNanos(timeout);
+		signal.lock();
+		try {
+			while ((applied < sequence) && !promoted && (nanos > 0))
+				nanos = progress.awaitNanos(nanos);
+			return applied >= sequence;
+		}
+		finally {
+			signal.unlock();
+		}
+	}
+
+	/**
+	 * Make the follower the new leader.  The changes still held by the feed of the old
+	 * leader are applied, the thread stops following, and the follower's tree is returned
+	 * as it stands.  The old leader should no longer be written to.
+	 *
+	 * @return the follower's tree, to be used (and locked) as the leader from now on
+	 */
+	public BTree<K,V> promote( )
+	{
+		close();
+
+		lock.writeLock().lock();
+		try {
+			while (!promoted)
+			{
+				try {
+					if (apply(subscription.poll(batch)) == 0)
+						promoted = true;
+				}
+				catch (RuntimeException e) {
+					// the changes were lost from the feed, so only a copy will do
+					copyLeader();
+					resyncs++;
+				}
+			}
+			wakeWaiters();
+			return tree;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Stop following the leader, waiting for the batch in progress to be applied.  The
+	 * follower still serves reads, as of the last change it applied.
+	 */
+	@Override
+	public void close( )
+	{
+		closed = true;
+		try {
+			follower.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Copy the leader, and subscribe to its feed from the next change
+	 */
+	private void copyLeader( )
+	{
+		BTree<K,V> copy = new BTree<K,V>(leader.maxInnerEntries, leader.maxEntries);
+		BulkLoader<K,V> loader = new BulkLoader<K,V>(leader.maxInnerEntries, leader.maxEntries);
+
+		leaderLock.lock();
+		try {
+			if (leader.feed == null)
+				throw new RuntimeException("Error - the leader does not publish a change feed, see useChangeFeed()");
+
+			long next = leader.feed.getNextSequence();
+			Cursor<K,V> cursor = new Cursor<K,V>(leader);
+			while (cursor.hasNext())
+			{
+				Entry<K,V> entry = cursor.next();
+				loader.add(entry.key, entry.value);
+			}
+			feed = leader.feed;
+			subscription = feed.subscribe(next);
+		}
+		finally {
+			leaderLock.unlock();
+		}
+		copy.root = loader.finish();
+
+		lock.writeLock().lock();
+		try {
+			tree = copy;
+			applied = subscription.getPosition();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		wakeWaiters();
+	}
+
+	/**
+	 * Wake the threads waiting for the follower to catch up
+	 */
+	private void wakeWaiters( )
+	{
+		signal.lock();
+		try {
+			progress.signalAll();
+		}
+		finally {
+			signal.unlock();
+		}
+	}
+
+	/**
+	 * Apply a batch of changes to the follower's tree, under the write lock
+	 * @return the number of changes applied
+	 */
+	private int apply(List<Change<K,V>> changes)
+	{
+		if (changes.isEmpty())
+			return 0;
+
+		lock.writeLock().lock();
+		try {
+			for (Change<K,V> change : changes)
+			{
+				if (change.getType() == Change.Type.DELETE)
+					tree.delete(change.getKey());
+				else
+					tree.upsert(change.getKey(), change.getValue());
+			}
+			applied = subscription.getPosition();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		wakeWaiters();
+		return changes.size();
+	}
+
+	/**
+	 * The body of the background thread - apply the changes as they are published,
+	 * until closed
+	 */
+	private void runFollower( )
+	{
+		while (!closed)
+		{
+			List<Change<K,V>> changes;
+			try {
+				changes = subscription.poll(batch, POLL_MS, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (RuntimeException e) {
+				// the follower has fallen behind the feed, so start again from a copy
+				copyLeader();
+				resyncs++;
+				continue;
+			}
+			apply(changes);
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package btree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+
+/**
+ * An immutable, read-only B-Tree, built by {@link BTree#freeze()}.
+ *
+ *   A tree that is only ever queried does not need room to grow, or nodes that can be
+ *   split and merged.  The frozen tree packs every leaf, in key order, into one pair of
+ *   contiguous arrays (the keys, and the values), so a range scan is a walk along the
+ *   arrays, rather than a climb up and down the inner-nodes.
+ *
+ *   The leaves are cut into blocks of the degree of the original tree, and the first key
+ *   of each block is held in an index laid out in Eytzinger (breadth-first) order: the
+ *   root at slot 1, and the children of slot k at 2k and 2k+1.  A search of the index
+ *   only ever moves forward through the array, and the slots of the first few levels -
+ *   which every search visits - share a handful of cache lines.  The search then
+ *   finishes with a binary search of the one block the key can be in.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <K> - A Comparable type for the key of the key-value pair
+ * @param <V> - The value for the key-value pair for this type of B-Tree
+ */
+public final class FrozenBTree<K extends Comparable<K>, V> {
+
+	final Object[] keys;		// every key, in order
+	final Object[] values;		// the value of each key
+	final int block;			// the number of keys in each block
+
+	final Object[] index;		// the first key of each block, in Eytzinger order (from slot 1)
+	final int[] blockOf;		// the block of each slot of the index
+
+
+	/**
+	 * Freeze the current contents of a tree
+	 * @param tree - the tree to copy
+	 */
+	FrozenBTree(BTree<K,V> tree)
+	{
+		ArrayList<Object> k = new ArrayList<Object>( );
+		ArrayList<Object> v = new ArrayList<Object>( );
+		Cursor<K,V> cursor = new Cursor<K,V>(tree);
+		while (cursor.hasNext())
+		{
+			Entry<K,V> entry = cursor.next();
+			k.add(entry.key);
+			v.add(entry.value);
+		}
+
+		keys = k.toArray();
+		values = v.toArray();
+		block = Math.max(1, tree.maxEntries);
+
+		int blocks = (keys.length + block - 1) / block;
+		index = new Object[blocks + 1];
+		blockOf = new int[blocks + 1];
+		layout(1, 0);
+	}
+
+	/**
+	 * Fill the index in Eytzinger order - an in-order walk of the implicit tree
+	 * visits the blocks in key order.
+	 * @param slot - the slot to fill (along with its subtree)
+	 * @param next - the next block to place
+	 * @return the next block to place after the subtree
+	 */
+	private int layout(int slot, int next)
+	{
+		if (slot >= index.length)
+			return next;
+
+		next = layout(2 * slot, next);
+		index[slot] = keys[next * block];
+		blockOf[slot] = next;
+		return layout(2 * slot + 1, next + 1);
+	}
+
+	/**
+	 * The number of keys in the tree
+	 */
+	public int size( )
+	{
+		return keys.length;
+	}
+
+	/**
+	 * Search for the indicated key and return the associated value.
+	 *
+	 * @param key - the key to find
+	 * @return the value
+	 */
+	@SuppressWarnings("unchecked")
+	public V find(K key)
+	{
+		int i = search(key);
+		if (i < 0)
+			throw new RuntimeException("Error - key was not found in the tree");
+		return (V) values[i];
+	}
+
+	/**
+	 * Predicate to test if the tree holds the indicated key
+	 */
+	public boolean containsKey(K key)
+	{
+		return search(key) >= 0;
+	}
+
+	/**
+	 * Iterate over the key/value pairs in order, from the first key greater than or
+	 * equal to from, up to (but not including) to.
+	 *
+	 * @param from - the first key of the range, or null to start at the first key
+	 * @param to - the end of the range, or null to finish at the last key
+	 * @return an iterator over the pairs
+	 */
+	public Iterator<Map.Entry<K,V>> range(K from, final K to)
+	{
+		int i = (from == null) ? 0 : search(from);
+		final int start = (i < 0) ? -(i + 1) : i;
+
+		return new Iterator<Map.Entry<K,V>>() {
+			int pos = start;
+
+			@SuppressWarnings("unchecked")
+			public boolean hasNext() {
+				return (pos < keys.length) && ((to == null) || ((K) keys[pos]).compareTo(to) < 0);
+			}
+
+			@SuppressWarnings("unchecked")
+			public Map.Entry<K,V> next() {
+				if (!hasNext())
+					throw new NoSuchElementException( );
+				Map.Entry<K,V> e = new AbstractMap.SimpleImmutableEntry<K,V>((K) keys[pos], (V) values[pos]);
+				pos++;
+				return e;
+			}
+		};
+	}
+
+	/**
+	 * Find the position of a key in the key array.
+	 * @return the position, or (-(insertion point) - 1) if the key is not present
+	 */
+	@SuppressWarnings("unchecked")
+	int search(K key)
+	{
+		if (keys.length == 0)
+			return -1;
+
+		// find the first block that starts after the key - each step goes to a child,
+		// and the trailing ones of the final slot count the steps taken to the right
+		// since the last step to the left
+		int slot = 1;
+		while (slot < index.length)
+			slot = 2 * slot + ((((K) index[slot]).compareTo(key) <= 0) ? 1 : 0);
+		slot >>>= Integer.numberOfTrailingZeros(~slot) + 1;
+
+		// the key can only be in the block before that one
+		int b = (slot == 0) ? index.length - 2 : blockOf[slot] - 1;
+		if (b < 0)
+			return -1;
+
+		int from = b * block;
+		int to = Math.min(keys.length, from + block);
+		return Arrays.binarySearch(keys, from, to, key);
+	}
+}
@@ -1,6 +1,7 @@
 package btree;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * In-Memory representation of a B-Tree InnerNode.  
@@ -21,7 +22,18 @@ class InnerNode<K extends Comparable<K>, V> extends BTreeNode<K,V> {
 	ArrayList<BTreeNode<K,V>> children;	// the list of children
 	
 	final int maxEntries;	// the maximum number of entries (degree) of this node
-	
+
+	ArrayList<Message<K,V>> buffer;	// pending messages, only used by a BufferedBTree
+
+	int[] counts;					// the entries beneath each child (one slot per child), only kept if the tree counts them
+	int size;						// the entries beneath this node (the sum of the counts)
+
+	Aggregate<V,Object> aggregator;	// the aggregate kept for each child, if the tree keeps one
+	ArrayList<Object> aggregates;	// the aggregate of the values beneath each child
+
+	int bloomBits;					// the bits per key of the leaf filters, or 0 if the tree keeps none
+	ArrayList<BloomFilter> filters;	// the filter of each child that is a leaf (null for an inner child)
+
 	/**
 	 * Construct an empty inner-node 
 	 * @param maxEntries - the maximum degree for this node
@@ -47,17 +59,30 @@ class InnerNode<K extends Comparable<K>, V> extends BTreeNode<K,V> {
 	 */
 	BTreeNode<K,V> getChildForKey(K key)
 	{
-		if (key.compareTo(keys.get(0)) < 0) 
-			return children.get(0);
-		
+		return children.get( getChildIndexForKey(key) );
+	}
+
+	/**
+	 * Find the position of the child-node that might contain this key, following
+	 * the same separating values logic as {@link #getChildForKey(Comparable)}.
+	 * A node without keys (holding a single child) routes every key to that child.
+	 *
+	 * @param key the key to search for
+	 * @return the index in the list of children of the child that might contain the key
+	 */
+	int getChildIndexForKey(K key)
+	{
+		if ((keys.size() == 0) || (key.compareTo(keys.get(0)) < 0))
+			return 0;
+
 		for (int i = 0; i < keys.size()-1; i++)
 		{
 			if ((key.compareTo(keys.get(i)) >= 0) &&
 				(key.compareTo(keys.get(i+1)) < 0))
-				return children.get(i+1);
+				return i+1;
 		}
-		
-		return children.get( children.size() - 1);
+
+		return children.size() - 1;
 	}
 
 	/**
@@ -87,31 +112,68 @@ class InnerNode<K extends Comparable<K>, V> extends BTreeNode<K,V> {
 	/**
 	 * Add child node (with an associated key value) to this node.  The child could be 
 	 * either a leaf- or inner-node.  The method maintains the separating-key property 
-	 * of the tree, finding the proper place to insert the key/value pair.  If the new key
-	 * is less than the existing keys, it will become the first key.  If the new key is
-	 * greater than the existing keys, it will become the last key.  Otherwise, it will
-	 * insert in-between the existing keys.
+	 * of the tree, finding the proper place to insert the key/value pair.  The key is the
+	 * separating value between the new child and the child to its left, so the new child
+	 * always lands immediately to the right of the new key.  If the new key is less than
+	 * the existing keys, it will become the first key.  If the new key is greater than the
+	 * existing keys, it will become the last key.  Otherwise, it will insert in-between
+	 * the existing keys.
 	 * 
 	 * @param key They key of the node
 	 * @param child The child to add
 	 */
 	void addChild(K key, BTreeNode<K,V> child)
 	{
-		if ((keys.size() == 0) || key.compareTo(keys.get(0))<0)
-		{
-			keys.add(0, key);
-			children.add(0, child);
+		int i;
+		for (i = 0; i < keys.size(); i++)
+			if (key.compareTo(keys.get(i)) < 0)
+				break;
+		
+		keys.add(i, key);
+		children.add(i+1, child);
+
+		// the new child may have been split from its left neighbour, so count both
+		if (counts != null) {
+			insertCount(i+1);
+			recount(i);
+			recount(i+1);
 		}
-		else 
-		{
-			int i;
-			for (i = 1; i < keys.size(); i++)
-				if ((key.compareTo(keys.get(i-1)) >= 0) &&
-					(key.compareTo(keys.get(i)) < 0))
-					break;
-			
-			keys.add(i, key);
-			children.add(i+1, child);
+		if (aggregator != null) {
+			aggregates.add(i+1, null);
+			reaggregate(i);
+			reaggregate(i+1);
+		}
+		if (bloomBits > 0) {
+			filters.add(i+1, null);
+			refilter(i);
+			refilter(i+1);
+		}
+	}
+	
+	/**
+	 * Add a child node in front of all of the existing children of this node.  Every key in 
+	 * the new child must be less than the given key, which becomes the separating value 
+	 * between the new child and the (previous) first child.
+	 * 
+	 * @param key The separating key, typically the minimum key of the current first child
+	 * @param child The child to add
+	 */
+	void addFirstChild(K key, BTreeNode<K,V> child)
+	{
+		keys.add(0, key);
+		children.add(0, child);
+
+		if (counts != null) {
+			insertCount(0);
+			recount(0);
+		}
+		if (aggregator != null) {
+			aggregates.add(0, null);
+			reaggregate(0);
+		}
+		if (bloomBits > 0) {
+			filters.add(0, null);
+			refilter(0);
 		}
 	}
 	
@@ -123,7 +185,7 @@ class InnerNode<K extends Comparable<K>, V> extends BTreeNode<K,V> {
 	 * design feature that keeps at least half of the nodes in the same position on the disk. 
 	 */
 	@Override
-	NodeSplitResult<K,V> split() {
+	NodeSplitResult<K,V> split(NodeSplitResult<K,V> result) {
 
 		InnerNode<K,V> sibling = new InnerNode<K,V>( maxEntries );
 		
@@ -136,8 +198,41 @@ class InnerNode<K extends Comparable<K>, V> extends BTreeNode<K,V> {
 		
 		while (children.size() > midPos+1)
 			sibling.children.add( children.remove(midPos+1));
-		
-		NodeSplitResult<K,V> result = new NodeSplitResult<K,V>( );
+
+		// the counts follow their children
+		if (counts != null) {
+			sibling.counts = new int[counts.length];
+			for (int i = 0; i < sibling.children.size(); i++) {
+				int n = counts[midPos+1 + i];
+				size -= n;
+				sibling.counts[i] = n;
+				sibling.size += n;
+			}
+		}
+		if (aggregator != null) {
+			sibling.aggregator = aggregator;
+			sibling.aggregates = new ArrayList<Object>( );
+			while (aggregates.size() > midPos+1)
+				sibling.aggregates.add( aggregates.remove(midPos+1));
+		}
+		if (bloomBits > 0) {
+			sibling.bloomBits = bloomBits;
+			sibling.filters = new ArrayList<BloomFilter>( );
+			while (filters.size() > midPos+1)
+				sibling.filters.add( filters.remove(midPos+1));
+		}
+
+		// pending messages follow their keys into the new sibling, keeping their order
+		if (buffer != null) {
+			ArrayList<Message<K,V>> lower = new ArrayList<Message<K,V>>( );
+			sibling.buffer = new ArrayList<Message<K,V>>( );
+			for (Message<K,V> msg : buffer) {
+				if (msg.key.compareTo(midKey) < 0) lower.add(msg);
+				else sibling.buffer.add(msg);
+			}
+			buffer = lower;
+		}
+
 		result.key = midKey;
 		result.sibling = sibling;
 		
@@ -187,6 +282,12 @@ class InnerNode<K extends Comparable<K>, V> extends BTreeNode<K,V> {
 			throw new RuntimeException("Error - child was not found!");
 		
 		children.remove(i);
+		if (counts != null)
+			size -= removeCount(i);
+		if (aggregator != null)
+			aggregates.remove(i);
+		if (bloomBits > 0)
+			filters.remove(i);
 		
 		// remove the last child, remove the last key
 		if (children.size() == 0) keys.clear();
@@ -196,6 +297,159 @@ class InnerNode<K extends Comparable<K>, V> extends BTreeNode<K,V> {
 		else keys.remove(i-1);
 	}
 
+	/**
+	 * Change the count of the entries beneath a child (when an entry is added
+	 * to, or removed from, the subtree of the child)
+	 * @param i - the index of the child
+	 * @param delta - the change in the number of entries
+	 */
+	void adjust(int i, int delta)
+	{
+		counts[i] += delta;
+		size += delta;
+	}
+
+	/**
+	 * Count the entries beneath a child again, from the child itself
+	 * @param i - the index of the child
+	 */
+	void recount(int i)
+	{
+		int n = sizeOf(children.get(i));
+		size += n - counts[i];
+		counts[i] = n;
+	}
+
+	/**
+	 * Open an empty count for a child just added to the list of children, moving the
+	 * counts of the children after it along (and growing the counts if they are full)
+	 * @param i - the index of the new child
+	 */
+	private void insertCount(int i)
+	{
+		int n = children.size();
+		if (counts.length < n)
+			counts = Arrays.copyOf(counts, Math.max(n, 2 * counts.length));
+		System.arraycopy(counts, i, counts, i+1, n-1 - i);
+		counts[i] = 0;
+	}
+
+	/**
+	 * Close up the count of a child just removed from the list of children
+	 * @param i - the index the child had
+	 * @return the count of the child
+	 */
+	private int removeCount(int i)
+	{
+		int n = counts[i];
+		System.arraycopy(counts, i+1, counts, i, children.size() - i);
+		return n;
+	}
+
+	/**
+	 * Start counting the entries beneath each child.  The children must already
+	 * count their own entries.
+	 */
+	void startCounting( )
+	{
+		counts = new int[Math.max(children.size(), maxEntries + 2)];
+		size = 0;
+		for (int i = 0; i < children.size(); i++)
+		{
+			int n = sizeOf(children.get(i));
+			counts[i] = n;
+			size += n;
+		}
+	}
+
+	/**
+	 * The number of entries beneath a node
+	 */
+	static <K extends Comparable<K>, V> int sizeOf(BTreeNode<K,V> node)
+	{
+		if (node instanceof LeafNode)
+			return ((LeafNode<K,V>) node).children.size();
+		return ((InnerNode<K,V>) node).size;
+	}
+
+	/**
+	 * Aggregate the values beneath a child again, from the child itself
+	 * @param i - the index of the child
+	 */
+	void reaggregate(int i)
+	{
+		aggregates.set(i, aggregateOf(children.get(i)));
+	}
+
+	/**
+	 * Start keeping the aggregate of the values beneath each child.  The children
+	 * must already keep their own aggregates.
+	 * @param aggregator - the aggregate to keep
+	 */
+	void startAggregating(Aggregate<V,Object> aggregator)
+	{
+		this.aggregator = aggregator;
+		aggregates = new ArrayList<Object>( );
+		for (BTreeNode<K,V> child : children)
+			aggregates.add(aggregateOf(child));
+	}
+
+	/**
+	 * The aggregate of the values beneath a node
+	 */
+	Object aggregateOf(BTreeNode<K,V> node)
+	{
+		Object a = aggregator.identity();
+		if (node instanceof LeafNode) {
+			for (Entry<K,V> entry : ((LeafNode<K,V>) node).children)
+				a = aggregator.combine(a, aggregator.lift(entry.value));
+		}
+		else {
+			for (Object b : ((InnerNode<K,V>) node).aggregates)
+				a = aggregator.combine(a, b);
+		}
+		return a;
+	}
+
+	/**
+	 * Build the filter of a child again, from the child itself (a child that is an
+	 * inner-node has no filter)
+	 * @param i - the index of the child
+	 */
+	void refilter(int i)
+	{
+		BTreeNode<K,V> child = children.get(i);
+		filters.set(i, (child instanceof LeafNode) ? BloomFilter.of((LeafNode<K,V>) child, bloomBits) : null);
+	}
+
+	/**
+	 * Start keeping a Bloom filter of the keys of each child that is a leaf
+	 * @param bitsPerKey - the bits per key of each filter
+	 */
+	void startFiltering(int bitsPerKey)
+	{
+		bloomBits = bitsPerKey;
+		filters = new ArrayList<BloomFilter>( );
+		for (int i = 0; i < children.size(); i++) {
+			filters.add(null);
+			refilter(i);
+		}
+	}
+
+	/**
+	 * Predicate to test if a child might hold the indicated key - false only if the
+	 * child is a leaf whose filter rules the key out
+	 * @param i - the index of the child
+	 * @param key - the key to test
+	 */
+	boolean mightContain(int i, K key)
+	{
+		if (bloomBits == 0)
+			return true;
+		BloomFilter filter = filters.get(i);
+		return (filter == null) || filter.mightContain(key);
+	}
+
 	@Override
 	K getMaxKey() {
 		return children.get( children.size() - 1).getMaxKey();
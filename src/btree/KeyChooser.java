@@ -0,0 +1,203 @@
+package btree;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The distribution a {@link Workload} draws the keys of its reads, deletes and scans from.
+ *
+ *   The keys of a workload are numbered in the order they were inserted, from 0 up to the
+ *   number inserted so far.  A chooser picks one of those numbers:
+ *
+ *   uniform - every key is as likely as any other
+ *   zipfian - a few keys are very popular and most are rarely used; the popularity of the
+ *             key ranked i is proportional to 1 / (i+1)^theta.  The ranks are the key
+ *             numbers, so the popular keys are the oldest ones (and, as the keys are
+ *             scattered when they are inserted, spread over the tree).
+ *   latest  - zipfian, but ranked from the newest key back, so recent inserts are hot
+ *   sequential - the keys in turn, wrapping around at the end
+ *
+ *   The zipfian draw is the method of Gray et al. ("Quickly generating billion-record
+ *   synthetic databases", SIGMOD 1994), as used by YCSB; the normalizing constant is
+ *   extended as keys are inserted, rather than recomputed.
+ *
+ *   A chooser may be shared by the threads of a workload, each drawing with a Random of
+ *   its own.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ */
+public abstract class KeyChooser {
+
+	public static final double DEFAULT_THETA = 0.99;	// the skew of YCSB's zipfian workloads
+
+	/**
+	 * Choose a key
+	 *
+	 * @param rnd - the source of randomness of the calling thread
+	 * @param count - the number of keys inserted so far (at least 1)
+	 * @return the number of the key, from 0 to count - 1
+	 */
+	abstract long next(Random rnd, long count);
+
+	/**
+	 * The name of the distribution
+	 */
+	abstract String getName( );
+
+	public String toString( )
+	{
+		return getName();
+	}
+
+	/**
+	 * A chooser of every key with the same probability
+	 */
+	public static KeyChooser uniform( )
+	{
+		return new KeyChooser() {
+			long next(Random rnd, long count) { return Math.min(count - 1, (long) (rnd.nextDouble() * count)); }
+			String getName() { return "uniform"; }
+		};
+	}
+
+	/**
+	 * A chooser of the keys in turn
+	 */
+	public static KeyChooser sequential( )
+	{
+		final AtomicLong position = new AtomicLong( );
+		return new KeyChooser() {
+			long next(Random rnd, long count) { return (position.getAndIncrement() & Long.MAX_VALUE) % count; }
+			String getName() { return "sequential"; }
+		};
+	}
+
+	/**
+	 * A chooser of the oldest keys most often, with YCSB's skew
+	 */
+	public static KeyChooser zipfian( )
+	{
+		return zipfian(DEFAULT_THETA);
+	}
+
+	/**
+	 * A chooser of the oldest keys most often
+	 * @param theta - the skew, greater than 0 and less than 1
+	 */
+	public static KeyChooser zipfian(double theta)
+	{
+		final Zipfian zipf = new Zipfian(theta);
+		return new KeyChooser() {
+			long next(Random rnd, long count) { return zipf.next(rnd, count); }
+			String getName() { return "zipfian"; }
+		};
+	}
+
+	/**
+	 * A chooser of the newest keys most often, with YCSB's skew
+	 */
+	public static KeyChooser latest( )
+	{
+		final Zipfian zipf = new Zipfian(DEFAULT_THETA);
+		return new KeyChooser() {
+			long next(Random rnd, long count) { return count - 1 - zipf.next(rnd, count); }
+			String getName() { return "latest"; }
+		};
+	}
+
+	/**
+	 * A chooser by its name, as given to {@link Workload#main(String[])}
+	 */
+	public static KeyChooser forName(String name)
+	{
+		switch (name)
+		{
+		case "uniform": return uniform();
+		case "sequential": return sequential();
+		case "zipfian": return zipfian();
+		case "latest": return latest();
+		default:
+			throw new RuntimeException("Error - there is no key distribution called " + name);
+		}
+	}
+
+
+	/**
+	 * A zipfian distribution over a number of items that may grow
+	 */
+	static final class Zipfian {
+
+		final double theta;
+		final double alpha;
+		final double zeta2;				// zeta(2, theta)
+		private volatile Zeta zeta;		// zeta(n, theta) for the last number of items
+
+		/**
+		 * The normalizing constant for a number of items - immutable, so the
+		 * threads can share it without a lock
+		 */
+		static final class Zeta {
+			final long n;
+			final double value;
+			final double eta;
+
+			Zeta(long n, double value, double theta, double zeta2)
+			{
+				this.n = n;
+				this.value = value;
+				this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / value);
+			}
+		}
+
+		Zipfian(double theta)
+		{
+			if ((theta <= 0) || (theta >= 1))
+				throw new RuntimeException("Error - the skew of a zipfian distribution must be between 0 and 1");
+			this.theta = theta;
+			this.alpha = 1 / (1 - theta);
+			this.zeta2 = 1 + Math.pow(0.5, theta);
+			this.zeta = new Zeta(2, zeta2, theta, zeta2);
+		}
+
+		/**
+		 * Draw an item, from 0 (the most popular) to count - 1
+		 */
+		long next(Random rnd, long count)
+		{
+			if (count < 2)
+				return 0;
+
+			Zeta z = zeta;
+			if (z.n != count)
+				zeta = z = extend(z, count);
+
+			double u = rnd.nextDouble();
+			double uz = u * z.value;
+			if (uz < 1)
+				return 0;
+			if (uz < zeta2)
+				return 1;
+			return Math.min(count - 1, (long) (count * Math.pow(z.eta * u - z.eta + 1, alpha)));
+		}
+
+		/**
+		 * The constant for a new number of items, extended from (or cut back from) the last
+		 */
+		private Zeta extend(Zeta z, long count)
+		{
+			double value = z.value;
+			if (count > z.n) {
+				for (long i = z.n + 1; i <= count; i++)
+					value += 1 / Math.pow(i, theta);
+			}
+			else {
+				for (long i = z.n; i > count; i--)
+					value -= 1 / Math.pow(i, theta);
+			}
+			return new Zeta(count, value, theta, zeta2);
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package btree;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Encodes composite keys as {@link NormalizedKey}s - byte strings that compare (as
+ * unsigned bytes) in the same order as the keys.
+ *
+ *   The encoder is given the fields of the key, in order of significance, and each is
+ *   encoded in turn:
+ *
+ *   - a long or an int is written big-endian, with the sign bit flipped, so negative
+ *     numbers sort before positive ones.
+ *   - a string is written as UTF-8, with each zero byte escaped as 0x00 0xFF, and ended
+ *     by 0x00 0x01.  The terminator sorts before any character, so a string sorts before
+ *     the strings it is a prefix of, and the fields after it do not affect the order.
+ *     Strings are ordered by code point (which only differs from {@link String#compareTo}
+ *     for characters outside the basic multilingual plane).
+ *   - a nullable field starts with a byte that is 0x00 for null, and 0x01 otherwise, so
+ *     nulls sort first.
+ *   - a descending field has every byte of its encoding inverted.
+ *
+ *   For example, a key of (String name, long time descending, nullable int id):
+ *
+ *     KeyEncoder enc = new KeyEncoder().addString().addLong(true, false).addInt(false, true);
+ *     BTree&lt;NormalizedKey,V&gt; tree = ...
+ *     tree.insert(enc.encode("sensor", 1500L, null), value);
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ */
+public class KeyEncoder {
+
+	/**
+	 * The types of fields that can be encoded
+	 */
+	enum Type { STRING, LONG, INT }
+
+	/**
+	 * A field of the key
+	 */
+	private static final class Field {
+		final Type type;
+		final boolean descending;
+		final boolean nullable;
+
+		Field(Type type, boolean descending, boolean nullable)
+		{
+			this.type = type;
+			this.descending = descending;
+			this.nullable = nullable;
+		}
+	}
+
+	private final ArrayList<Field> fields = new ArrayList<Field>( );
+
+
+	/**
+	 * Add an ascending, non-null string field
+	 */
+	public KeyEncoder addString( )
+	{
+		return addString(false, false);
+	}
+
+	/**
+	 * Add a string field
+	 * @param descending - true to sort the field in descending order
+	 * @param nullable - true if the field may be null
+	 */
+	public KeyEncoder addString(boolean descending, boolean nullable)
+	{
+		fields.add(new Field(Type.STRING, descending, nullable));
+		return this;
+	}
+
+	/**
+	 * Add an ascending, non-null long field
+	 */
+	public KeyEncoder addLong( )
+	{
+		return addLong(false, false);
+	}
+
+	/**
+	 * Add a long field
+	 * @param descending - true to sort the field in descending order
+	 * @param nullable - true if the field may be null
+	 */
+	public KeyEncoder addLong(boolean descending, boolean nullable)
+	{
+		fields.add(new Field(Type.LONG, descending, nullable));
+		return this;
+	}
+
+	/**
+	 * Add an ascending, non-null int field
+	 */
+	public KeyEncoder addInt( )
+	{
+		return addInt(false, false);
+	}
+
+	/**
+	 * Add an int field
+	 * @param descending - true to sort the field in descending order
+	 * @param nullable - true if the field may be null
+	 */
+	public KeyEncoder addInt(boolean descending, boolean nullable)
+	{
+		fields.add(new Field(Type.INT, descending, nullable));
+		return this;
+	}
+
+	/**
+	 * Encode a key
+	 * @param values - the value of each field, in order
+	 * @return the normalized key
+	 */
+	public NormalizedKey encode(Object... values)
+	{
+		if (values.length != fields.size())
+			throw new RuntimeException("Error - expected " + fields.size() + " fields, but got " + values.length);
+
+		Output out = new Output( );
+		for (int i = 0; i < values.length; i++)
+		{
+			Field field = fields.get(i);
+			Object value = values[i];
+			int start = out.length;
+
+			if (field.nullable)
+				out.put(value == null ? 0x00 : 0x01);
+			else if (value == null)
+				throw new RuntimeException("Error - field " + i + " may not be null");
+
+			if (value != null) {
+				switch (field.type)
+				{
+				case LONG:
+					out.putLong(((Long) value) ^ Long.MIN_VALUE, 8);
+					break;
+				case INT:
+					out.putLong(((Integer) value) ^ Integer.MIN_VALUE, 4);
+					break;
+				case STRING:
+					for (byte b : ((String) value).getBytes(StandardCharsets.UTF_8)) {
+						out.put(b);
+						if (b == 0) out.put(0xff);
+					}
+					out.put(0x00);
+					out.put(0x01);
+					break;
+				}
+			}
+
+			if (field.descending)
+				out.invert(start);
+		}
+
+		return new NormalizedKey(Arrays.copyOf(out.bytes, out.length));
+	}
+
+	/**
+	 * Decode a key built by this encoder
+	 * @param key - the normalized key
+	 * @return the value of each field, in order
+	 */
+	public Object[] decode(NormalizedKey key)
+	{
+		byte[] bytes = key.bytes;
+		Object[] values = new Object[fields.size()];
+		int pos = 0;
+
+		for (int i = 0; i < values.length; i++)
+		{
+			Field field = fields.get(i);
+			int flip = field.descending ? 0xff : 0x00;
+
+			if (field.nullable && (((bytes[pos++] & 0xff) ^ flip) == 0x00))
+				continue;
+
+			switch (field.type)
+			{
+			case LONG:
+				values[i] = getLong(bytes, pos, 8, flip) ^ Long.MIN_VALUE;
+				pos += 8;
+				break;
+			case INT:
+				values[i] = ((int) getLong(bytes, pos, 4, flip)) ^ Integer.MIN_VALUE;
+				pos += 4;
+				break;
+			case STRING:
+				Output s = new Output( );
+				while (true)
+				{
+					int b = (bytes[pos++] & 0xff) ^ flip;
+					if (b != 0x00) {
+						s.put(b);
+						continue;
+					}
+					if (((bytes[pos++] & 0xff) ^ flip) == 0x01)
+						break;
+					s.put(0x00);
+				}
+				values[i] = new String(s.bytes, 0, s.length, StandardCharsets.UTF_8);
+				break;
+			}
+		}
+
+		return values;
+	}
+
+	/**
+	 * Read a big-endian number of the given number of bytes
+	 */
+	private static long getLong(byte[] bytes, int pos, int n, int flip)
+	{
+		long v = 0;
+		for (int i = 0; i < n; i++)
+			v = (v << 8) | ((bytes[pos + i] & 0xff) ^ flip);
+		return v;
+	}
+
+	/**
+	 * A growable buffer for an encoding
+	 */
+	private static final class Output {
+		byte[] bytes = new byte[32];
+		int length = 0;
+
+		void put(int b)
+		{
+			if (length == bytes.length)
+				bytes = Arrays.copyOf(bytes, length * 2);
+			bytes[length++] = (byte) b;
+		}
+
+		void putLong(long v, int n)
+		{
+			for (int i = n - 1; i >= 0; i--)
+				put((int) (v >>> (8 * i)));
+		}
+
+		void invert(int from)
+		{
+			for (int i = from; i < length; i++)
+				bytes[i] = (byte) ~bytes[i];
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package btree;
+
+/**
+ * A histogram of latencies (in nanoseconds), for reporting percentiles of the time taken
+ * by the operations of a {@link Workload}.
+ *
+ *   The latencies are counted in buckets of a fixed relative width: every power of two is
+ *   split into 64 buckets, so a percentile is reported to within about one and a half
+ *   percent, in a few thousand counters, however many latencies are recorded and however
+ *   widely they range.  Recording is a handful of instructions and allocates nothing.
+ *
+ *   A histogram is not thread-safe - each thread records into one of its own, and the
+ *   histograms are added together at the end.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ */
+public class LatencyHistogram {
+
+	static final int SUB_BITS = 6;						// each power of two is split into 2^SUB_BITS buckets
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+	static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count = 0;
+	private long sum = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+
+	/**
+	 * Record a latency
+	 * @param nanos - the latency, in nanoseconds (a negative latency is counted as 0)
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0) nanos = 0;
+		counts[bucketOf(nanos)]++;
+		count++;
+		sum += nanos;
+		if (nanos < min) min = nanos;
+		if (nanos > max) max = nanos;
+	}
+
+	/**
+	 * Add the latencies recorded by another histogram to this one
+	 */
+	public void add(LatencyHistogram other)
+	{
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] += other.counts[i];
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * The number of latencies recorded
+	 */
+	public long getCount( )
+	{
+		return count;
+	}
+
+	/**
+	 * The least latency recorded (in nanoseconds), or 0 if none were
+	 */
+	public long getMin( )
+	{
+		return (count == 0) ? 0 : min;
+	}
+
+	/**
+	 * The greatest latency recorded (in nanoseconds)
+	 */
+	public long getMax( )
+	{
+		return max;
+	}
+
+	/**
+	 * The mean latency (in nanoseconds), or 0 if none were recorded
+	 */
+	public double getMean( )
+	{
+		return (count == 0) ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * The latency that the given percentage of the recorded latencies are at or below
+	 *
+	 * @param percent - the percentile, from 0 to 100 (such as 99.9)
+	 * @return the latency (in nanoseconds), or 0 if none were recorded
+	 */
+	public long getPercentile(double percent)
+	{
+		if ((percent < 0) || (percent > 100))
+			throw new RuntimeException("Error - a percentile must be from 0 to 100");
+		if (count == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.max(min, Math.min(max, valueOf(i)));
+		}
+		return max;
+	}
+
+	/**
+	 * The bucket that counts a latency
+	 */
+	static int bucketOf(long nanos)
+	{
+		if (nanos < 2 * SUB_BUCKETS)
+			return (int) nanos;
+
+		// the latency is counted by its top SUB_BITS + 1 bits
+		int shift = (63 - Long.numberOfLeadingZeros(nanos)) - SUB_BITS;
+		return shift * SUB_BUCKETS + (int) (nanos >>> shift);
+	}
+
+	/**
+	 * The latency a bucket stands for - the middle of the latencies it counts
+	 */
+	static long valueOf(int bucket)
+	{
+		if (bucket < 2 * SUB_BUCKETS)
+			return bucket;
+
+		int shift = (bucket >> SUB_BITS) - 1;
+		long low = (long) (bucket - shift * SUB_BUCKETS) << shift;
+		return low + ((1L << shift) >> 1);
+	}
+
+	public String toString( )
+	{
+		return String.format("n=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+				count, getMean() / 1000, getPercentile(50) / 1000.0, getPercentile(99) / 1000.0,
+				getPercentile(99.9) / 1000.0, max / 1000.0);
+	}
+}
@@ -31,7 +31,9 @@ class LeafNode<K extends Comparable<K>, V> extends BTreeNode<K,V> {
 	LeafNode(int maxEntries )
 	{
 		this.maxEntries = maxEntries;
-		children = new ArrayList<Entry<K,V>>( );
+
+		// room for the entry that over-fills the leaf, so the list never grows
+		children = new ArrayList<Entry<K,V>>(maxEntries + 1);
 	}
 
 	/**
@@ -95,7 +97,58 @@ class LeafNode<K extends Comparable<K>, V> extends BTreeNode<K,V> {
 		
 		throw new RuntimeException("Error - key was not found in this node. ");
 	}
-	
+
+	/**
+	 * Find the entry for the given key in this leaf node, without raising an
+	 * exception when the key is absent.
+	 * @param key The key to find
+	 * @return The entry holding the key, or null if it is not in this node
+	 */
+	Entry<K,V> getEntry(K key)
+	{
+		for (int i = 0; i < children.size(); i++)
+		{
+			if (key.compareTo(children.get(i).key) == 0)
+				return children.get(i);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Apply a buffered message to this leaf node.  Unlike {@link #insert(Comparable, Object)}
+	 * this does not check the capacity of the node, as a batch of messages can over-fill
+	 * the node before the caller gets a chance to split it.
+	 *
+	 * @param msg The message to apply
+	 */
+	void apply(Message<K,V> msg)
+	{
+		int i;
+		for (i = 0; i < children.size(); i++)
+		{
+			if (msg.key.compareTo(children.get(i).key) <= 0) break;
+		}
+
+		boolean found = (i < children.size()) && (children.get(i).key.compareTo(msg.key) == 0);
+
+		switch (msg.op)
+		{
+		case INSERT:
+			if (!found) children.add(i, new Entry<K,V>(msg.key, msg.value));
+			break;
+
+		case UPSERT:
+			if (found) children.get(i).value = msg.value;
+			else children.add(i, new Entry<K,V>(msg.key, msg.value));
+			break;
+
+		case DELETE:
+			if (found) children.remove(i);
+			break;
+		}
+	}
+
 	/**
 	 * Predicate to test if the node is over capacity
 	 */
@@ -144,9 +197,11 @@ class LeafNode<K extends Comparable<K>, V> extends BTreeNode<K,V> {
 	/**
 	 * Split the leaf node in half, leaving the greater half and creating a new
 	 * leaf-node containing the lesser half (and the split-key).  
+	 * @param result - the result to fill in
 	 * @return The result of the split
 	 */
-	NodeSplitResult<K,V> split( )
+	@Override
+	NodeSplitResult<K,V> split(NodeSplitResult<K,V> result)
 	{
 		LeafNode<K,V> sibling = new LeafNode<K,V>( maxEntries );
 		
@@ -159,7 +214,6 @@ class LeafNode<K extends Comparable<K>, V> extends BTreeNode<K,V> {
 			sibling.children.add(j++, children.remove(midPos));
 		}
 		
-		NodeSplitResult<K, V> result = new NodeSplitResult<K,V>( );
 		result.key = key;
 		result.sibling = sibling;
 		
@@ -0,0 +1,192 @@
+package btree;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The binary page format of a leaf-node.
+ *
+ * This is an internal class that should not be used outside the btree package.
+ *
+ * A page holds a header (the number of entries, and the offset of the values), then
+ * the region of keys, then the region of values.  A region of fixed-width encodings is
+ * just the encodings, one after another, so slot i is found at (region + i * width).
+ * A region of variable-width encodings starts with a table of the offsets of each
+ * encoding (from the start of the page), followed by the encodings.  Either way, any
+ * slot can be reached without decoding the others, and the keys can be binary searched
+ * in place - with a {@link FixedWidthSerializer}, without decoding any keys at all.
+ *
+ * @author tbriggs
+ */
+final class LeafPage {
+
+	static final int HEADER = 8;	// the entry count, and the offset of the values
+
+	private LeafPage( ) { }
+
+	/**
+	 * The size of the page that holds the given entries
+	 */
+	static <K extends Comparable<K>, V> int sizeOf(List<Entry<K,V>> entries, Serializer<K> ks, Serializer<V> vs)
+	{
+		int size = HEADER;
+		if (ks.width() == Serializer.VARIABLE_WIDTH) size += 4 * entries.size();
+		if (vs.width() == Serializer.VARIABLE_WIDTH) size += 4 * entries.size();
+
+		for (Entry<K,V> entry : entries)
+			size += ks.sizeOf(entry.key) + vs.sizeOf(entry.value);
+
+		return size;
+	}
+
+	/**
+	 * Write a page holding the given entries at the position of the buffer, advancing the
+	 * position to the end of the page.  The buffer must have {@link #sizeOf} bytes remaining.
+	 */
+	static <K extends Comparable<K>, V> void write(ByteBuffer buf, List<Entry<K,V>> entries, Serializer<K> ks, Serializer<V> vs)
+	{
+		int start = buf.position();
+		int n = entries.size();
+
+		buf.putInt(n);
+		buf.putInt(0);		// the offset of the values, filled in below
+
+		// the key region
+		int table = buf.position();
+		if (ks.width() == Serializer.VARIABLE_WIDTH)
+			buf.position(table + 4 * n);
+
+		for (int i = 0; i < n; i++)
+		{
+			if (ks.width() == Serializer.VARIABLE_WIDTH)
+				buf.putInt(table + 4 * i, buf.position() - start);
+			ks.write(buf, entries.get(i).key);
+		}
+
+		// the value region
+		table = buf.position();
+		buf.putInt(start + 4, table - start);
+		if (vs.width() == Serializer.VARIABLE_WIDTH)
+			buf.position(table + 4 * n);
+
+		for (int i = 0; i < n; i++)
+		{
+			if (vs.width() == Serializer.VARIABLE_WIDTH)
+				buf.putInt(table + 4 * i, buf.position() - start);
+			vs.write(buf, entries.get(i).value);
+		}
+	}
+
+	/**
+	 * Decode every entry of the page at the position of the buffer, adding them (in order)
+	 * to the loader, and advance the position to the end of the page.
+	 */
+	static <K extends Comparable<K>, V> void read(ByteBuffer buf, Serializer<K> ks, Serializer<V> vs, BulkLoader<K,V> loader)
+	{
+		read(buf, ks, vs, loader, null);
+	}
+
+	/**
+	 * Decode every entry of the page at the position of the buffer, adding them (in order)
+	 * to the loader with the given expiry times, and advance the position to the end of the page.
+	 *
+	 * @param expires - the expiry time of each entry, or null if none of them expire
+	 */
+	@SuppressWarnings("unchecked")
+	static <K extends Comparable<K>, V> void read(ByteBuffer buf, Serializer<K> ks, Serializer<V> vs, BulkLoader<K,V> loader, long[] expires)
+	{
+		int start = buf.position();
+		int n = buf.getInt();
+		int values = buf.getInt();
+
+		// the encodings follow their offset tables in slot order, so read them straight through
+		Object[] keys = new Object[n];
+		if (ks.width() == Serializer.VARIABLE_WIDTH)
+			buf.position(buf.position() + 4 * n);
+		for (int i = 0; i < n; i++)
+			keys[i] = ks.read(buf);
+
+		buf.position(start + values);
+		if (vs.width() == Serializer.VARIABLE_WIDTH)
+			buf.position(buf.position() + 4 * n);
+		for (int i = 0; i < n; i++)
+			loader.add((K) keys[i], vs.read(buf), (expires == null) ? 0 : expires[i]);
+	}
+
+	/**
+	 * The number of entries in the page starting at the given offset
+	 */
+	static int count(ByteBuffer page, int start)
+	{
+		return page.getInt(start);
+	}
+
+	/**
+	 * Binary search the keys of the page starting at the given offset.  With a fixed-width
+	 * serializer, the keys are compared in place, and no key is decoded.
+	 *
+	 * @return the slot of the key, or (-(insertion point) - 1) if it is not in the page
+	 */
+	@SuppressWarnings("unchecked")
+	static <K extends Comparable<K>> int search(ByteBuffer page, int start, Serializer<K> ks, K key)
+	{
+		int lo = 0;
+		int hi = count(page, start) - 1;
+
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			int c;
+			if (ks instanceof FixedWidthSerializer)
+				c = ((FixedWidthSerializer<K>) ks).compareAt(page, start + HEADER + mid * ks.width(), key);
+			else
+				c = keyAt(page, start, ks, mid).compareTo(key);
+
+			if (c < 0) lo = mid + 1;
+			else if (c > 0) hi = mid - 1;
+			else return mid;
+		}
+
+		return -(lo + 1);
+	}
+
+	/**
+	 * Decode the key in the given slot of the page starting at the given offset
+	 */
+	static <K> K keyAt(ByteBuffer page, int start, Serializer<K> ks, int slot)
+	{
+		return decodeAt(page, start, start + HEADER, ks, slot);
+	}
+
+	/**
+	 * Decode the value in the given slot of the page starting at the given offset
+	 */
+	static <V> V valueAt(ByteBuffer page, int start, Serializer<V> vs, int slot)
+	{
+		return decodeAt(page, start, start + page.getInt(start + 4), vs, slot);
+	}
+
+	/**
+	 * Find the value of a key in the page starting at the given offset
+	 * @return the value, or null if the key is not in the page
+	 */
+	static <K extends Comparable<K>, V> V find(ByteBuffer page, int start, Serializer<K> ks, Serializer<V> vs, K key)
+	{
+		int slot = search(page, start, ks, key);
+		return (slot < 0) ? null : valueAt(page, start, vs, slot);
+	}
+
+	/**
+	 * Decode the encoding in a slot of a region, without moving the position of the page
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T decodeAt(ByteBuffer page, int start, int region, Serializer<T> s, int slot)
+	{
+		if (s instanceof FixedWidthSerializer)
+			return ((FixedWidthSerializer<T>) s).readAt(page, region + slot * s.width());
+
+		ByteBuffer dup = page.duplicate();
+		dup.position(start + page.getInt(region + 4 * slot));
+		return s.read(dup);
+	}
+}
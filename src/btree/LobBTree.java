@@ -0,0 +1,653 @@
+package btree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * A B-Tree of binary values that keeps large values (LOBs) out of its leaf-nodes.
+ *
+ *   As described for the {@link LeafNode}, the leaves only need to hold a reference
+ *   to a value.  Here, a value up to the inline limit is held in the leaf itself, but
+ *   a larger value is written to a run of consecutive pages in a separate overflow
+ *   file, and the leaf holds just its first page and its length.  This keeps the
+ *   leaves dense however large the values grow, and a scan of the keys (or of the
+ *   value lengths) never has to read the overflow pages at all.
+ *
+ *   The tree itself is still held in memory; only the large values are on disk.
+ *
+ *   The pages of a deleted or replaced value are freed, and reused by later values.
+ *   Over time the values end up scattered around the file, so {@link #compact()} moves
+ *   them back into key order at the front of the file, and gives back the free space at
+ *   the end.  Compaction runs in small batches, and readers carry on throughout - they
+ *   only wait while a batch of moved values is switched over to the new pages.
+ *
+ *   A scan of the values in key order ({@link #values(Comparable)}) reads ahead, on a
+ *   small pool of I/O threads, so it does not stall on the read of every value.
+ *
+ *   The reads and updates of the tree are thread-safe; the key iterators and the
+ *   value scans are not, and should not be used while the tree is being updated.
+ *
+ *   Each read and update also has an asynchronous form, which runs it on an executor and
+ *   returns a CompletableFuture, so a caller is not tied up while a value is read from
+ *   (or written to) the overflow file.  The locks held around the I/O are all
+ *   ReentrantLocks rather than monitors, so the executor can be one that starts a
+ *   virtual thread for each task (on a JDK that has them), and a blocked read parks
+ *   the virtual thread rather than pinning its carrier.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <K> - A Comparable type for the key of the key-value pair
+ */
+public class LobBTree<K extends Comparable<K>> implements Closeable {
+
+	public static final int DEFAULT_PAGE_SIZE = 4096;	// the size of an overflow page
+	public static final int DEFAULT_INLINE_LIMIT = 256;	// the largest value held in a leaf
+	static final int COMPACT_BATCH = 64;				// the values moved between switch-overs
+	static final int IO_THREADS = 2;					// the threads reading ahead for scans
+
+	final BTree<K, ValueRef> tree;	// the keys, and the references to the values
+	final PageFile pages;			// the overflow pages of the large values
+	final int inlineLimit;			// the largest value (in bytes) held in a leaf
+
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock( );	// readers share, updates exclude
+	final ReentrantLock compacting = new ReentrantLock( );				// one compaction at a time
+
+	private ExecutorService io;		// the read-ahead threads, started by the first scan
+	private Executor async;			// runs the asynchronous calls, or null until the first
+	private ExecutorService asyncPool;	// the default executor for the asynchronous calls, if started
+	private final ReentrantLock threads = new ReentrantLock( );	// guards the starting of the threads
+
+	final AtomicLong prefetches = new AtomicLong( );		// the values read ahead by scans
+	final AtomicLong prefetchStalls = new AtomicLong( );	// the times a scan waited for a value
+	final AtomicLong prefetchWasted = new AtomicLong( );	// the values read ahead, but never used
+
+
+	/**
+	 * Construct an empty tree with the default page size and inline limit.
+	 *
+	 * @param file - the overflow file for the large values (any existing file is truncated)
+	 * @param maxEntries - The degree (maximum number of entries in the nodes)
+	 * @throws IOException if the overflow file cannot be created
+	 */
+	public LobBTree(Path file, int maxEntries) throws IOException
+	{
+		this(file, maxEntries, DEFAULT_PAGE_SIZE, DEFAULT_INLINE_LIMIT);
+	}
+
+	/**
+	 * Construct an empty tree.
+	 *
+	 * @param file - the overflow file for the large values (any existing file is truncated)
+	 * @param maxEntries - The degree (maximum number of entries in the nodes)
+	 * @param pageSize - the size of an overflow page
+	 * @param inlineLimit - the largest value (in bytes) held in a leaf-node
+	 * @throws IOException if the overflow file cannot be created
+	 */
+	public LobBTree(Path file, int maxEntries, int pageSize, int inlineLimit) throws IOException
+	{
+		this.tree = new BTree<K, ValueRef>(maxEntries);
+		this.pages = new PageFile(file, pageSize);
+		this.inlineLimit = inlineLimit;
+	}
+
+	/**
+	 * Insert a key/value pair.  The keys must be unique, and inserting a key that
+	 * already exists will fail and generate an exception.
+	 *
+	 * @param key - the key to add
+	 * @param value - the value to add
+	 * @throws IOException if a large value cannot be written
+	 */
+	public void insert(K key, byte[] value) throws IOException
+	{
+		lock.writeLock().lock();
+		try {
+			// check before writing any pages, so a failed insert leaves nothing behind
+			if (tree.containsKey(key))
+				throw new RuntimeException("Error - The key is already found in the tree");
+
+			tree.insert(key, store(value));
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Insert a key/value pair, replacing any existing value of the key.  The pages
+	 * of the replaced value are freed.
+	 *
+	 * @param key - the key to add or update
+	 * @param value - the value to associate with the key
+	 * @throws IOException if a large value cannot be written
+	 */
+	public void upsert(K key, byte[] value) throws IOException
+	{
+		lock.writeLock().lock();
+		try {
+			ValueRef old = tree.containsKey(key) ? tree.find(key) : null;
+			tree.upsert(key, store(value));
+			release(old);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Search for the indicated key and return the associated value, reading it from
+	 * the overflow file if it is held out of line.
+	 *
+	 * @param key - the key to find
+	 * @return the value
+	 * @throws IOException if a large value cannot be read
+	 */
+	public byte[] find(K key) throws IOException
+	{
+		lock.readLock().lock();
+		try {
+			return load(tree.find(key));
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Return the length of the value of the indicated key, without reading the value.
+	 *
+	 * @param key - the key to find
+	 * @return the length of the value in bytes
+	 */
+	public int valueLength(K key)
+	{
+		lock.readLock().lock();
+		try {
+			return tree.find(key).length;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Predicate to test if the tree holds the indicated key
+	 */
+	public boolean containsKey(K key)
+	{
+		lock.readLock().lock();
+		try {
+			return tree.containsKey(key);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Delete a key and its value.  The overflow pages of the value are freed.
+	 *
+	 * @param key - the key to delete
+	 * @return true if the key was found and deleted, false otherwise
+	 * @throws IOException if the overflow file cannot be truncated
+	 */
+	public boolean delete(K key) throws IOException
+	{
+		lock.writeLock().lock();
+		try {
+			if (!tree.containsKey(key))
+				return false;
+
+			release(tree.find(key));
+			return tree.delete(key);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Search for the indicated key on the asynchronous executor.
+	 *
+	 * @param key - the key to find
+	 * @return the value, once it has been read (or the failure of the search)
+	 */
+	public CompletableFuture<byte[]> findAsync(final K key)
+	{
+		return async(new Callable<byte[]>() {
+			public byte[] call() throws IOException { return find(key); }
+		});
+	}
+
+	/**
+	 * Insert a key/value pair on the asynchronous executor.
+	 *
+	 * @param key - the key to add
+	 * @param value - the value to add
+	 * @return completed once the pair has been inserted (or with the failure of the insert)
+	 */
+	public CompletableFuture<Void> insertAsync(final K key, final byte[] value)
+	{
+		return async(new Callable<Void>() {
+			public Void call() throws IOException { insert(key, value); return null; }
+		});
+	}
+
+	/**
+	 * Read the next pairs in key order on the asynchronous executor, after the given key.
+	 * Each page of pairs is read under the read lock, so (unlike the other scans) a page
+	 * is consistent even while the tree is being updated.  The next page follows on from
+	 * the last key of this one - the caller asks for each page when it is ready for it.
+	 *
+	 * @param after - the key to read after, or null to start at the first key
+	 * @param max - the most pairs to read
+	 * @return the pairs (fewer than max only at the end of the tree)
+	 */
+	public CompletableFuture<List<Map.Entry<K, byte[]>>> scanAsync(final K after, final int max)
+	{
+		return async(new Callable<List<Map.Entry<K, byte[]>>>() {
+			public List<Map.Entry<K, byte[]>> call() throws IOException { return scan(after, max); }
+		});
+	}
+
+	/**
+	 * Use the given executor for the asynchronous calls, in place of the default pool
+	 * of daemon threads - for instance, one that starts a virtual thread for each task.
+	 *
+	 * @param executor - the executor to run the asynchronous calls on
+	 */
+	public void setAsyncExecutor(Executor executor)
+	{
+		threads.lock();
+		try {
+			async = executor;
+		}
+		finally {
+			threads.unlock();
+		}
+	}
+
+	/**
+	 * Scan all of the values in key order, reading ahead.  The scan should be closed
+	 * if it is not read to the end.
+	 *
+	 * @return the scan
+	 */
+	public ReadAhead<K> values( )
+	{
+		return new ReadAhead<K>(this, null);
+	}
+
+	/**
+	 * Scan the values in key order, reading ahead, starting at the first key greater
+	 * than or equal to the given key.  The scan should be closed if it is not read
+	 * to the end.
+	 *
+	 * @param from - the key to start from
+	 * @return the scan
+	 */
+	public ReadAhead<K> values(K from)
+	{
+		return new ReadAhead<K>(this, from);
+	}
+
+	/**
+	 * The number of values that scans have read ahead
+	 */
+	public long getPrefetchCount( )
+	{
+		return prefetches.get();
+	}
+
+	/**
+	 * The number of times a scan had to wait for a value that was being read ahead
+	 */
+	public long getPrefetchStalls( )
+	{
+		return prefetchStalls.get();
+	}
+
+	/**
+	 * The number of values that scans read ahead, but were closed before using
+	 */
+	public long getPrefetchWasted( )
+	{
+		return prefetchWasted.get();
+	}
+
+	/**
+	 * Compact the overflow file: move the large values into key order at the front of
+	 * the file, and truncate the free space after them.  A scan of the values in key
+	 * order then reads the file sequentially.
+	 *
+	 * The values are moved in two passes - first each is copied to the end of the file,
+	 * which leaves the front free, and then each is copied back to the first free pages.
+	 * The values are copied while holding only a read lock, in batches, and each batch
+	 * is switched over to its new pages (and the old pages freed) under a brief write
+	 * lock.  Readers are never given a page that has been freed, and updates made while
+	 * compacting are safe, although their values may be left out of order.
+	 *
+	 * @throws IOException if the values cannot be moved
+	 */
+	public void compact( ) throws IOException
+	{
+		compacting.lock();
+		try {
+			relocate(true);
+			relocate(false);
+		}
+		finally {
+			compacting.unlock();
+		}
+	}
+
+	/**
+	 * Iterate over all of the keys in order.  This only visits the leaf-nodes, and
+	 * never reads a value from the overflow file.
+	 *
+	 * @return an iterator over the keys
+	 */
+	public Iterator<K> keys( )
+	{
+		return keys(new Cursor<K, ValueRef>(tree));
+	}
+
+	/**
+	 * Iterate over the keys in order, starting at the first key greater than or equal
+	 * to the given key.  This never reads a value from the overflow file.
+	 *
+	 * @param from - the key to start from
+	 * @return an iterator over the keys
+	 */
+	public Iterator<K> keys(K from)
+	{
+		Cursor<K, ValueRef> cursor = new Cursor<K, ValueRef>(tree);
+		cursor.seek(from);
+		return keys(cursor);
+	}
+
+	/**
+	 * Stop the read-ahead threads, and close the overflow file
+	 */
+	@Override
+	public void close( ) throws IOException
+	{
+		threads.lock();
+		try {
+			if (io != null)
+				io.shutdownNow();
+			if (asyncPool != null)
+				asyncPool.shutdown();
+		}
+		finally {
+			threads.unlock();
+		}
+		pages.close();
+	}
+
+	/**
+	 * The read-ahead threads, starting them if need be
+	 */
+	ExecutorService io( )
+	{
+		threads.lock();
+		try {
+			if (io == null)
+				io = Executors.newFixedThreadPool(IO_THREADS, daemons("lob-read-ahead"));
+			return io;
+		}
+		finally {
+			threads.unlock();
+		}
+	}
+
+	/**
+	 * Run a call on the asynchronous executor, starting the default pool if need be
+	 *
+	 * @param call - the call to run
+	 * @return the result of the call
+	 */
+	private <T> CompletableFuture<T> async(final Callable<T> call)
+	{
+		Executor executor;
+		threads.lock();
+		try {
+			if (async == null)
+				async = asyncPool = Executors.newCachedThreadPool(daemons("lob-async"));
+			executor = async;
+		}
+		finally {
+			threads.unlock();
+		}
+
+		final CompletableFuture<T> result = new CompletableFuture<T>( );
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					result.complete(call.call());
+				}
+				catch (Throwable e) {
+					result.completeExceptionally(e);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * A factory of named daemon threads
+	 */
+	private static ThreadFactory daemons(final String name)
+	{
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Read up to max pairs in key order, after the given key, under the read lock
+	 *
+	 * @param after - the key to read after, or null to start at the first key
+	 * @param max - the most pairs to read
+	 * @return the pairs
+	 * @throws IOException if a large value cannot be read
+	 */
+	private List<Map.Entry<K, byte[]>> scan(K after, int max) throws IOException
+	{
+		List<Map.Entry<K, byte[]>> page = new ArrayList<Map.Entry<K, byte[]>>( );
+		lock.readLock().lock();
+		try {
+			Cursor<K, ValueRef> cursor = new Cursor<K, ValueRef>(tree);
+			if (after != null)
+				cursor.seek(after);
+
+			while ((page.size() < max) && cursor.hasNext())
+			{
+				Entry<K, ValueRef> entry = cursor.next();
+				if ((after != null) && (entry.key.compareTo(after) == 0))
+					continue;
+				page.add(new AbstractMap.SimpleImmutableEntry<K, byte[]>(entry.key, load(entry.value)));
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		return page;
+	}
+
+	/**
+	 * Load the value of a leaf entry, as it is when the read starts (a compaction may
+	 * have moved it since the entry was found).
+	 *
+	 * @param entry - the entry of the value
+	 * @return the value
+	 * @throws IOException if the overflow pages cannot be read
+	 */
+	byte[] load(Entry<K, ValueRef> entry) throws IOException
+	{
+		lock.readLock().lock();
+		try {
+			return load(entry.value);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Wrap a cursor as an iterator over its keys
+	 */
+	private Iterator<K> keys(final Cursor<K, ValueRef> cursor)
+	{
+		return new Iterator<K>() {
+			public boolean hasNext() { return cursor.hasNext(); }
+			public K next() { return cursor.next().key; }
+		};
+	}
+
+	/**
+	 * Move every large value, in key order, either to the end of the file, or to the
+	 * first free pages (if that is before where it is now).
+	 *
+	 * @param toEnd - true to append the values, false to move them to the front
+	 * @throws IOException if the values cannot be moved
+	 */
+	private void relocate(boolean toEnd) throws IOException
+	{
+		K last = null;		// the last key of the previous batch
+		boolean done = false;
+
+		while (!done)
+		{
+			ArrayList<K> keys = new ArrayList<K>( );
+			ArrayList<ValueRef> from = new ArrayList<ValueRef>( );
+			ArrayList<ValueRef> to = new ArrayList<ValueRef>( );
+
+			// copy a batch of values, while readers carry on
+			lock.readLock().lock();
+			try {
+				Cursor<K, ValueRef> cursor = new Cursor<K, ValueRef>(tree);
+				if (last != null)
+					cursor.seek(last);
+
+				while ((keys.size() < COMPACT_BATCH) && cursor.hasNext())
+				{
+					Entry<K, ValueRef> entry = cursor.next();
+					if ((last != null) && (entry.key.compareTo(last) <= 0))
+						continue;
+					last = entry.key;
+
+					ValueRef ref = entry.value;
+					if (ref.isInline())
+						continue;
+
+					int n = pages.pagesFor(ref.length);
+					long page = toEnd ? pages.append(n) : pages.allocate(n);
+					if (!toEnd && (page >= ref.page)) {
+						pages.free(page, n);
+						continue;
+					}
+
+					byte[] value = load(ref);
+					pages.write(page, ByteBuffer.wrap(value));
+
+					keys.add(entry.key);
+					from.add(ref);
+					to.add(ValueRef.overflow(page, ref.length));
+				}
+				done = !cursor.hasNext();
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+
+			// switch the batch over to the new pages, unless a value was updated meanwhile
+			lock.writeLock().lock();
+			try {
+				for (int i = 0; i < keys.size(); i++)
+				{
+					K key = keys.get(i);
+					if (tree.containsKey(key) && (tree.find(key) == from.get(i))) {
+						tree.upsert(key, to.get(i));
+						release(from.get(i));
+					}
+					else
+						release(to.get(i));
+				}
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Free the overflow pages of a value that is no longer referenced
+	 *
+	 * @param ref - the reference to the value (or null)
+	 * @throws IOException if the overflow file cannot be truncated
+	 */
+	private void release(ValueRef ref) throws IOException
+	{
+		if ((ref != null) && !ref.isInline())
+			pages.free(ref.page, pages.pagesFor(ref.length));
+	}
+
+	/**
+	 * Store a value, in-line if it is small enough, or in new overflow pages.
+	 *
+	 * @param value - the value to store
+	 * @return the reference to keep in the leaf
+	 * @throws IOException if the overflow pages cannot be written
+	 */
+	private ValueRef store(byte[] value) throws IOException
+	{
+		if (value.length <= inlineLimit)
+			return ValueRef.inline(value);
+
+		long page = pages.allocate( pages.pagesFor(value.length) );
+		pages.write(page, ByteBuffer.wrap(value));
+
+		return ValueRef.overflow(page, value.length);
+	}
+
+	/**
+	 * Load a value, reading its overflow pages if it is held out of line.
+	 *
+	 * @param ref - the reference held in the leaf
+	 * @return the value
+	 * @throws IOException if the overflow pages cannot be read
+	 */
+	private byte[] load(ValueRef ref) throws IOException
+	{
+		if (ref.isInline())
+			return ref.inline;
+
+		byte[] value = new byte[ref.length];
+		pages.read(ref.page, ByteBuffer.wrap(value));
+		return value;
+	}
+}
@@ -0,0 +1,144 @@
+package btree;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of recently found key/value pairs, kept in front of the lookups of a B-Tree.
+ *
+ * This is an internal class that should not be used outside the btree package.
+ *
+ * The cache holds a fixed number of slots, and evicts with the CLOCK (second chance) policy:
+ * a hit sets the reference bit of its slot, and the hand sweeps the slots for a victim,
+ * clearing the bits it passes, so a key that is found again before the hand comes round
+ * survives the sweep.  Under a skewed load the hot keys are hit often enough to stay, while
+ * a key that is found once is the first to go - close to LRU, without reordering a list on
+ * every hit.
+ *
+ * Lookups are made by the readers of the tree, which may share a read lock, so a lookup and
+ * the caching of a pair that was found are safe to run on many threads at once.  A cached
+ * pair is held by a slot of its own, which a reader keeps hold of once it has found it, so
+ * a slot re-used by an eviction never hands the reader another key's value.  Pairs are
+ * cached by one reader at a time; a reader that finds another caching skips it, rather than
+ * waiting.  Updates and invalidations come from the writers of the tree, which hold it
+ * exclusively.
+ *
+ * The keys are held in a hash map, so their hashCode and equals must agree with compareTo.
+ *
+ * @author tbriggs
+ *
+ * @param <K> - The key type of the key-value pair
+ * @param <V> - The value type of the key-value pair
+ */
+final class LookupCache<K, V> {
+
+	/**
+	 * A cached pair, and its place on the clock
+	 */
+	static final class Slot<K, V> {
+		final K key;
+		volatile V value;
+		volatile boolean referenced;	// set by a hit, cleared as the hand passes
+		final int index;				// the position of the slot on the clock
+
+		Slot(K key, V value, int index)
+		{
+			this.key = key;
+			this.value = value;
+			this.index = index;
+		}
+	}
+
+	final AtomicReferenceArray<Slot<K,V>> clock;	// the slot at each position, or null if it is free
+	final ConcurrentHashMap<K,Slot<K,V>> slots;		// the slot of each cached key
+	private final ReentrantLock caching = new ReentrantLock( );	// one put at a time
+
+	int hand;					// the next position the clock considers for eviction - guarded by caching
+
+	final LongAdder hits = new LongAdder( );	// the lookups answered by the cache
+	final LongAdder misses = new LongAdder( );	// the lookups that went to the tree
+
+
+	/**
+	 * Construct an empty cache
+	 * @param capacity - the maximum number of pairs to hold
+	 */
+	LookupCache(int capacity)
+	{
+		clock = new AtomicReferenceArray<Slot<K,V>>(capacity);
+		slots = new ConcurrentHashMap<K,Slot<K,V>>(capacity * 2);
+	}
+
+	/**
+	 * Look up a key, counting a hit or a miss
+	 * @return the slot of the key, or null if it is not cached
+	 */
+	Slot<K,V> lookup(K key)
+	{
+		Slot<K,V> slot = slots.get(key);
+		if (slot == null) {
+			misses.increment();
+			return null;
+		}
+
+		hits.increment();
+		if (!slot.referenced)
+			slot.referenced = true;
+		return slot;
+	}
+
+	/**
+	 * Cache a key/value pair that was just found in the tree, evicting another if the
+	 * cache is full.  If another reader is caching a pair at the same time, this one is
+	 * not cached.
+	 */
+	void put(K key, V value)
+	{
+		if (!caching.tryLock())
+			return;
+		try {
+			if (slots.containsKey(key))
+				return;
+
+			// sweep for a free slot, or one that has not been hit since the hand last passed
+			Slot<K,V> victim;
+			while (((victim = clock.get(hand)) != null) && victim.referenced)
+			{
+				victim.referenced = false;
+				hand = (hand + 1) % clock.length();
+			}
+
+			if (victim != null)
+				slots.remove(victim.key, victim);
+			Slot<K,V> slot = new Slot<K,V>(key, value, hand);
+			clock.set(hand, slot);
+			slots.put(key, slot);
+			hand = (hand + 1) % clock.length();
+		}
+		finally {
+			caching.unlock();
+		}
+	}
+
+	/**
+	 * Replace the value of a key if it is cached (after an update to the tree)
+	 */
+	void update(K key, V value)
+	{
+		Slot<K,V> slot = slots.get(key);
+		if (slot != null)
+			slot.value = value;
+	}
+
+	/**
+	 * Drop a key from the cache (after it is deleted from the tree)
+	 */
+	void invalidate(K key)
+	{
+		Slot<K,V> slot = slots.remove(key);
+		if (slot != null)
+			clock.compareAndSet(slot.index, slot, null);
+	}
+}
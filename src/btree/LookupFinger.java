@@ -0,0 +1,129 @@
+package btree;
+
+import java.util.Arrays;
+
+/**
+ * The path from the root of a B-Tree to the leaf a reader last looked a key up in, along
+ * with the range of keys covered by each node on the path.
+ *
+ * This is an internal class that should not be used outside the btree package.
+ *
+ * The {@link Finger} of a tree is built by its inserts, which hold the tree alone.  Readers
+ * may share the tree, so each reading thread keeps a finger of its own, and moves it in
+ * place rather than building a new one: a key outside the leaf of the finger climbs the
+ * path only as far as the first node whose range covers the key, and descends again from
+ * there.  Keys looked up in order climb one level for most leaves, and rarely more, so a
+ * sequential read costs a constant number of nodes per key, amortized, while a random one
+ * costs a single descent - and neither allocates anything.
+ *
+ * The path is only valid while the structure of the tree is unchanged, so it is stamped
+ * with the count of structural changes the tree had made when it was found, and found
+ * again from the root once that count moves on.
+ *
+ * @author tbriggs
+ *
+ * @param <K> - The key type of the key-value pair
+ * @param <V> - The value type of the key-value pair
+ */
+final class LookupFinger<K extends Comparable<K>, V> {
+
+	InnerNode<K,V>[] nodes;			// the inner-nodes on the path, from the root
+	int[] index;					// the child followed in each of the inner-nodes
+	Object[] lows;					// the least key each inner-node covers (inclusive), or null if unbounded
+	Object[] highs;					// the key each inner-node covers up to (exclusive), or null if unbounded
+	int depth;						// the number of inner-nodes on the path
+
+	LeafNode<K,V> leaf;				// the leaf at the end of the path, or null if there is no path
+	K low;							// the least key the leaf covers (inclusive), or null if unbounded
+	K high;							// the key the leaf covers up to (exclusive), or null if unbounded
+
+	int structure;					// the structural changes of the tree when the path was found
+	long visits;					// the inner-nodes descended through, over every lookup
+
+
+	@SuppressWarnings({"unchecked","rawtypes"})
+	LookupFinger( )
+	{
+		nodes = (InnerNode<K,V>[]) new InnerNode[8];
+		index = new int[8];
+		lows = new Object[8];
+		highs = new Object[8];
+	}
+
+	/**
+	 * Move the finger to the leaf that should contain a key
+	 * @param tree - the tree to look in (which must not be empty)
+	 * @param key - the key to move to
+	 * @return the leaf
+	 */
+	@SuppressWarnings("unchecked")
+	LeafNode<K,V> moveTo(BTree<K,V> tree, K key)
+	{
+		if ((leaf == null) || (structure != tree.structure)) {
+			structure = tree.structure;
+			depth = 0;
+			descend(tree.root, key, null, null);
+		}
+		else if ((depth > 0) && !covers(low, high, key)) {
+			// climb to the deepest node whose range covers the key, and descend from it
+			int d = depth - 1;
+			while ((d > 0) && !covers((K) lows[d], (K) highs[d], key))
+				d--;
+			depth = d;
+			descend(nodes[d], key, (K) lows[d], (K) highs[d]);
+		}
+		return leaf;
+	}
+
+	/**
+	 * Predicate to test if the filter of the leaf (if the tree keeps one) might hold a key
+	 */
+	boolean mightContain(K key)
+	{
+		return (depth == 0) || nodes[depth - 1].mightContain(index[depth - 1], key);
+	}
+
+	/**
+	 * Descend from a node (which covers the given range) to the leaf that should contain a
+	 * key, extending the path, and narrowing the range at each level
+	 */
+	private void descend(BTreeNode<K,V> node, K key, K lo, K hi)
+	{
+		BTreeNode<K,V> curr = node;
+		while (curr instanceof InnerNode)
+		{
+			InnerNode<K,V> inner = (InnerNode<K,V>) curr;
+			int i = inner.getChildIndexForKey(key);
+			if (depth == nodes.length) {
+				nodes = Arrays.copyOf(nodes, depth * 2);
+				index = Arrays.copyOf(index, depth * 2);
+				lows = Arrays.copyOf(lows, depth * 2);
+				highs = Arrays.copyOf(highs, depth * 2);
+			}
+			nodes[depth] = inner;
+			index[depth] = i;
+			lows[depth] = lo;
+			highs[depth++] = hi;
+			visits++;
+
+			if (i > 0)
+				lo = inner.keys.get(i - 1);
+			if (i < inner.keys.size())
+				hi = inner.keys.get(i);
+			curr = inner.children.get(i);
+		}
+
+		leaf = (LeafNode<K,V>) curr;
+		low = lo;
+		high = hi;
+	}
+
+	/**
+	 * Predicate to test if a key falls in a range
+	 */
+	private static <K extends Comparable<K>> boolean covers(K lo, K hi, K key)
+	{
+		return ((lo == null) || (key.compareTo(lo) >= 0)) &&
+				((hi == null) || (key.compareTo(hi) < 0));
+	}
+}
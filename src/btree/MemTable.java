@@ -0,0 +1,375 @@
+package btree;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * An in-memory write buffer (memtable) in front of a {@link BTree}.
+ *
+ *   Structural changes to the B-Tree (splitting nodes on insert, collapsing them on
+ *   delete) are expensive, and while they happen, readers of the tree must wait.  The
+ *   memtable absorbs bursts of writes into a sorted, concurrent buffer instead.  Deletes
+ *   are recorded as tombstones, so they can hide keys that are still in the tree.
+ *
+ *   A background thread swaps the buffer for an empty one once it holds enough writes
+ *   (or the merge interval has passed), and merges the old buffer into the tree in key
+ *   order.  The tree is only locked for a small batch of the merge at a time, so readers
+ *   are interleaved with the merge rather than stalled behind it.  If the writers get
+ *   too far ahead of the merge, they wait for it.
+ *
+ *   Lookups check the current buffer, then the buffer being merged, and only then descend
+ *   the tree.  Like the {@link BufferedBTree}, an insert of a key that is already present
+ *   keeps the existing value, while an upsert replaces it.
+ *
+ *   All access to the tree must go through the memtable, as it holds the lock on the tree.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <K> - A Comparable type for the key of the key-value pair
+ * @param <V> - The value for the key-value pair for this type of B-Tree
+ */
+public class MemTable<K extends Comparable<K>, V> implements AutoCloseable {
+
+	static final int MERGE_BATCH = 128;	// the messages merged per hold of the tree lock
+
+	final BTree<K,V> tree;			// the tree the writes are merged into
+	final ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock( );
+
+	final int mergeThreshold;		// the number of writes that triggers a merge
+	final int maxSize;				// the number of writes at which writers wait for a merge
+	final long mergeInterval;		// the longest time (ms) between merges, 0 for no timer
+
+	volatile ConcurrentSkipListMap<K, Message<K,V>> active;		// the buffer taking writes
+	volatile ConcurrentSkipListMap<K, Message<K,V>> merging;	// the buffer being merged, or null
+	final AtomicInteger activeWrites = new AtomicInteger( );	// the writes made to the active buffer
+
+	private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock( );
+	private final ReentrantLock mergeLock = new ReentrantLock( );
+	private final ReentrantLock signal = new ReentrantLock( );
+	private final Condition mergeWanted = signal.newCondition( );
+	private final Condition mergeDone = signal.newCondition( );
+
+	private volatile boolean closed = false;
+	private final Thread merger;
+
+
+	/**
+	 * Construct a memtable in front of the given tree, and start its background merge.
+	 *
+	 * @param tree - the tree to merge the writes into
+	 * @param mergeThreshold - the number of buffered writes that triggers a merge
+	 * @param maxSize - the number of buffered writes at which writers wait for the merge
+	 * @param mergeInterval - the longest time (in milliseconds) between merges, or 0 to
+	 * 		only merge when the threshold is reached
+	 */
+	public MemTable(BTree<K,V> tree, int mergeThreshold, int maxSize, long mergeInterval)
+	{
+		if (maxSize < mergeThreshold)
+			throw new RuntimeException("Error - the memtable size is below the merge threshold");
+
+		this.tree = tree;
+		this.mergeThreshold = mergeThreshold;
+		this.maxSize = maxSize;
+		this.mergeInterval = mergeInterval;
+
+		active = new ConcurrentSkipListMap<K, Message<K,V>>( );
+		merging = null;
+
+		merger = new Thread(new Runnable() {
+			public void run() { runMerger(); }
+		}, "memtable-merge");
+		merger.setDaemon(true);
+		merger.start();
+	}
+
+	/**
+	 * Insert a key/value pair.  If the key is already present when the insert
+	 * is merged, the existing value is kept.
+	 *
+	 * @param key - the key to add
+	 * @param value - the value to add
+	 */
+	public void insert(K key, V value)
+	{
+		put(new Message<K,V>(Message.Op.INSERT, key, value));
+	}
+
+	/**
+	 * Insert a key/value pair, replacing any existing value of the key.
+	 *
+	 * @param key - the key to add or update
+	 * @param value - the value to associate with the key
+	 */
+	public void upsert(K key, V value)
+	{
+		put(new Message<K,V>(Message.Op.UPSERT, key, value));
+	}
+
+	/**
+	 * Delete a key, by buffering a tombstone for it.
+	 *
+	 * @param key - the key to delete
+	 */
+	public void delete(K key)
+	{
+		put(new Message<K,V>(Message.Op.DELETE, key, null));
+	}
+
+	/**
+	 * Search for the indicated key and return the associated value.  The buffers hold
+	 * newer state than the tree, so they are checked first.
+	 *
+	 * @param key - the key to find
+	 * @return the value associated with the key
+	 */
+	public V find(K key)
+	{
+		// read each buffer once, the merge may swap them at any time
+		ConcurrentSkipListMap<K, Message<K,V>> newer = active;
+		ConcurrentSkipListMap<K, Message<K,V>> older = merging;
+
+		Message<K,V> msg = newer.get(key);
+		if (older != null) {
+			Message<K,V> prev = older.get(key);
+			if (prev != null)
+				msg = (msg == null) ? prev : combine(prev, msg);
+		}
+
+		if (msg != null) {
+			if (msg.op == Message.Op.UPSERT) return msg.value;
+			if (msg.op == Message.Op.DELETE)
+				throw new RuntimeException("Error - key was not found in the tree");
+		}
+
+		treeLock.readLock().lock();
+		try {
+			// an insert only takes effect if the tree does not hold the key
+			if ((msg != null) && !tree.containsKey(key))
+				return msg.value;
+
+			return tree.find(key);
+		}
+		finally {
+			treeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Merge all of the buffered writes into the tree before returning.
+	 */
+	public void flush( )
+	{
+		mergeNow();
+	}
+
+	/**
+	 * Stop the background merge, and merge any remaining writes into the tree.
+	 */
+	@Override
+	public void close( )
+	{
+		closed = true;
+
+		signal.lock();
+		try {
+			mergeWanted.signalAll();
+			mergeDone.signalAll();
+		}
+		finally {
+			signal.unlock();
+		}
+
+		try {
+			merger.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		mergeNow();
+	}
+
+	/**
+	 * Add a message to the active buffer, combining it with any buffered message
+	 * for the same key, and trigger (or wait for) a merge as needed.
+	 *
+	 * @param msg - the message to add
+	 */
+	private void put(Message<K,V> msg)
+	{
+		if (closed)
+			throw new RuntimeException("Error - the memtable is closed");
+
+		// writers share the swap lock, so no write is lost while the buffers are swapped
+		int writes;
+		swapLock.readLock().lock();
+		try {
+			active.merge(msg.key, msg, MemTable::combine);
+			writes = activeWrites.incrementAndGet();
+		}
+		finally {
+			swapLock.readLock().unlock();
+		}
+
+		if (writes == mergeThreshold) {
+			signal.lock();
+			try {
+				mergeWanted.signal();
+			}
+			finally {
+				signal.unlock();
+			}
+		}
+
+		// the merge has fallen behind, so hold this writer until the buffer is swapped
+		if (writes >= maxSize) {
+			signal.lock();
+			try {
+				while (!closed && (activeWrites.get() >= maxSize)) {
+					mergeWanted.signal();
+					mergeDone.awaitUninterruptibly();
+				}
+			}
+			finally {
+				signal.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Combine an older and a newer buffered message for the same key into the single
+	 * message that has the same effect.  Only an insert depends on the older state: it
+	 * is dropped if the key was present, and always takes effect after a delete.
+	 *
+	 * @param older - the earlier message
+	 * @param newer - the later message
+	 * @return the combined message
+	 */
+	static <K extends Comparable<K>, V> Message<K,V> combine(Message<K,V> older, Message<K,V> newer)
+	{
+		if (newer.op != Message.Op.INSERT)
+			return newer;
+
+		if (older.op == Message.Op.DELETE)
+			return new Message<K,V>(Message.Op.UPSERT, newer.key, newer.value);
+
+		return older;
+	}
+
+	/**
+	 * The body of the background merge thread.  It waits for the threshold to be reached
+	 * (or the interval to pass) and merges the buffer, until the memtable is closed.
+	 */
+	private void runMerger( )
+	{
+		while (!closed)
+		{
+			signal.lock();
+			try {
+				long wait = TimeUnit.MILLISECONDS.toNanos(mergeInterval);
+				while (!closed && (activeWrites.get() < mergeThreshold))
+				{
+					if (mergeInterval <= 0)
+						mergeWanted.await();
+					else if (wait > 0)
+						wait = mergeWanted.awaitNanos(wait);
+					else
+						break;
+				}
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			finally {
+				signal.unlock();
+			}
+
+			if (!closed)
+				mergeNow();
+		}
+	}
+
+	/**
+	 * Swap the active buffer for an empty one, and merge the old buffer into the tree
+	 * in key order.  The tree is locked for {@link #MERGE_BATCH} messages at a time.
+	 */
+	private void mergeNow( )
+	{
+		mergeLock.lock();
+		try {
+			ConcurrentSkipListMap<K, Message<K,V>> batch;
+
+			swapLock.writeLock().lock();
+			try {
+				batch = active;
+				if (batch.isEmpty()) return;
+
+				merging = batch;
+				active = new ConcurrentSkipListMap<K, Message<K,V>>( );
+				activeWrites.set(0);
+			}
+			finally {
+				swapLock.writeLock().unlock();
+			}
+
+			// there is room in the buffer again, so release any waiting writers
+			signal.lock();
+			try {
+				mergeDone.signalAll();
+			}
+			finally {
+				signal.unlock();
+			}
+
+			Iterator<Message<K,V>> it = batch.values().iterator();
+			while (it.hasNext())
+			{
+				treeLock.writeLock().lock();
+				try {
+					for (int n = 0; (n < MERGE_BATCH) && it.hasNext(); n++)
+						apply(it.next());
+				}
+				finally {
+					treeLock.writeLock().unlock();
+				}
+			}
+
+			merging = null;
+		}
+		finally {
+			mergeLock.unlock();
+		}
+	}
+
+	/**
+	 * Apply a single buffered message to the tree
+	 *
+	 * @param msg - the message to apply
+	 */
+	private void apply(Message<K,V> msg)
+	{
+		switch (msg.op)
+		{
+		case INSERT:
+			if (!tree.containsKey(msg.key))
+				tree.insert(msg.key, msg.value);
+			break;
+
+		case UPSERT:
+			tree.upsert(msg.key, msg.value);
+			break;
+
+		case DELETE:
+			tree.delete(msg.key);
+			break;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package btree;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Set operations and joins between two B-Trees, by merging their keys in order.
+ *
+ *   Each operation walks the leaves of both trees together, in key order, rather than
+ *   looking up every key of one tree in the other.  Where one side is behind the other,
+ *   it is advanced to the key of the other: within its current leaf by a binary search,
+ *   or, if the key is beyond that leaf, by a single descent from the root - so runs of
+ *   keys that have no partner on the other side are skipped over, not visited.  An
+ *   intersection (or join) of a small tree with a large one costs a descent of the large
+ *   tree for each key of the small one, at worst, and a scan of both when their keys
+ *   interleave closely.
+ *
+ *   The results are produced lazily, one at a time, as the iterator is advanced.  The
+ *   trees must not be changed while an iterator over them is in use.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ */
+public final class MergeJoin {
+
+	private MergeJoin( ) { }
+
+	/**
+	 * A key found in both trees of a join, with its value in each
+	 *
+	 * @param <K> - The key type
+	 * @param <V> - The value type of the left tree
+	 * @param <W> - The value type of the right tree
+	 */
+	public static final class Row<K, V, W> {
+
+		private final K key;
+		private final V left;
+		private final W right;
+
+		Row(K key, V left, W right)
+		{
+			this.key = key;
+			this.left = left;
+			this.right = right;
+		}
+
+		/**
+		 * The key found in both trees
+		 */
+		public K getKey( )
+		{
+			return key;
+		}
+
+		/**
+		 * The value of the key in the left tree
+		 */
+		public V getLeft( )
+		{
+			return left;
+		}
+
+		/**
+		 * The value of the key in the right tree
+		 */
+		public W getRight( )
+		{
+			return right;
+		}
+
+		public String toString( )
+		{
+			return key + "->(" + left + ", " + right + ")";
+		}
+	}
+
+	/**
+	 * The pairs of the left tree whose keys are also in the right tree, in key order
+	 *
+	 * @param left - the tree the pairs are taken from
+	 * @param right - the tree whose keys are kept
+	 * @return an iterator over the pairs
+	 */
+	public static <K extends Comparable<K>, V> Iterator<Map.Entry<K,V>> intersect(BTree<K,V> left, BTree<K,?> right)
+	{
+		final Iterator<? extends Row<K,V,?>> rows = join(left, right);
+		return new Iterator<Map.Entry<K,V>>() {
+			public boolean hasNext() { return rows.hasNext(); }
+			public Map.Entry<K,V> next() {
+				Row<K,V,?> row = rows.next();
+				return new AbstractMap.SimpleImmutableEntry<K,V>(row.key, row.left);
+			}
+		};
+	}
+
+	/**
+	 * The pairs of the left tree whose keys are not in the right tree, in key order
+	 *
+	 * @param left - the tree the pairs are taken from
+	 * @param right - the tree whose keys are removed
+	 * @return an iterator over the pairs
+	 */
+	public static <K extends Comparable<K>, V> Iterator<Map.Entry<K,V>> difference(BTree<K,V> left, BTree<K,?> right)
+	{
+		final Cursor<K,V> a = new Cursor<K,V>(left);
+		final Cursor<K,?> b = cursor(right);
+
+		return new Merge<Map.Entry<K,V>>() {
+			Map.Entry<K,V> advance() {
+				while (a.hasNext())
+				{
+					// once the right tree runs out, the rest of the left tree is kept
+					if (!b.hasNext())
+						return pair(a.next());
+
+					int c = a.peek().key.compareTo(b.peek().key);
+					if (c < 0)
+						return pair(a.next());
+					if (c == 0) {
+						a.next();
+						b.next();
+					}
+					else
+						b.advanceTo(a.peek().key);
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * The pairs of both trees, in key order.  A key in both trees appears once, with its
+	 * value in the left tree.
+	 *
+	 * @param left - the first tree, whose values are taken for the keys in both
+	 * @param right - the second tree
+	 * @return an iterator over the pairs
+	 */
+	public static <K extends Comparable<K>, V> Iterator<Map.Entry<K,V>> union(BTree<K,V> left, BTree<K,V> right)
+	{
+		final Cursor<K,V> a = new Cursor<K,V>(left);
+		final Cursor<K,V> b = new Cursor<K,V>(right);
+
+		return new Merge<Map.Entry<K,V>>() {
+			Map.Entry<K,V> advance() {
+				if (!a.hasNext())
+					return b.hasNext() ? pair(b.next()) : null;
+				if (!b.hasNext())
+					return pair(a.next());
+
+				int c = a.peek().key.compareTo(b.peek().key);
+				if (c > 0)
+					return pair(b.next());
+				if (c == 0)
+					b.next();
+				return pair(a.next());
+			}
+		};
+	}
+
+	/**
+	 * The keys found in both trees, with their values in each, in key order
+	 *
+	 * @param left - the left tree of the join
+	 * @param right - the right tree of the join
+	 * @return an iterator over the rows of the join
+	 */
+	public static <K extends Comparable<K>, V, W> Iterator<Row<K,V,W>> join(BTree<K,V> left, BTree<K,W> right)
+	{
+		final Cursor<K,V> a = new Cursor<K,V>(left);
+		final Cursor<K,W> b = new Cursor<K,W>(right);
+
+		return new Merge<Row<K,V,W>>() {
+			Row<K,V,W> advance() {
+				// leapfrog: whichever side is behind skips ahead to the key of the other
+				while (a.hasNext() && b.hasNext())
+				{
+					int c = a.peek().key.compareTo(b.peek().key);
+					if (c == 0) {
+						Entry<K,V> x = a.next();
+						Entry<K,W> y = b.next();
+						return new Row<K,V,W>(x.key, x.value, y.value);
+					}
+					if (c < 0)
+						a.advanceTo(b.peek().key);
+					else
+						b.advanceTo(a.peek().key);
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * A cursor over a tree whose value type does not matter
+	 */
+	private static <K extends Comparable<K>, W> Cursor<K,W> cursor(BTree<K,W> tree)
+	{
+		return new Cursor<K,W>(tree);
+	}
+
+	/**
+	 * A copy of an entry, safe to hand out of the package
+	 */
+	private static <K extends Comparable<K>, V> Map.Entry<K,V> pair(Entry<K,V> entry)
+	{
+		return new AbstractMap.SimpleImmutableEntry<K,V>(entry.key, entry.value);
+	}
+
+
+	/**
+	 * An iterator over the results of a merge, computing each result as it is asked for
+	 */
+	private static abstract class Merge<T> implements Iterator<T> {
+
+		private T next = null;
+		private boolean done = false;
+
+		/**
+		 * Compute the next result, or null if there are no more
+		 */
+		abstract T advance( );
+
+		public boolean hasNext( )
+		{
+			if ((next == null) && !done) {
+				next = advance();
+				done = (next == null);
+			}
+			return next != null;
+		}
+
+		public T next( )
+		{
+			if (!hasNext())
+				throw new NoSuchElementException( );
+			T t = next;
+			next = null;
+			return t;
+		}
+	}
+}
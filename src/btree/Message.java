@@ -0,0 +1,42 @@
+package btree;
+
+/**
+ * A pending update held in the message buffer of an inner-node of a
+ * {@link BufferedBTree}.  Messages are appended to the buffer of the root and
+ * move down the tree in batches, until they are applied to the leaf-node that
+ * holds their key.
+ *
+ * Within a buffer, messages are kept in arrival order, and buffers closer to the
+ * root always hold the newer messages for a given key.
+ *
+ * @author tbriggs
+ *
+ * @param <K> - The key type of the key-value pair
+ * @param <V> - The value type of the key-value pair
+ */
+class Message<K extends Comparable<K>, V>
+{
+	/**
+	 * The kind of update carried by the message
+	 */
+	enum Op {
+		INSERT,		// add the pair, unless the key is already present
+		UPSERT,		// add the pair, replacing any existing value
+		DELETE		// remove the key, if it is present
+	}
+
+	final Op op;
+	final K key;
+	final V value;
+
+	Message(Op op, K key, V value)
+	{
+		this.op = op;
+		this.key = key;
+		this.value = value;
+	}
+
+	public String toString( ) {
+		return op + "(" + key + ")";
+	}
+}
@@ -0,0 +1,192 @@
+package btree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A batch of lookups, answered by a single descent of a B-Tree.
+ *
+ * This is an internal class that should not be used outside the btree package.
+ *
+ * The keys of the batch are sorted, and the sorted run is split across the children of
+ * each inner-node by the separating keys, so each node on the way down is visited once for
+ * the whole batch (rather than once for each key beneath it).  A leaf is then searched by
+ * merging its entries with the keys that reached it.
+ *
+ * The runs beneath different children are independent, so a large batch can be searched
+ * in parallel: each child with enough keys beneath it becomes a task of its own.
+ *
+ * @author tbriggs
+ *
+ * @param <K> - The key type of the key-value pair
+ * @param <V> - The value type of the key-value pair
+ */
+final class MultiGet<K extends Comparable<K>, V> {
+
+	static final int FORK_THRESHOLD = 1024;	// the fewest keys worth a task of their own
+
+	final Object[] keys;		// the keys of the batch, sorted
+	final int[] order;			// the position in the batch of each sorted key
+	final Object[] values;		// the value found for each key of the batch, in the order of the batch
+	final long now;				// the time the expiry of the entries is judged at
+
+
+	/**
+	 * Sort a batch of keys
+	 * @param batch - the keys to look up
+	 * @param now - the time the expiry of the entries is judged at (0 if none can expire)
+	 */
+	MultiGet(Collection<K> batch, long now)
+	{
+		this.now = now;
+		final Object[] given = batch.toArray();
+		Integer[] sorted = new Integer[given.length];
+		for (int i = 0; i < given.length; i++)
+		{
+			if (given[i] == null)
+				throw new RuntimeException("Error - a batch cannot contain a null key");
+			sorted[i] = i;
+		}
+
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			@SuppressWarnings("unchecked")
+			public int compare(Integer a, Integer b) { return ((K) given[a]).compareTo((K) given[b]); }
+		});
+
+		keys = new Object[given.length];
+		order = new int[given.length];
+		for (int i = 0; i < given.length; i++)
+		{
+			keys[i] = given[sorted[i]];
+			order[i] = sorted[i];
+		}
+		values = new Object[given.length];
+	}
+
+	/**
+	 * Search beneath a node for the sorted keys from position from (inclusive) to
+	 * position to (exclusive), which must all route to that node
+	 */
+	@SuppressWarnings("unchecked")
+	void search(BTreeNode<K,V> node, int from, int to)
+	{
+		if (node instanceof LeafNode) {
+			// the entries are in order, so each key is searched for after the last
+			ArrayList<Entry<K,V>> entries = ((LeafNode<K,V>) node).children;
+			int j = 0;
+			for (int i = from; (i < to) && (j < entries.size()); i++)
+			{
+				K key = (K) keys[i];
+				int lo = j, hi = entries.size();
+				while (lo < hi)
+				{
+					int mid = (lo + hi) >>> 1;
+					if (entries.get(mid).key.compareTo(key) < 0) lo = mid + 1;
+					else hi = mid;
+				}
+				j = lo;
+				if ((j < entries.size()) && (entries.get(j).key.compareTo(key) == 0) && !entries.get(j).isExpired(now))
+					values[order[i]] = entries.get(j).value;
+			}
+			return;
+		}
+
+		InnerNode<K,V> inner = (InnerNode<K,V>) node;
+		int start = from;
+		for (int c = 0; (c < inner.children.size()) && (start < to); c++)
+		{
+			int end = split(inner, c, start, to);
+			if (end > start)
+				search(inner.children.get(c), start, end);
+			start = end;
+		}
+	}
+
+	/**
+	 * Search beneath a node, handing the children with enough keys beneath them to
+	 * the tasks of a pool
+	 */
+	void search(BTreeNode<K,V> node, ForkJoinPool pool)
+	{
+		pool.invoke(new Search(node, 0, keys.length));
+	}
+
+	/**
+	 * Find the end of the run of sorted keys (starting at start) that route to a child
+	 * of an inner-node
+	 * @return the position after the last key of the run
+	 */
+	@SuppressWarnings("unchecked")
+	private int split(InnerNode<K,V> inner, int c, int start, int to)
+	{
+		if (c >= inner.keys.size())
+			return to;
+
+		// a binary search, so a node costs a few comparisons for each child, rather than
+		// one for each key of the batch
+		K separator = inner.keys.get(c);
+		int lo = start, hi = to;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (((K) keys[mid]).compareTo(separator) < 0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * The values found, in the order of the batch (null for the keys that were not found)
+	 */
+	@SuppressWarnings("unchecked")
+	List<V> results( )
+	{
+		return (List<V>) Arrays.asList(values);
+	}
+
+
+	/**
+	 * The search of a run of the sorted keys beneath a node, as a task
+	 */
+	private final class Search extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final BTreeNode<K,V> node;
+		final int from;
+		final int to;
+
+		Search(BTreeNode<K,V> node, int from, int to)
+		{
+			this.node = node;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute( )
+		{
+			if ((to - from < FORK_THRESHOLD) || (node instanceof LeafNode)) {
+				search(node, from, to);
+				return;
+			}
+
+			InnerNode<K,V> inner = (InnerNode<K,V>) node;
+			ArrayList<Search> tasks = new ArrayList<Search>( );
+			int start = from;
+			for (int c = 0; (c < inner.children.size()) && (start < to); c++)
+			{
+				int end = split(inner, c, start, to);
+				if (end > start)
+					tasks.add(new Search(inner.children.get(c), start, end));
+				start = end;
+			}
+			invokeAll(tasks);
+		}
+	}
+}
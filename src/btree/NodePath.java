@@ -0,0 +1,70 @@
+package btree;
+
+import java.util.Arrays;
+
+/**
+ * The path from the root of a B-Tree to the leaf that should hold a key, kept by the tree
+ * and reused by every insert and delete.
+ *
+ * This is an internal class that should not be used outside the btree package.
+ *
+ * A descent records the inner-nodes it passes through and the child it follows in each,
+ * so a split can be carried back up the path, and the counts and aggregates of the nodes
+ * on the way down can be adjusted, without searching the nodes again.  Unlike a
+ * {@link Finger}, a path is overwritten by the next descent, so it allocates nothing -
+ * its arrays only grow when the tree grows deeper than any descent before.  As the
+ * insert and delete paths of the tree are not thread-safe, neither is the path.
+ *
+ * @author tbriggs
+ *
+ * @param <K> - The key type of the key-value pair
+ * @param <V> - The value type of the key-value pair
+ */
+final class NodePath<K extends Comparable<K>, V> {
+
+	InnerNode<K,V>[] nodes;			// the inner-nodes on the path, from the root
+	int[] index;					// the child followed in each of the inner-nodes
+	int depth;						// the number of inner-nodes on the path
+	LeafNode<K,V> leaf;				// the leaf at the end of the path
+
+
+	@SuppressWarnings({"unchecked","rawtypes"})
+	NodePath( )
+	{
+		nodes = (InnerNode<K,V>[]) new InnerNode[8];
+		index = new int[8];
+	}
+
+	/**
+	 * Descend from a node to the leaf that should contain a key, following the
+	 * separating keys, and recording the path
+	 * @param node - the node to start from (which must not be empty)
+	 * @param key - the key to descend to
+	 */
+	void descend(BTreeNode<K,V> node, K key)
+	{
+		depth = 0;
+		BTreeNode<K,V> curr = node;
+		while (curr instanceof InnerNode)
+		{
+			InnerNode<K,V> inner = (InnerNode<K,V>) curr;
+			int i = inner.getChildIndexForKey(key);
+			push(inner, i);
+			curr = inner.children.get(i);
+		}
+		leaf = (LeafNode<K,V>) curr;
+	}
+
+	/**
+	 * Add an inner-node (and the child followed in it) to the end of the path
+	 */
+	private void push(InnerNode<K,V> inner, int i)
+	{
+		if (depth == nodes.length) {
+			nodes = Arrays.copyOf(nodes, depth * 2);
+			index = Arrays.copyOf(index, depth * 2);
+		}
+		nodes[depth] = inner;
+		index[depth++] = i;
+	}
+}
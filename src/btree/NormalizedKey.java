@@ -0,0 +1,81 @@
+package btree;
+
+import java.util.Arrays;
+
+/**
+ * A key encoded as a byte string that sorts in the same order as the values it was
+ * encoded from, when compared as unsigned bytes.  Keys are built by a {@link KeyEncoder}.
+ *
+ *   Comparing two keys is a single loop over their bytes, whatever fields they hold,
+ *   so the comparisons made on every step down the tree and in every leaf search are
+ *   cheap, and (as this class is final) easily inlined - unlike a chain of compareTo
+ *   calls over the fields of a composite key.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ */
+public final class NormalizedKey implements Comparable<NormalizedKey> {
+
+	final byte[] bytes;
+
+	/**
+	 * Wrap an encoded key.  The array must not be changed afterwards.
+	 * @param bytes - the encoding
+	 */
+	public NormalizedKey(byte[] bytes)
+	{
+		this.bytes = bytes;
+	}
+
+	/**
+	 * The encoding of the key (a copy)
+	 */
+	public byte[] toBytes( )
+	{
+		return bytes.clone();
+	}
+
+	@Override
+	public int compareTo(NormalizedKey o)
+	{
+		return compare(bytes, o.bytes);
+	}
+
+	/**
+	 * Compare two byte strings as unsigned bytes, with a prefix sorting before the
+	 * longer string.
+	 *
+	 * @return a negative number, zero, or a positive number as a is less than, equal
+	 * to, or greater than b
+	 */
+	static int compare(byte[] a, byte[] b)
+	{
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++)
+		{
+			if (a[i] != b[i])
+				return (a[i] & 0xff) - (b[i] & 0xff);
+		}
+		return a.length - b.length;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		return (o instanceof NormalizedKey) && Arrays.equals(bytes, ((NormalizedKey) o).bytes);
+	}
+
+	@Override
+	public int hashCode( )
+	{
+		return Arrays.hashCode(bytes);
+	}
+
+	public String toString( ) {
+		StringBuilder sb = new StringBuilder( );
+		for (byte b : bytes)
+			sb.append(String.format("%02x", b & 0xff));
+		return sb.toString();
+	}
+}
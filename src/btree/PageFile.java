@@ -0,0 +1,195 @@
+package btree;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A disk file divided into fixed-size pages.
+ *
+ * This is an internal class that should not be used outside the btree package.
+ *
+ * Pages are numbered from zero, and a run of consecutive pages can be read or written
+ * with a single positional I/O.  Freed pages are tracked in a bitmap, and a new run is
+ * allocated from the first free run that is large enough (or at the end of the file).
+ * Free pages at the end of the file are given back by truncating it.
+ *
+ * Allocating and freeing pages is guarded by a lock; positional reads and writes need no
+ * locking, as long as the caller never touches a page after freeing it.  The lock is a
+ * ReentrantLock rather than a monitor, as freeing pages can truncate the file, and a
+ * virtual thread that blocks on I/O while holding a monitor pins its carrier thread.
+ *
+ * @author tbriggs
+ */
+class PageFile implements Closeable {
+
+	final FileChannel channel;	// the underlying file
+	final int pageSize;			// the size (in bytes) of each page
+
+	long pageCount;				// the number of pages in the file (allocated or free)
+	final BitSet free;			// the free pages (with numbers below pageCount)
+
+	private final ReentrantLock lock = new ReentrantLock( );	// guards the allocation of pages
+
+
+	/**
+	 * Create an empty page file.  The nodes that point into the file are held in
+	 * memory, so any existing file is truncated.
+	 * @param path - the file to create
+	 * @param pageSize - the size of each page
+	 * @throws IOException if the file cannot be created
+	 */
+	PageFile(Path path, int pageSize) throws IOException
+	{
+		this.pageSize = pageSize;
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		pageCount = 0;
+		free = new BitSet( );
+	}
+
+	/**
+	 * The number of pages needed to hold the given number of bytes
+	 * @param bytes - the size of the data
+	 * @return the number of pages
+	 */
+	int pagesFor(int bytes)
+	{
+		return (bytes + pageSize - 1) / pageSize;
+	}
+
+	/**
+	 * Allocate a run of consecutive pages, from the first free run that is large
+	 * enough, or else at the end of the file
+	 * @param pages - the number of pages
+	 * @return the number of the first page
+	 */
+	long allocate(int pages)
+	{
+		lock.lock();
+		try {
+			for (int first = free.nextSetBit(0); first >= 0; )
+			{
+				int end = free.nextClearBit(first);
+				if (end - first >= pages) {
+					free.clear(first, first + pages);
+					return first;
+				}
+				first = free.nextSetBit(end);
+			}
+
+			return append(pages);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Allocate a run of consecutive pages at the end of the file, ignoring any free pages
+	 * @param pages - the number of pages
+	 * @return the number of the first page
+	 */
+	long append(int pages)
+	{
+		lock.lock();
+		try {
+			long first = pageCount;
+			pageCount += pages;
+			return first;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Free a run of pages, so it can be allocated again.  Once the end of the file
+	 * is free, the file is truncated.
+	 * @param page - the first page of the run
+	 * @param pages - the number of pages
+	 * @throws IOException if the file cannot be truncated
+	 */
+	void free(long page, int pages) throws IOException
+	{
+		lock.lock();
+		try {
+			int next = (page < 0) ? -1 : free.nextSetBit((int) page);
+			if ((page < 0) || (page + pages > pageCount) || ((next >= 0) && (next < page + pages)))
+				throw new RuntimeException("Error - pages " + page + "+" + pages + " are not allocated");
+
+			free.set((int) page, (int) page + pages);
+
+			// give back the free pages at the end of the file
+			int last = free.previousClearBit((int) pageCount - 1);
+			if (last + 1 < pageCount) {
+				free.clear(last + 1, (int) pageCount);
+				pageCount = last + 1;
+				channel.truncate(pageCount * pageSize);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The number of free pages inside the file
+	 */
+	int freeCount( )
+	{
+		lock.lock();
+		try {
+			return free.cardinality();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Write data to the file, starting at the beginning of the given page
+	 * @param page - the first page to write
+	 * @param data - the data to write (from its position to its limit)
+	 * @throws IOException if the write fails
+	 */
+	void write(long page, ByteBuffer data) throws IOException
+	{
+		long offset = page * pageSize;
+		while (data.hasRemaining())
+			offset += channel.write(data, offset);
+	}
+
+	/**
+	 * Read data from the file, starting at the beginning of the given page
+	 * @param page - the first page to read
+	 * @param data - the buffer to fill (from its position to its limit)
+	 * @throws IOException if the read fails, or passes the end of the file
+	 */
+	void read(long page, ByteBuffer data) throws IOException
+	{
+		long offset = page * pageSize;
+		while (data.hasRemaining())
+		{
+			int n = channel.read(data, offset);
+			if (n < 0)
+				throw new EOFException("Error - page " + page + " is past the end of the file");
+			offset += n;
+		}
+	}
+
+	/**
+	 * Close the file
+	 */
+	@Override
+	public void close( ) throws IOException
+	{
+		channel.close();
+	}
+}
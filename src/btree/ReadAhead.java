@@ -0,0 +1,179 @@
+package btree;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A scan over the values of a {@link LobBTree}, in key order, that reads ahead.
+ *
+ *   A value held out of line needs a read of the overflow file, and a scan that reads
+ *   each value as it gets to it stalls on every one.  Instead, the scan keeps a window
+ *   of the next values in flight on the I/O threads of the tree, so the reads overlap
+ *   each other and the work of the caller.
+ *
+ *   The depth of the window adapts to the speed of the scan.  When the caller has to
+ *   wait for a value, the scan is outrunning the reads, and the depth is doubled (up to
+ *   {@link #MAX_DEPTH}).  When a whole window of values is ready in time, the reads are
+ *   keeping up, and the depth is reduced by one - so a slow caller does not hold many
+ *   values it may never use.  The values still in flight when the scan is closed were
+ *   read for nothing, and are counted as wasted by the tree.
+ *
+ *   As with the key iterators, the tree must not be updated during a scan, although
+ *   it may be compacted.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <K> - A Comparable type for the key of the key-value pair
+ */
+public final class ReadAhead<K extends Comparable<K>> implements Iterator<byte[]>, Closeable {
+
+	public static final int MAX_DEPTH = 32;	// the most values read ahead
+
+	private final LobBTree<K> tree;
+	private final Cursor<K, ValueRef> cursor;
+	private final ArrayDeque<Pending<K>> window;	// the values read ahead, in key order
+
+	int depth;			// the number of values to keep in flight
+	private int ready;	// the values found ready since the depth last changed
+	private K key;		// the key of the last value returned
+
+
+	/**
+	 * A value that has been read ahead
+	 */
+	private static final class Pending<K> {
+		final K key;
+		final Future<byte[]> value;
+		final boolean prefetched;	// true if the value is being read from the overflow file
+
+		Pending(K key, Future<byte[]> value, boolean prefetched)
+		{
+			this.key = key;
+			this.value = value;
+			this.prefetched = prefetched;
+		}
+	}
+
+
+	/**
+	 * Construct a scan starting at the first key greater than or equal to the given key
+	 * @param tree - the tree to scan
+	 * @param from - the key to start from (or null for the first key)
+	 */
+	ReadAhead(LobBTree<K> tree, K from)
+	{
+		this.tree = tree;
+		this.cursor = new Cursor<K, ValueRef>(tree.tree);
+		this.window = new ArrayDeque<Pending<K>>( );
+		this.depth = 1;
+
+		if (from != null)
+			cursor.seek(from);
+		fill();
+	}
+
+	/**
+	 * Predicate to test if there is another value
+	 */
+	@Override
+	public boolean hasNext( )
+	{
+		return !window.isEmpty();
+	}
+
+	/**
+	 * Return the next value, waiting for it to be read if need be
+	 */
+	@Override
+	public byte[] next( )
+	{
+		Pending<K> head = window.poll();
+		if (head == null)
+			throw new NoSuchElementException( );
+
+		if (head.prefetched) {
+			if (head.value.isDone()) {
+				if (++ready >= depth) {
+					depth = Math.max(1, depth - 1);
+					ready = 0;
+				}
+			}
+			else {
+				tree.prefetchStalls.incrementAndGet();
+				depth = Math.min(MAX_DEPTH, depth * 2);
+				ready = 0;
+			}
+		}
+
+		fill();
+		key = head.key;
+
+		try {
+			return head.value.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Error - interrupted reading a value", e);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException("Error - the value of " + head.key + " could not be read", e.getCause());
+		}
+	}
+
+	/**
+	 * The key of the value last returned by {@link #next()}
+	 */
+	public K key( )
+	{
+		return key;
+	}
+
+	/**
+	 * Finish the scan, abandoning the values still being read ahead
+	 */
+	@Override
+	public void close( )
+	{
+		for (Pending<K> pending : window)
+		{
+			if (pending.prefetched) {
+				pending.value.cancel(false);
+				tree.prefetchWasted.incrementAndGet();
+			}
+		}
+		window.clear();
+	}
+
+	/**
+	 * Start reading the next values, until the window is full
+	 */
+	private void fill( )
+	{
+		while ((window.size() < depth) && cursor.hasNext())
+		{
+			final Entry<K, ValueRef> entry = cursor.next();
+
+			if (entry.value.isInline()) {
+				window.add(new Pending<K>(entry.key, CompletableFuture.completedFuture(entry.value.inline), false));
+				continue;
+			}
+
+			// read whatever the entry refers to when the read starts, in case it was compacted
+			Future<byte[]> value = tree.io().submit(new Callable<byte[]>() {
+				public byte[] call() throws Exception {
+					return tree.load(entry);
+				}
+			});
+			tree.prefetches.incrementAndGet();
+			window.add(new Pending<K>(entry.key, value, true));
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package btree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes keys or values of a B-Tree to (and decodes them from) binary pages.
+ *
+ * Every persistent form of the tree - snapshots, and the pages of a disk-backed tree -
+ * encodes its keys and values through a serializer, rather than with Java serialization.
+ * The common types have built-in serializers in {@link Serializers}.
+ *
+ * A serializer whose encodings all have the same width should implement
+ * {@link FixedWidthSerializer}, which lets a page of encoded keys be searched
+ * by offset arithmetic, without decoding the page.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <T> - the type that is encoded
+ */
+public interface Serializer<T> {
+
+	/**
+	 * The {@link #width()} of a serializer whose encodings vary in size
+	 */
+	int VARIABLE_WIDTH = -1;
+
+	/**
+	 * The width (in bytes) of every encoding, or {@link #VARIABLE_WIDTH}
+	 * @return the fixed width of the encodings
+	 */
+	int width( );
+
+	/**
+	 * The size (in bytes) of the encoding of the given value
+	 * @param value - the value to encode
+	 * @return the size of its encoding
+	 */
+	int sizeOf(T value);
+
+	/**
+	 * Write the encoding of a value at the position of the buffer, advancing the position
+	 * @param buf - the buffer to write to
+	 * @param value - the value to encode
+	 */
+	void write(ByteBuffer buf, T value);
+
+	/**
+	 * Read an encoded value at the position of the buffer, advancing the position
+	 * @param buf - the buffer to read from
+	 * @return the decoded value
+	 */
+	T read(ByteBuffer buf);
+}
@@ -0,0 +1,142 @@
+package btree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * The built-in {@link Serializer}s.
+ *
+ * The numeric types and UUIDs are fixed-width, and compare their encodings with
+ * primitive comparisons.  Strings (as UTF-8) and byte arrays are variable-width,
+ * and are encoded as a 4-byte length followed by the bytes.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ */
+public final class Serializers {
+
+	private Serializers( ) { }
+
+	/**
+	 * Longs, as 8 bytes
+	 */
+	public static final FixedWidthSerializer<Long> LONG = new FixedWidthSerializer<Long>() {
+		public int width() { return 8; }
+		public void write(ByteBuffer buf, Long value) { buf.putLong(value); }
+		public Long read(ByteBuffer buf) { return buf.getLong(); }
+		public Long readAt(ByteBuffer buf, int offset) { return buf.getLong(offset); }
+		public int compareAt(ByteBuffer buf, int offset, Long value) {
+			return Long.compare(buf.getLong(offset), value);
+		}
+	};
+
+	/**
+	 * Integers, as 4 bytes
+	 */
+	public static final FixedWidthSerializer<Integer> INTEGER = new FixedWidthSerializer<Integer>() {
+		public int width() { return 4; }
+		public void write(ByteBuffer buf, Integer value) { buf.putInt(value); }
+		public Integer read(ByteBuffer buf) { return buf.getInt(); }
+		public Integer readAt(ByteBuffer buf, int offset) { return buf.getInt(offset); }
+		public int compareAt(ByteBuffer buf, int offset, Integer value) {
+			return Integer.compare(buf.getInt(offset), value);
+		}
+	};
+
+	/**
+	 * Doubles, as 8 bytes (ordered as {@link Double#compareTo(Double)})
+	 */
+	public static final FixedWidthSerializer<Double> DOUBLE = new FixedWidthSerializer<Double>() {
+		public int width() { return 8; }
+		public void write(ByteBuffer buf, Double value) { buf.putDouble(value); }
+		public Double read(ByteBuffer buf) { return buf.getDouble(); }
+		public Double readAt(ByteBuffer buf, int offset) { return buf.getDouble(offset); }
+		public int compareAt(ByteBuffer buf, int offset, Double value) {
+			return Double.compare(buf.getDouble(offset), value);
+		}
+	};
+
+	/**
+	 * UUIDs, as 16 bytes (the most significant half first, ordered as {@link UUID#compareTo(UUID)})
+	 */
+	public static final FixedWidthSerializer<UUID> UUID = new FixedWidthSerializer<UUID>() {
+		public int width() { return 16; }
+		public void write(ByteBuffer buf, UUID value) {
+			buf.putLong(value.getMostSignificantBits());
+			buf.putLong(value.getLeastSignificantBits());
+		}
+		public UUID read(ByteBuffer buf) {
+			long msb = buf.getLong();
+			return new UUID(msb, buf.getLong());
+		}
+		public UUID readAt(ByteBuffer buf, int offset) {
+			return new UUID(buf.getLong(offset), buf.getLong(offset + 8));
+		}
+		public int compareAt(ByteBuffer buf, int offset, UUID value) {
+			int c = Long.compare(buf.getLong(offset), value.getMostSignificantBits());
+			return (c != 0) ? c : Long.compare(buf.getLong(offset + 8), value.getLeastSignificantBits());
+		}
+	};
+
+	/**
+	 * Strings, as a 4-byte length and the UTF-8 bytes
+	 */
+	public static final Serializer<String> STRING = new Serializer<String>() {
+		public int width() { return VARIABLE_WIDTH; }
+		public int sizeOf(String value) { return 4 + utf8Length(value); }
+		public void write(ByteBuffer buf, String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			buf.putInt(bytes.length);
+			buf.put(bytes);
+		}
+		public String read(ByteBuffer buf) {
+			byte[] bytes = new byte[buf.getInt()];
+			buf.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	};
+
+	/**
+	 * Byte arrays, as a 4-byte length and the bytes
+	 */
+	public static final Serializer<byte[]> BYTES = new Serializer<byte[]>() {
+		public int width() { return VARIABLE_WIDTH; }
+		public int sizeOf(byte[] value) { return 4 + value.length; }
+		public void write(ByteBuffer buf, byte[] value) {
+			buf.putInt(value.length);
+			buf.put(value);
+		}
+		public byte[] read(ByteBuffer buf) {
+			byte[] bytes = new byte[buf.getInt()];
+			buf.get(bytes);
+			return bytes;
+		}
+	};
+
+	/**
+	 * The length of the UTF-8 encoding of a string, without encoding it.  An unpaired
+	 * surrogate is counted as the single replacement byte the encoder writes for it.
+	 *
+	 * @param s - the string
+	 * @return the length of its encoding in bytes
+	 */
+	static int utf8Length(String s)
+	{
+		int length = 0;
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c < 0x80) length += 1;
+			else if (c < 0x800) length += 2;
+			else if (Character.isHighSurrogate(c) && (i + 1 < s.length()) && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			}
+			else if (Character.isSurrogate(c)) length += 1;
+			else length += 3;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,584 @@
+package btree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * A thread-safe B-Tree, range-partitioned across a number of independent trees (shards).
+ *
+ *   A single tree behind a single lock serializes every update, however many cores there
+ *   are.  Here, the key space is cut into ranges, and each range is held by a {@link BTree}
+ *   of its own, behind a read/write lock of its own, so operations on keys in different
+ *   shards never wait for each other.  Finding the shard of a key is a binary search of an
+ *   immutable array of the ranges, without any lock at all.
+ *
+ *   Each shard counts the operations made on it.  Every {@link #REBALANCE_OPS} operations
+ *   on a shard (provided the shards together have taken as many since the last check, so
+ *   the load is judged over a long enough window), the load of the shards is compared.
+ *   While there is room for another shard, the hottest shard is split at its middle key if
+ *   it takes more than half as much again as its share of the operations - or, if it is
+ *   the only shard, if it took {@link #REBALANCE_OPS} operations since the last check, so a
+ *   busy tree that starts as a single shard is spread out too.  The coldest pair of
+ *   neighbouring shards is merged if it takes less than half a share between them.  The
+ *   ranges are replaced as a new array, and the retired shards are marked, so an operation
+ *   that was waiting on a retired shard routes its key again.
+ *
+ *   A range scan visits the shards in key order, copying up to {@link #RANGE_BATCH} pairs
+ *   at a time under the read lock of their shard, so a long scan never holds a shard for
+ *   long; each batch is consistent, but the scan as a whole is not a snapshot.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <K> - A Comparable type for the key of the key-value pair
+ * @param <V> - The value for the key-value pair for this type of B-Tree
+ */
+public class ShardedBTree<K extends Comparable<K>, V> {
+
+	public static final int DEFAULT_MAX_SHARDS = 64;	// the most shards the load is spread over
+	static final int REBALANCE_OPS = 1 << 16;			// the operations on a shard between checks of the load
+	static final int MIN_SPLIT = 64;					// the fewest pairs a shard needs to be split
+	static final int RANGE_BATCH = 256;					// the most pairs a range scan copies under one hold of a lock
+
+	final int maxEntries;				// the degree of the shards
+	final int maxShards;				// the most shards to split the key space into
+
+	volatile Shard<K,V>[] shards;		// the shards, in key order - replaced as a whole on a split or merge
+	private final ReentrantLock rebalancing = new ReentrantLock( );	// one rebalance at a time
+
+
+	/**
+	 * A range of the key space, and the tree that holds it
+	 */
+	static final class Shard<K extends Comparable<K>, V> {
+		final K low;					// the least key of the range (inclusive), or null for the first shard
+		final BTree<K,V> tree;
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock( );
+		final AtomicLong ops = new AtomicLong( );	// the operations made on the shard
+		long checked;					// the operations at the last rebalance
+		volatile boolean retired;		// true once the shard has been split or merged away
+
+		Shard(K low, BTree<K,V> tree)
+		{
+			this.low = low;
+			this.tree = tree;
+		}
+	}
+
+
+	/**
+	 * Construct an empty tree, starting with a single shard
+	 *
+	 * @param maxEntries - The degree (maximum number of entries in the nodes) of each shard
+	 */
+	public ShardedBTree(int maxEntries)
+	{
+		this(maxEntries, DEFAULT_MAX_SHARDS, new ArrayList<K>( ));
+	}
+
+	/**
+	 * Construct an empty tree, starting with a shard for each range between the given
+	 * boundaries
+	 *
+	 * @param maxEntries - The degree (maximum number of entries in the nodes) of each shard
+	 * @param maxShards - the most shards the load is split over
+	 * @param boundaries - the least key of each shard after the first, in ascending order
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public ShardedBTree(int maxEntries, int maxShards, Collection<K> boundaries)
+	{
+		if (maxShards < boundaries.size() + 1)
+			throw new RuntimeException("Error - there are more boundaries than shards");
+
+		this.maxEntries = maxEntries;
+		this.maxShards = maxShards;
+
+		ArrayList<Shard<K,V>> list = new ArrayList<Shard<K,V>>( );
+		list.add(new Shard<K,V>(null, new BTree<K,V>(maxEntries)));
+		for (K low : boundaries)
+		{
+			K last = list.get(list.size() - 1).low;
+			if ((last != null) && (low.compareTo(last) <= 0))
+				throw new RuntimeException("Error - the boundaries must be unique and in ascending order");
+			list.add(new Shard<K,V>(low, new BTree<K,V>(maxEntries)));
+		}
+		shards = list.toArray(new Shard[list.size()]);
+	}
+
+	/**
+	 * Insert a key/value pair.  Inserting a key that already exists fails with an exception.
+	 *
+	 * @param key - the key to add
+	 * @param value - the value to add
+	 */
+	public void insert(K key, V value)
+	{
+		Shard<K,V> shard = lockForWrite(key);
+		try {
+			shard.tree.insert(key, value);
+		}
+		finally {
+			unlockForWrite(shard);
+		}
+	}
+
+	/**
+	 * Insert a key/value pair, replacing the value of the key if it already exists.
+	 *
+	 * @param key - the key to add or update
+	 * @param value - the value to associate with the key
+	 * @return true if an existing value was replaced, false if the pair was added
+	 */
+	public boolean upsert(K key, V value)
+	{
+		Shard<K,V> shard = lockForWrite(key);
+		try {
+			return shard.tree.upsert(key, value);
+		}
+		finally {
+			unlockForWrite(shard);
+		}
+	}
+
+	/**
+	 * Delete a key/value pair.
+	 *
+	 * @param key - the key to delete
+	 * @return true if the key was found and deleted, false otherwise
+	 */
+	public boolean delete(K key)
+	{
+		Shard<K,V> shard = lockForWrite(key);
+		try {
+			return shard.tree.delete(key);
+		}
+		finally {
+			unlockForWrite(shard);
+		}
+	}
+
+	/**
+	 * Search for the indicated key and return the associated value.
+	 *
+	 * @param key - the key to find
+	 * @return the value
+	 */
+	public V find(K key)
+	{
+		Shard<K,V> shard = lockForRead(key);
+		try {
+			if (shard.tree.root == null)
+				throw new RuntimeException("Error - key was not found in the tree");
+			return shard.tree.find(key);
+		}
+		finally {
+			unlockForRead(shard);
+		}
+	}
+
+	/**
+	 * Find the entry of a key in a single lookup, without raising an exception when the key
+	 * is missing.  The entry is read under the lock of its shard, but may be changed by a
+	 * writer once it is returned.
+	 *
+	 * @param key - the key to find
+	 * @return the entry, or null if the key is not in the tree
+	 */
+	Entry<K,V> getEntry(K key)
+	{
+		Shard<K,V> shard = lockForRead(key);
+		try {
+			return shard.tree.getEntry(key);
+		}
+		finally {
+			unlockForRead(shard);
+		}
+	}
+
+	/**
+	 * Predicate to test if the tree holds the indicated key
+	 */
+	public boolean containsKey(K key)
+	{
+		Shard<K,V> shard = lockForRead(key);
+		try {
+			return shard.tree.containsKey(key);
+		}
+		finally {
+			unlockForRead(shard);
+		}
+	}
+
+	/**
+	 * The number of pairs in the tree (the sum of the sizes of the shards, each taken in turn)
+	 */
+	public int size( )
+	{
+		int n = 0;
+		for (Shard<K,V> shard : shards)
+		{
+			shard.lock.readLock().lock();
+			try {
+				n += shard.tree.size();
+			}
+			finally {
+				shard.lock.readLock().unlock();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * The number of shards the key space is split into
+	 */
+	public int getShardCount( )
+	{
+		return shards.length;
+	}
+
+	/**
+	 * Iterate over the key/value pairs in order, from the first key greater than or equal
+	 * to from, up to (but not including) to.  The pairs are copied a batch at a time, under
+	 * the read lock of their shard, as the scan reaches them.
+	 *
+	 * @param from - the first key of the range, or null to start at the first key
+	 * @param to - the end of the range, or null to finish at the last key
+	 * @return an iterator over the pairs
+	 */
+	public Iterator<Map.Entry<K,V>> range(final K from, final K to)
+	{
+		return new Iterator<Map.Entry<K,V>>() {
+			K next = from;				// the key the next batch is read from
+			boolean after = false;		// true if the next batch starts after (rather than at) next
+			boolean done = false;
+			Iterator<Map.Entry<K,V>> batch = null;
+
+			public boolean hasNext() {
+				while (((batch == null) || !batch.hasNext()) && !done)
+					batch = readBatch();
+				return (batch != null) && batch.hasNext();
+			}
+
+			public Map.Entry<K,V> next() {
+				if (!hasNext())
+					throw new NoSuchElementException( );
+				return batch.next();
+			}
+
+			// copy the next pairs from the shard holding the next key, moving on to the
+			// shard after it (found again by key, as the shards may have changed) once
+			// the shard is exhausted
+			private Iterator<Map.Entry<K,V>> readBatch() {
+				List<Map.Entry<K,V>> pairs = new ArrayList<Map.Entry<K,V>>( );
+				Shard<K,V> shard = (next == null) ? lockFirst() : lockForRead(next);
+				K high = null;
+				try {
+					if (shard.tree.root != null) {
+						Cursor<K,V> cursor = new Cursor<K,V>(shard.tree);
+						if (next != null)
+							cursor.seek(next);
+						while (cursor.hasNext() && (pairs.size() < RANGE_BATCH))
+						{
+							Entry<K,V> entry = cursor.next();
+							if (after && (entry.key.compareTo(next) == 0))
+								continue;
+							if ((to != null) && (entry.key.compareTo(to) >= 0)) {
+								done = true;
+								break;
+							}
+							pairs.add(new AbstractMap.SimpleImmutableEntry<K,V>(entry.key, entry.value));
+						}
+
+						// a full batch continues from its last key, in the same shard
+						if (!done && (pairs.size() == RANGE_BATCH) && cursor.hasNext()) {
+							next = pairs.get(pairs.size() - 1).getKey();
+							after = true;
+							return pairs.iterator();
+						}
+					}
+					high = highOf(shard);
+				}
+				finally {
+					unlockForRead(shard);
+				}
+
+				next = high;
+				after = false;
+				done = done || (high == null) || ((to != null) && (high.compareTo(to) >= 0));
+				return pairs.iterator();
+			}
+		};
+	}
+
+	/**
+	 * Check the load of the shards, splitting a hot shard and merging a cold pair of
+	 * shards.  This is run automatically as the shards are used, but can be run at any time.
+	 */
+	public void rebalance( )
+	{
+		rebalance(0);
+	}
+
+	/**
+	 * Check the load of the shards, if they have taken enough operations since the last
+	 * check for the load to be judged by
+	 * @param window - the fewest operations (over all of the shards) to judge the load by
+	 */
+	private void rebalance(long window)
+	{
+		if (!rebalancing.tryLock())
+			return;
+		try {
+			// the load of each shard since the last rebalance
+			Shard<K,V>[] current = shards;
+			long[] ops = new long[current.length];
+			long[] load = new long[current.length];
+			long total = 0;
+			for (int i = 0; i < current.length; i++)
+			{
+				ops[i] = current[i].ops.get();
+				load[i] = ops[i] - current[i].checked;
+				total += load[i];
+			}
+
+			// a check made soon after another (as each shard reaches its interval in turn)
+			// sees too few operations to tell a hot shard from chance, so the load is left
+			// to build up until the next
+			if (total < window)
+				return;
+			for (int i = 0; i < current.length; i++)
+				current[i].checked = ops[i];
+			double share = (double) total / current.length;
+
+			// the hottest shard, and the coldest pair of neighbours apart from it
+			int hot = 0;
+			for (int i = 1; i < current.length; i++)
+				if (load[i] > load[hot]) hot = i;
+			int cold = -1;
+			for (int i = 0; i + 1 < current.length; i++)
+				if ((i != hot) && (i + 1 != hot) && ((cold < 0) || (load[i] + load[i + 1] < load[cold] + load[cold + 1])))
+					cold = i;
+
+			// split the hot shard if it takes more than half as much again as its share - or,
+			// as a lone shard never takes more than its share, if it is the only shard and took
+			// a full REBALANCE_OPS - and merge the cold pair if it takes less than half a share
+			boolean busy = (load[hot] > 1.5 * share) || ((current.length == 1) && (load[hot] >= REBALANCE_OPS));
+			boolean splitHot = (current.length < maxShards) && busy && split(hot);
+			if ((cold >= 0) && (current.length > 2) && (load[cold] + load[cold + 1] < share / 2))
+				merge((splitHot && (cold > hot)) ? cold + 1 : cold);
+		}
+		finally {
+			rebalancing.unlock();
+		}
+	}
+
+	/**
+	 * Split a shard in two at its middle key, if it holds enough pairs
+	 * @return true if the shard was split
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	private boolean split(int i)
+	{
+		Shard<K,V> shard = shards[i];
+		shard.lock.writeLock().lock();
+		try {
+			int size = shard.tree.size();
+			if (size < MIN_SPLIT)
+				return false;
+
+			BulkLoader<K,V> lower = new BulkLoader<K,V>(maxEntries);
+			BulkLoader<K,V> upper = new BulkLoader<K,V>(maxEntries);
+			K middle = null;
+			Cursor<K,V> cursor = new Cursor<K,V>(shard.tree);
+			for (int n = 0; cursor.hasNext(); n++)
+			{
+				Entry<K,V> entry = cursor.next();
+				if (n == size / 2)
+					middle = entry.key;
+				if (n < size / 2) lower.add(entry.key, entry.value);
+				else upper.add(entry.key, entry.value);
+			}
+
+			Shard<K,V> left = new Shard<K,V>(shard.low, tree(lower));
+			Shard<K,V> right = new Shard<K,V>(middle, tree(upper));
+
+			ArrayList<Shard<K,V>> list = new ArrayList<Shard<K,V>>( );
+			for (int j = 0; j < shards.length; j++)
+			{
+				if (j == i) {
+					list.add(left);
+					list.add(right);
+				}
+				else
+					list.add(shards[j]);
+			}
+			shards = list.toArray(new Shard[list.size()]);
+			shard.retired = true;
+			return true;
+		}
+		finally {
+			shard.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Merge a shard with its right-hand neighbour
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	private void merge(int i)
+	{
+		Shard<K,V> a = shards[i], b = shards[i + 1];
+		a.lock.writeLock().lock();
+		b.lock.writeLock().lock();
+		try {
+			BulkLoader<K,V> loader = new BulkLoader<K,V>(maxEntries);
+			for (Shard<K,V> shard : new Shard[] { a, b })
+			{
+				Cursor<K,V> cursor = new Cursor<K,V>(shard.tree);
+				while (cursor.hasNext())
+				{
+					Entry<K,V> entry = cursor.next();
+					loader.add(entry.key, entry.value);
+				}
+			}
+
+			ArrayList<Shard<K,V>> list = new ArrayList<Shard<K,V>>( );
+			for (int j = 0; j < shards.length; j++)
+			{
+				if (j == i)
+					list.add(new Shard<K,V>(a.low, tree(loader)));
+				else if (j != i + 1)
+					list.add(shards[j]);
+			}
+			shards = list.toArray(new Shard[list.size()]);
+			a.retired = true;
+			b.retired = true;
+		}
+		finally {
+			b.lock.writeLock().unlock();
+			a.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Build a tree from the pairs given to a loader
+	 */
+	private BTree<K,V> tree(BulkLoader<K,V> loader)
+	{
+		BTree<K,V> tree = new BTree<K,V>(maxEntries);
+		tree.root = loader.finish();
+		return tree;
+	}
+
+	/**
+	 * Find the shard whose range holds a key
+	 */
+	static <K extends Comparable<K>, V> int indexOf(Shard<K,V>[] shards, K key)
+	{
+		// the last shard whose least key is less than or equal to the key
+		int lo = 1, hi = shards.length;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (shards[mid].low.compareTo(key) <= 0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo - 1;
+	}
+
+	/**
+	 * The least key of the shard after a shard, or null if it is the last
+	 */
+	private K highOf(Shard<K,V> shard)
+	{
+		Shard<K,V>[] current = shards;
+		for (int i = 0; i + 1 < current.length; i++)
+			if (current[i] == shard)
+				return current[i + 1].low;
+		return null;
+	}
+
+	/**
+	 * Lock the shard of a key for reading, routing the key again if the shard
+	 * was retired while waiting for the lock
+	 */
+	private Shard<K,V> lockForRead(K key)
+	{
+		while (true)
+		{
+			Shard<K,V> shard = shards[indexOf(shards, key)];
+			shard.lock.readLock().lock();
+			if (!shard.retired)
+				return shard;
+			shard.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Lock the first shard for reading
+	 */
+	private Shard<K,V> lockFirst( )
+	{
+		while (true)
+		{
+			Shard<K,V> shard = shards[0];
+			shard.lock.readLock().lock();
+			if (!shard.retired)
+				return shard;
+			shard.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Unlock a shard locked for reading, counting the operation
+	 */
+	private void unlockForRead(Shard<K,V> shard)
+	{
+		shard.lock.readLock().unlock();
+		count(shard);
+	}
+
+	/**
+	 * Lock the shard of a key for writing, routing the key again if the shard
+	 * was retired while waiting for the lock
+	 */
+	private Shard<K,V> lockForWrite(K key)
+	{
+		while (true)
+		{
+			Shard<K,V> shard = shards[indexOf(shards, key)];
+			shard.lock.writeLock().lock();
+			if (!shard.retired)
+				return shard;
+			shard.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Unlock a shard locked for writing, counting the operation
+	 */
+	private void unlockForWrite(Shard<K,V> shard)
+	{
+		shard.lock.writeLock().unlock();
+		count(shard);
+	}
+
+	/**
+	 * Count an operation on a shard, and check the load every so often
+	 */
+	private void count(Shard<K,V> shard)
+	{
+		if ((shard.ops.incrementAndGet() % REBALANCE_OPS) == 0)
+			rebalance(REBALANCE_OPS);
+	}
+}
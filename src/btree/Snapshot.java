@@ -0,0 +1,323 @@
+package btree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes and reads binary snapshots (checkpoints) of an in-memory B-Tree.
+ *
+ * This is an internal class that should not be used outside the btree package.
+ *
+ * A snapshot is the leaf level of the tree, streamed in key order: a header holding
+ * the degrees of the tree, then each leaf as a count followed by its key/value pairs,
+ * and a zero count to finish.  Restoring a snapshot never descends the tree - the
+ * pairs are fed straight into a {@link BulkLoader}, which builds the nodes bottom-up.
+ *
+ * There are two formats.  By default, the keys and values are written with Java
+ * serialization (so they must be Serializable).  Given a {@link Serializer} for the keys
+ * and the values, each leaf is instead written as a {@link LeafPage}, and the snapshot
+ * is read back by mapping the file, rather than through a stream.
+ *
+ * Pairs that have expired are left out of a snapshot.  If any pair of the tree was given a
+ * time-to-live, the snapshot is written in a variant of its format that also holds the
+ * expiry time of each pair (after the value, or after the page of the leaf), so the
+ * restored pairs expire when they would have in the tree they came from.
+ *
+ * @author tbriggs
+ */
+class Snapshot {
+
+	static final int MAGIC = 0x42545245;	// "BTRE"
+	static final int VERSION = 3;			// pairs written with Java serialization
+	static final int VERSION_PAGED = 4;		// leaves written as pages, with serializers
+	static final int VERSION_1 = 1;			// as VERSION, with one degree for all nodes
+	static final int VERSION_PAGED_1 = 2;	// as VERSION_PAGED, with one degree for all nodes
+	static final int VERSION_EXPIRING = 5;	// as VERSION, with the expiry time of each pair after its value
+	static final int VERSION_PAGED_EXPIRING = 6;	// as VERSION_PAGED, with the expiry times of a leaf after its page
+
+	static final int BUFFER_SIZE = 1 << 16;	// the size of the file buffers
+	static final int RESET_INTERVAL = 4096;	// the pairs written between stream resets
+	static final int MAP_WINDOW = 1 << 30;	// the largest region of the file mapped at once
+
+
+	/**
+	 * Write a snapshot of the tree to the given file.  The snapshot is written to a
+	 * temporary file first, and moved into place once it is complete, so a failed
+	 * checkpoint never replaces a good one.
+	 *
+	 * @param tree - the tree to write
+	 * @param path - the file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	static <K extends Comparable<K>, V> void write(BTree<K,V> tree, Path path) throws IOException
+	{
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try (ObjectOutputStream out = new ObjectOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE)))
+		{
+			boolean expiring = tree.expiring;
+			long now = tree.now();
+			out.writeInt(MAGIC);
+			out.writeInt(expiring ? VERSION_EXPIRING : VERSION);
+			out.writeInt(tree.maxEntries);
+			out.writeInt(tree.maxInnerEntries);
+
+			int written = 0;
+			Cursor<K,V> cursor = new Cursor<K,V>(tree);
+			for (LeafNode<K,V> leaf = cursor.leaf; leaf != null; leaf = cursor.nextLeaf())
+			{
+				// a zero count ends the snapshot, so a leaf with nothing live is left out
+				List<Entry<K,V>> entries = live(leaf, now);
+				if (entries.isEmpty())
+					continue;
+
+				out.writeInt(entries.size());
+				for (Entry<K,V> entry : entries) {
+					out.writeObject(entry.key);
+					out.writeObject(entry.value);
+					if (expiring)
+						out.writeLong(entry.expires);
+				}
+
+				// the stream remembers every object written, so forget them now and then
+				written += entries.size();
+				if (written >= RESET_INTERVAL) {
+					out.reset();
+					written = 0;
+				}
+			}
+
+			out.writeInt(0);
+		}
+
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Read a snapshot from the given file, building a new tree from it.
+	 *
+	 * @param path - the file to read
+	 * @return the restored tree
+	 * @throws IOException if the file cannot be read, or is not a snapshot
+	 */
+	@SuppressWarnings("unchecked")
+	static <K extends Comparable<K>, V> BTree<K,V> read(Path path) throws IOException
+	{
+		try (ObjectInputStream in = new ObjectInputStream(
+				new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE)))
+		{
+			int version = (in.readInt() == MAGIC) ? in.readInt() : -1;
+			if ((version != VERSION) && (version != VERSION_1) && (version != VERSION_EXPIRING))
+				throw new IOException("Error - " + path + " is not a B-Tree snapshot");
+
+			boolean expiring = (version == VERSION_EXPIRING);
+			int maxEntries = in.readInt();
+			int maxInnerEntries = (version == VERSION_1) ? maxEntries : in.readInt();
+			BulkLoader<K,V> loader = new BulkLoader<K,V>(maxInnerEntries, maxEntries);
+
+			for (int n = in.readInt(); n > 0; n = in.readInt())
+			{
+				for (int i = 0; i < n; i++)
+				{
+					K key = (K) in.readObject();
+					V value = (V) in.readObject();
+					loader.add(key, value, expiring ? in.readLong() : 0);
+				}
+			}
+
+			BTree<K,V> tree = new BTree<K,V>(maxInnerEntries, maxEntries);
+			tree.root = loader.finish();
+			tree.expiring = expiring;
+			return tree;
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException("Error - snapshot holds an unknown class", e);
+		}
+	}
+
+	/**
+	 * Write a snapshot of the tree to the given file, encoding each leaf as a {@link LeafPage}.
+	 * As with {@link #write(BTree, Path)}, the file is only replaced once it is complete.
+	 *
+	 * @param tree - the tree to write
+	 * @param path - the file to write
+	 * @param ks - the serializer for the keys
+	 * @param vs - the serializer for the values
+	 * @throws IOException if the file cannot be written
+	 */
+	static <K extends Comparable<K>, V> void write(BTree<K,V> tree, Path path,
+			Serializer<K> ks, Serializer<V> vs) throws IOException
+	{
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			boolean expiring = tree.expiring;
+			long now = tree.now();
+			ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buf.putInt(MAGIC);
+			buf.putInt(expiring ? VERSION_PAGED_EXPIRING : VERSION_PAGED);
+			buf.putInt(tree.maxEntries);
+			buf.putInt(tree.maxInnerEntries);
+
+			// each leaf is written as its size, followed by the page (and the expiry times)
+			Cursor<K,V> cursor = new Cursor<K,V>(tree);
+			for (LeafNode<K,V> leaf = cursor.leaf; leaf != null; leaf = cursor.nextLeaf())
+			{
+				List<Entry<K,V>> entries = live(leaf, now);
+				if (entries.isEmpty())
+					continue;
+
+				int size = LeafPage.sizeOf(entries, ks, vs);
+				int record = 4 + size + (expiring ? 8 * entries.size() : 0);
+				if (buf.remaining() < record) {
+					drain(out, buf);
+					if (buf.capacity() < record)
+						buf = ByteBuffer.allocateDirect(record);
+				}
+
+				buf.putInt(size);
+				LeafPage.write(buf, entries, ks, vs);
+				if (expiring) {
+					for (Entry<K,V> entry : entries)
+						buf.putLong(entry.expires);
+				}
+			}
+
+			if (buf.remaining() < 4)
+				drain(out, buf);
+			buf.putInt(0);
+			drain(out, buf);
+		}
+
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Read a snapshot written with serializers, building a new tree from it.  The file is
+	 * mapped into memory (a window at a time), and the pages are decoded in place.
+	 *
+	 * @param path - the file to read
+	 * @param ks - the serializer for the keys
+	 * @param vs - the serializer for the values
+	 * @return the restored tree
+	 * @throws IOException if the file cannot be read, or is not a paged snapshot
+	 */
+	static <K extends Comparable<K>, V> BTree<K,V> read(Path path,
+			Serializer<K> ks, Serializer<V> vs) throws IOException
+	{
+		try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			MappedByteBuffer map = map(in, 0, 16);	// the header, and at least the final count
+			long base = 0;		// the offset in the file of the mapped window
+
+			int version = (map.getInt(0) == MAGIC) ? map.getInt(4) : -1;
+			if ((version != VERSION_PAGED) && (version != VERSION_PAGED_1) && (version != VERSION_PAGED_EXPIRING))
+				throw new IOException("Error - " + path + " is not a paged B-Tree snapshot");
+
+			boolean expiring = (version == VERSION_PAGED_EXPIRING);
+
+			int maxEntries = map.getInt(8);
+			int maxInnerEntries = (version == VERSION_PAGED_1) ? maxEntries : map.getInt(12);
+			long pos = (version == VERSION_PAGED_1) ? 12 : 16;
+			BulkLoader<K,V> loader = new BulkLoader<K,V>(maxInnerEntries, maxEntries);
+
+			while (true)
+			{
+				// move the window along when the next record is not inside it
+				if (pos + 4 > base + map.limit()) {
+					map = map(in, pos, 4);
+					base = pos;
+				}
+
+				int size = map.getInt((int) (pos - base));
+				if (size == 0) break;
+
+				if (pos + 4 + size > base + map.limit()) {
+					map = map(in, pos, 4 + size);
+					base = pos;
+				}
+
+				// the expiry times follow the page, one for each of its entries
+				long[] expires = null;
+				int record = 4 + size;
+				if (expiring) {
+					int n = LeafPage.count(map, (int) (pos - base + 4));
+					record += 8 * n;
+					if (pos + record > base + map.limit()) {
+						map = map(in, pos, record);
+						base = pos;
+					}
+
+					expires = new long[n];
+					for (int i = 0; i < n; i++)
+						expires[i] = map.getLong((int) (pos - base + 4 + size) + 8 * i);
+				}
+
+				map.position((int) (pos - base + 4));
+				LeafPage.read(map, ks, vs, loader, expires);
+				pos += record;
+			}
+
+			BTree<K,V> tree = new BTree<K,V>(maxInnerEntries, maxEntries);
+			tree.root = loader.finish();
+			tree.expiring = expiring;
+			return tree;
+		}
+	}
+
+	/**
+	 * The entries of a leaf that have not expired by the given time (or all of them, if the
+	 * time is 0, as no pair can expire)
+	 */
+	private static <K extends Comparable<K>, V> List<Entry<K,V>> live(LeafNode<K,V> leaf, long now)
+	{
+		if (now == 0)
+			return leaf.children;
+
+		List<Entry<K,V>> entries = new ArrayList<Entry<K,V>>(leaf.children.size());
+		for (Entry<K,V> entry : leaf.children)
+			if (!entry.isExpired(now))
+				entries.add(entry);
+		return entries;
+	}
+
+	/**
+	 * Write out (and clear) the contents of a buffer
+	 */
+	private static void drain(FileChannel out, ByteBuffer buf) throws IOException
+	{
+		buf.flip();
+		while (buf.hasRemaining())
+			out.write(buf);
+		buf.clear();
+	}
+
+	/**
+	 * Map a window of the file, starting at the given offset, that holds at least the
+	 * given number of bytes.
+	 */
+	private static MappedByteBuffer map(FileChannel in, long from, int length) throws IOException
+	{
+		long available = in.size() - from;
+		if (available < length)
+			throw new IOException("Error - the snapshot is truncated");
+
+		long size = Math.max(length, Math.min(MAP_WINDOW, available));
+		return in.map(FileChannel.MapMode.READ_ONLY, from, size);
+	}
+}
@@ -0,0 +1,159 @@
+package btree;
+
+import java.util.TreeMap;
+
+/**
+ * A transaction on a {@link VersionedBTree}.
+ *
+ *   A transaction reads a fixed snapshot of the tree, along with its own writes, which
+ *   are held privately until it commits.  Either all of its writes are committed, or
+ *   none of them are - so, for example, a value can be moved from one key to another
+ *   without any other transaction seeing it under both keys, or under neither.
+ *
+ *   A transaction is meant to be used by a single thread.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <K> - A Comparable type for the key of the key-value pair
+ * @param <V> - The value for the key-value pair for this type of B-Tree
+ */
+public class Transaction<K extends Comparable<K>, V> {
+
+	final VersionedBTree<K,V> db;
+	final long snapshot;		// the timestamp of the commit the transaction reads
+
+	private final TreeMap<K, Message<K,V>> writes = new TreeMap<K, Message<K,V>>( );
+	private boolean finished = false;
+
+
+	Transaction(VersionedBTree<K,V> db, long snapshot)
+	{
+		this.db = db;
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Search for the indicated key and return its value, as of the snapshot of the
+	 * transaction (or as written by the transaction itself).
+	 *
+	 * @param key - the key to find
+	 * @return the value
+	 */
+	public V find(K key)
+	{
+		checkOpen();
+
+		Message<K,V> msg = writes.get(key);
+		if (msg != null) {
+			if (msg.op == Message.Op.DELETE)
+				throw new RuntimeException("Error - key was not found in the tree");
+			return msg.value;
+		}
+
+		Version<V> version = visible(key);
+		if (version == null)
+			throw new RuntimeException("Error - key was not found in the tree");
+		return version.value;
+	}
+
+	/**
+	 * Predicate to test if the key is present, as of the snapshot of the transaction
+	 * (or as written by the transaction itself).
+	 */
+	public boolean containsKey(K key)
+	{
+		checkOpen();
+
+		Message<K,V> msg = writes.get(key);
+		if (msg != null)
+			return msg.op != Message.Op.DELETE;
+
+		return visible(key) != null;
+	}
+
+	/**
+	 * Insert a key/value pair.  The keys must be unique, and inserting a key that
+	 * is already present will fail and generate an exception.
+	 *
+	 * @param key - the key to add
+	 * @param value - the value to add
+	 */
+	public void insert(K key, V value)
+	{
+		if (containsKey(key))
+			throw new RuntimeException("Error - The key is already found in the tree");
+
+		writes.put(key, new Message<K,V>(Message.Op.UPSERT, key, value));
+	}
+
+	/**
+	 * Insert a key/value pair, replacing any existing value of the key.
+	 *
+	 * @param key - the key to add or update
+	 * @param value - the value to associate with the key
+	 */
+	public void upsert(K key, V value)
+	{
+		checkOpen();
+		writes.put(key, new Message<K,V>(Message.Op.UPSERT, key, value));
+	}
+
+	/**
+	 * Delete a key and its value.
+	 *
+	 * @param key - the key to delete
+	 * @return true if the key was present and deleted, false otherwise
+	 */
+	public boolean delete(K key)
+	{
+		if (!containsKey(key))
+			return false;
+
+		writes.put(key, new Message<K,V>(Message.Op.DELETE, key, null));
+		return true;
+	}
+
+	/**
+	 * Commit the writes of the transaction.  The commit fails if another transaction has
+	 * committed a write to any of the same keys since this transaction began; then none
+	 * of the writes are made, and the transaction can be retried from the start.
+	 *
+	 * @return true if the transaction committed, false if it conflicted with another
+	 */
+	public boolean commit( )
+	{
+		checkOpen();
+		finished = true;
+		return db.commit(this, writes);
+	}
+
+	/**
+	 * Abandon the transaction, discarding its writes
+	 */
+	public void abort( )
+	{
+		if (finished) return;
+
+		finished = true;
+		writes.clear();
+		db.finish(this);
+	}
+
+	/**
+	 * The version of a key visible to the snapshot, ignoring deletes
+	 */
+	private Version<V> visible(K key)
+	{
+		Version<V> newest = db.newest(key);
+		Version<V> version = (newest == null) ? null : newest.visible(snapshot);
+		return ((version == null) || version.deleted) ? null : version;
+	}
+
+	private void checkOpen( )
+	{
+		if (finished)
+			throw new RuntimeException("Error - the transaction has already finished");
+	}
+}
@@ -0,0 +1,51 @@
+package btree;
+
+/**
+ * The value of a leaf-node entry in a {@link LobBTree}.
+ *
+ * A small value is held in the leaf itself.  A large value is held out of line, in
+ * a run of consecutive overflow pages, and the leaf only holds its first page and length.
+ *
+ * @author tbriggs
+ */
+final class ValueRef {
+
+	final byte[] inline;	// the value, when it is held in the leaf (null otherwise)
+	final long page;		// the first overflow page, when held out of line
+	final int length;		// the length of the value in bytes
+
+	private ValueRef(byte[] inline, long page, int length)
+	{
+		this.inline = inline;
+		this.page = page;
+		this.length = length;
+	}
+
+	/**
+	 * Construct a reference holding the value itself
+	 */
+	static ValueRef inline(byte[] value)
+	{
+		return new ValueRef(value, -1, value.length);
+	}
+
+	/**
+	 * Construct a reference to a value held in overflow pages
+	 */
+	static ValueRef overflow(long page, int length)
+	{
+		return new ValueRef(null, page, length);
+	}
+
+	/**
+	 * Predicate to test if the value is held in the leaf
+	 */
+	boolean isInline( )
+	{
+		return inline != null;
+	}
+
+	public String toString( ) {
+		return isInline() ? "inline[" + length + "]" : "page " + page + "[" + length + "]";
+	}
+}
@@ -0,0 +1,87 @@
+package btree;
+
+/**
+ * One version of the value of a key in a {@link VersionedBTree}.
+ *
+ * This is an internal class that should not be used outside the btree package.
+ *
+ * The leaf entry of a key holds its newest version, and each version links to the one
+ * it replaced.  A version is visible to the transactions whose snapshot falls between
+ * its begin timestamp (when it was committed) and its end timestamp (when it was
+ * replaced).  A delete is recorded as a version with no value - a tombstone - so that
+ * older snapshots can still see the value it removed.
+ *
+ * @author tbriggs
+ *
+ * @param <V> - The value type of the key-value pair
+ */
+final class Version<V> {
+
+	static final long INFINITY = Long.MAX_VALUE;	// the end of a version not yet replaced
+
+	final V value;				// the value, or null for a tombstone
+	final boolean deleted;		// true if this version records a delete
+	final long begin;			// the commit timestamp of the version
+
+	volatile long end;			// the commit timestamp of the version that replaced this one
+	volatile Version<V> older;	// the version this one replaced (null once collected)
+
+
+	Version(V value, boolean deleted, long begin, Version<V> older)
+	{
+		this.value = value;
+		this.deleted = deleted;
+		this.begin = begin;
+		this.end = INFINITY;
+		this.older = older;
+	}
+
+	/**
+	 * Predicate to test if the version is visible to a snapshot
+	 * @param snapshot - the timestamp of the snapshot
+	 */
+	boolean isVisible(long snapshot)
+	{
+		return (begin <= snapshot) && (snapshot < end);
+	}
+
+	/**
+	 * Find the version (in this chain) visible to a snapshot
+	 * @param snapshot - the timestamp of the snapshot
+	 * @return the version, or null if the key did not exist for the snapshot
+	 */
+	Version<V> visible(long snapshot)
+	{
+		for (Version<V> v = this; v != null; v = v.older)
+		{
+			if (v.isVisible(snapshot))
+				return v;
+		}
+		return null;
+	}
+
+	/**
+	 * Drop the versions that no snapshot at or after the given timestamp can see.
+	 * @param horizon - the oldest snapshot still in use
+	 * @return the number of versions dropped
+	 */
+	int prune(long horizon)
+	{
+		for (Version<V> v = this; v != null; v = v.older)
+		{
+			// every version older than the one visible at the horizon is invisible from now on
+			if (v.begin <= horizon) {
+				int dropped = 0;
+				for (Version<V> o = v.older; o != null; o = o.older)
+					dropped++;
+				v.older = null;
+				return dropped;
+			}
+		}
+		return 0;
+	}
+
+	public String toString( ) {
+		return (deleted ? "deleted" : String.valueOf(value)) + "@[" + begin + "," + (end == INFINITY ? "-" : end) + ")";
+	}
+}
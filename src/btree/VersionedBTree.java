@@ -0,0 +1,223 @@
+package btree;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * A B-Tree with multi-version concurrency control, updated through {@link Transaction}s.
+ *
+ *   Each leaf entry holds a chain of versions of its value (see {@link Version}), newest
+ *   first, each stamped with the commit timestamps that began and ended it.  A transaction
+ *   reads a snapshot of the tree - the versions visible at the timestamp of the last commit
+ *   before it began - so its reads are repeatable, and never see part of another commit.
+ *
+ *   A transaction keeps its writes to itself until it commits, so readers never wait for
+ *   a writer to finish, and writers never wait for readers.  At commit, every key written
+ *   is checked for a version committed after the snapshot of the transaction; if there is
+ *   one, the commit fails (the first committer wins), and the transaction should be retried.
+ *   Otherwise, all of the writes are installed under one new timestamp, which is published
+ *   only once they are all in place, so the commit is atomic.
+ *
+ *   The versions that no running transaction can see any more are garbage collected: the
+ *   chain of each key is trimmed whenever a commit writes the key, and {@link #vacuum()}
+ *   trims every chain, and removes the keys whose last version is a delete.
+ *
+ *   The tree itself is not thread-safe, so its structure is guarded by a read/write lock;
+ *   it is held just long enough to find (or install) the chain of a key.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ *
+ * @param <K> - A Comparable type for the key of the key-value pair
+ * @param <V> - The value for the key-value pair for this type of B-Tree
+ */
+public class VersionedBTree<K extends Comparable<K>, V> {
+
+	final BTree<K, Version<V>> tree;		// the newest version of each key
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock( );	// guards the tree structure
+
+	final AtomicLong clock = new AtomicLong( );		// the timestamp of the last commit
+	private final Object commitLock = new Object( );	// commits are validated one at a time
+
+	private final TreeMap<Long, Integer> active = new TreeMap<Long, Integer>( );	// the snapshots in use
+
+
+	/**
+	 * Construct an empty tree
+	 *
+	 * @param maxEntries - The degree (maximum number of entries in the nodes)
+	 */
+	public VersionedBTree(int maxEntries)
+	{
+		tree = new BTree<K, Version<V>>(maxEntries);
+	}
+
+	/**
+	 * Begin a transaction, reading a snapshot of the tree as of the last commit.
+	 * Every transaction must be finished with {@link Transaction#commit()} or
+	 * {@link Transaction#abort()}, or its snapshot will hold on to old versions.
+	 *
+	 * @return the new transaction
+	 */
+	public Transaction<K,V> begin( )
+	{
+		synchronized (active) {
+			long snapshot = clock.get();
+			Integer n = active.get(snapshot);
+			active.put(snapshot, (n == null) ? 1 : n + 1);
+			return new Transaction<K,V>(this, snapshot);
+		}
+	}
+
+	/**
+	 * Garbage collect the versions that no running transaction can see, and remove the
+	 * keys that have been deleted for every running transaction.
+	 *
+	 * @return the number of versions collected
+	 */
+	public int vacuum( )
+	{
+		long horizon = horizon();
+		int collected = 0;
+
+		ArrayList<Entry<K, Version<V>>> deleted = new ArrayList<Entry<K, Version<V>>>( );
+		lock.readLock().lock();
+		try {
+			Cursor<K, Version<V>> cursor = new Cursor<K, Version<V>>(tree);
+			while (cursor.hasNext())
+			{
+				Entry<K, Version<V>> entry = cursor.next();
+				collected += entry.value.prune(horizon);
+				if (entry.value.deleted && (entry.value.begin <= horizon))
+					deleted.add(new Entry<K, Version<V>>(entry.key, entry.value));
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+
+		// removing keys changes the structure of the tree, so it waits for the cursor to finish
+		lock.writeLock().lock();
+		try {
+			for (Entry<K, Version<V>> entry : deleted)
+			{
+				if (tree.containsKey(entry.key) && (tree.find(entry.key) == entry.value)) {
+					tree.delete(entry.key);
+					collected++;
+				}
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+
+		return collected;
+	}
+
+	/**
+	 * The newest version of a key
+	 * @return the version, or null if the key has never been written (or was collected)
+	 */
+	Version<V> newest(K key)
+	{
+		lock.readLock().lock();
+		try {
+			return tree.containsKey(key) ? tree.find(key) : null;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The oldest snapshot still in use by a transaction (or the last commit, if there
+	 * are none).  No transaction can see a version that ended at or before it.
+	 */
+	long horizon( )
+	{
+		synchronized (active) {
+			return active.isEmpty() ? clock.get() : active.firstKey();
+		}
+	}
+
+	/**
+	 * Commit the writes of a transaction, unless another transaction has committed a
+	 * write to one of the same keys since its snapshot.
+	 *
+	 * @param txn - the transaction
+	 * @param writes - the writes of the transaction, in key order
+	 * @return true if the writes were committed, false if there was a conflict
+	 */
+	boolean commit(Transaction<K,V> txn, TreeMap<K, Message<K,V>> writes)
+	{
+		try {
+			if (writes.isEmpty())
+				return true;
+
+			synchronized (commitLock)
+			{
+				// first committer wins
+				for (K key : writes.keySet())
+				{
+					Version<V> newest = newest(key);
+					if ((newest != null) && (newest.begin > txn.snapshot))
+						return false;
+				}
+
+				long timestamp = clock.get() + 1;
+				long horizon = horizon();
+
+				lock.writeLock().lock();
+				try {
+					for (Map.Entry<K, Message<K,V>> write : writes.entrySet())
+					{
+						K key = write.getKey();
+						Message<K,V> msg = write.getValue();
+						boolean delete = (msg.op == Message.Op.DELETE);
+
+						Version<V> newest = tree.containsKey(key) ? tree.find(key) : null;
+						if ((newest == null) && delete)
+							continue;
+
+						Version<V> version = new Version<V>(delete ? null : msg.value, delete, timestamp, newest);
+						if (newest != null)
+							newest.end = timestamp;
+						tree.upsert(key, version);
+
+						// trim the chain while it is at hand
+						version.prune(horizon);
+					}
+				}
+				finally {
+					lock.writeLock().unlock();
+				}
+
+				// publish the commit, only now that every version is in place
+				clock.set(timestamp);
+				return true;
+			}
+		}
+		finally {
+			finish(txn);
+		}
+	}
+
+	/**
+	 * Release the snapshot of a finished transaction
+	 */
+	void finish(Transaction<K,V> txn)
+	{
+		synchronized (active) {
+			int n = active.get(txn.snapshot);
+			if (n == 1)
+				active.remove(txn.snapshot);
+			else
+				active.put(txn.snapshot, n - 1);
+		}
+	}
+}
@@ -0,0 +1,470 @@
+package btree;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * A YCSB-style load generator for the trees of this package.
+ *
+ *   A workload loads a number of records into a target, then runs a number of threads for
+ *   a fixed time, each repeatedly choosing an operation from a mix of inserts, finds,
+ *   deletes and scans, and a key from a {@link KeyChooser}.  The time taken by each
+ *   operation is recorded in a {@link LatencyHistogram} per operation (per thread, added
+ *   together at the end), and the run is summarized as a {@link Report} of the throughput
+ *   and the latency percentiles of each operation.
+ *
+ *   The keys are Longs, numbered in the order they are inserted.  The number of a key is
+ *   scattered (by a one-to-one mixing function) before it is used, so that inserts land all
+ *   over the tree, unless the inserts are ordered, in which case each new key is the
+ *   greatest so far.  The values are Strings of a fixed length.
+ *
+ *   The target is anything that implements {@link Target}; {@link #locked(BTree)} and
+ *   {@link #sharded(ShardedBTree)} adapt the trees of this package.  The workload can also
+ *   be run from the command line, see {@link #main(String[])}.
+ *
+ * @author Tom Briggs
+ * @version 1.0
+ * @since 1.0
+ */
+public class Workload {
+
+	/**
+	 * The operations of a workload
+	 */
+	public enum Operation {
+		INSERT,		// insert a new key
+		FIND,		// find a key that was inserted (it may have been deleted since)
+		DELETE,		// delete a key that was inserted
+		SCAN		// read the pairs in order from a key that was inserted
+	}
+
+	/**
+	 * The structure a workload runs against, which must be thread-safe
+	 */
+	public interface Target {
+		void insert(Long key, String value);
+		boolean find(Long key);				// true if the key was found
+		void delete(Long key);
+		int scan(Long from, int max);		// the number of pairs read
+	}
+
+	private static final Operation[] OPERATIONS = Operation.values( );
+
+	private int[] mix = { 5, 90, 0, 5 };	// the weight of each operation, by ordinal
+	private KeyChooser keys = KeyChooser.zipfian( );
+	private int threads = 1;
+	private long duration = TimeUnit.SECONDS.toNanos(10);
+	private long records = 100000;
+	private int scanLength = 100;
+	private int valueSize = 100;
+	private boolean orderedInserts = false;
+	private long seed = 1;
+
+
+	/**
+	 * Set the mix of operations, as relative weights (by default 5% inserts, 90% finds and
+	 * 5% scans)
+	 */
+	public void setMix(int insert, int find, int delete, int scan)
+	{
+		if ((insert < 0) || (find < 0) || (delete < 0) || (scan < 0) || (insert + find + delete + scan == 0))
+			throw new RuntimeException("Error - the weights of the operations must be positive");
+		mix = new int[] { insert, find, delete, scan };
+	}
+
+	/**
+	 * Set the distribution of the keys of the finds, deletes and scans (by default zipfian)
+	 */
+	public void setKeyChooser(KeyChooser keys)
+	{
+		this.keys = keys;
+	}
+
+	/**
+	 * Set the number of threads to run the operations on (by default 1)
+	 */
+	public void setThreads(int threads)
+	{
+		if (threads < 1)
+			throw new RuntimeException("Error - a workload needs at least one thread");
+		this.threads = threads;
+	}
+
+	/**
+	 * Set the time the operations are run for (by default 10 seconds)
+	 */
+	public void setDuration(long duration, TimeUnit unit)
+	{
+		this.duration = unit.toNanos(duration);
+	}
+
+	/**
+	 * Set the number of records loaded before the operations are run (by default 100000)
+	 */
+	public void setRecords(long records)
+	{
+		if (records < 1)
+			throw new RuntimeException("Error - a workload needs at least one record");
+		this.records = records;
+	}
+
+	/**
+	 * Set the most pairs read by a scan (by default 100)
+	 */
+	public void setScanLength(int scanLength)
+	{
+		this.scanLength = scanLength;
+	}
+
+	/**
+	 * Set the length of the values (by default 100 characters)
+	 */
+	public void setValueSize(int valueSize)
+	{
+		this.valueSize = valueSize;
+	}
+
+	/**
+	 * Insert the keys in ascending order, rather than scattered over the key space
+	 */
+	public void setOrderedInserts(boolean orderedInserts)
+	{
+		this.orderedInserts = orderedInserts;
+	}
+
+	/**
+	 * Set the seed of the random choices of the threads
+	 */
+	public void setSeed(long seed)
+	{
+		this.seed = seed;
+	}
+
+	/**
+	 * Load the records into a target, then run the operations on it
+	 *
+	 * @param target - the structure to run against
+	 * @return the throughput and latencies of the run
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for the run
+	 */
+	public Report run(final Target target) throws InterruptedException
+	{
+		final String value = valueOf(valueSize);
+		for (long i = 0; i < records; i++)
+			target.insert(keyOf(i), value);
+
+		final AtomicLong inserted = new AtomicLong(records);
+		final Report report = new Report( );
+		final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>( );
+		final CountDownLatch start = new CountDownLatch(1);
+		final int total = mix[0] + mix[1] + mix[2] + mix[3];
+
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++)
+		{
+			final Random rnd = new Random(seed + t);
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					EnumMap<Operation,LatencyHistogram> latencies = new EnumMap<Operation,LatencyHistogram>(Operation.class);
+					for (Operation op : Operation.values())
+						latencies.put(op, new LatencyHistogram( ));
+					long misses = 0;
+
+					try {
+						start.await();
+						long end = report.start + duration;
+						for (long now = System.nanoTime(); now < end; )
+						{
+							// choose the operation by its weight, and the key by the distribution
+							int pick = rnd.nextInt(total);
+							Operation op = Operation.INSERT;
+							while (pick >= mix[op.ordinal()])
+							{
+								pick -= mix[op.ordinal()];
+								op = OPERATIONS[op.ordinal() + 1];
+							}
+							Long key = (op == Operation.INSERT) ? keyOf(inserted.getAndIncrement()) : keyOf(keys.next(rnd, inserted.get()));
+
+							long before = System.nanoTime();
+							switch (op)
+							{
+							case INSERT: target.insert(key, value); break;
+							case FIND: if (!target.find(key)) misses++; break;
+							case DELETE: target.delete(key); break;
+							case SCAN: target.scan(key, scanLength); break;
+							}
+							now = System.nanoTime();
+							latencies.get(op).record(now - before);
+						}
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+					catch (RuntimeException e) {
+						failure.compareAndSet(null, e);
+					}
+					report.add(latencies, misses);
+				}
+			}, "btree-workload-" + t);
+			workers[t].start();
+		}
+
+		report.start = System.nanoTime();
+		start.countDown();
+		for (Thread worker : workers)
+			worker.join();
+		report.elapsed = System.nanoTime() - report.start;
+
+		if (failure.get() != null)
+			throw failure.get();
+		return report;
+	}
+
+	/**
+	 * The key with a number - scattered over the key space, unless the inserts are ordered
+	 */
+	Long keyOf(long number)
+	{
+		if (orderedInserts)
+			return number;
+
+		// the finalizer of MurmurHash3, which is one-to-one on the longs
+		long h = number;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * A value of the given length
+	 */
+	private static String valueOf(int length)
+	{
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			sb.append((char) ('a' + (i % 26)));
+		return sb.toString();
+	}
+
+
+	/**
+	 * The results of a run: the throughput, and the latencies of each operation
+	 */
+	public static class Report {
+
+		private volatile long start;	// the time the operations started (System.nanoTime)
+		private long elapsed;			// the time the operations ran for (ns)
+		private final EnumMap<Operation,LatencyHistogram> latencies = new EnumMap<Operation,LatencyHistogram>(Operation.class);
+		private long misses = 0;
+
+		Report( )
+		{
+			for (Operation op : Operation.values())
+				latencies.put(op, new LatencyHistogram( ));
+		}
+
+		/**
+		 * Add the latencies recorded by a thread
+		 */
+		synchronized void add(Map<Operation,LatencyHistogram> thread, long misses)
+		{
+			for (Operation op : Operation.values())
+				latencies.get(op).add(thread.get(op));
+			this.misses += misses;
+		}
+
+		/**
+		 * The number of operations run, of every kind
+		 */
+		public synchronized long getOperations( )
+		{
+			long n = 0;
+			for (LatencyHistogram h : latencies.values())
+				n += h.getCount();
+			return n;
+		}
+
+		/**
+		 * The number of operations run per second
+		 */
+		public double getThroughput( )
+		{
+			return (elapsed == 0) ? 0 : getOperations() * 1e9 / elapsed;
+		}
+
+		/**
+		 * The time the operations ran for
+		 */
+		public long getElapsed(TimeUnit unit)
+		{
+			return unit.convert(elapsed, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * The latencies of one kind of operation
+		 */
+		public synchronized LatencyHistogram getLatencies(Operation op)
+		{
+			return latencies.get(op);
+		}
+
+		/**
+		 * The number of finds for keys that were not found (because they were deleted,
+		 * or because their insert had not finished)
+		 */
+		public synchronized long getMisses( )
+		{
+			return misses;
+		}
+
+		public synchronized String toString( )
+		{
+			StringBuilder sb = new StringBuilder( );
+			sb.append(String.format("%d operations in %.2fs: %.0f ops/s%n", getOperations(), elapsed / 1e9, getThroughput()));
+			for (Operation op : Operation.values())
+			{
+				LatencyHistogram h = latencies.get(op);
+				if (h.getCount() > 0)
+					sb.append(String.format("%-6s %s%n", op, h));
+			}
+			if (misses > 0)
+				sb.append(String.format("finds missed: %d%n", misses));
+			return sb.toString();
+		}
+	}
+
+
+	/**
+	 * A target for a BTree, guarded by a read/write lock: finds and scans share the lock,
+	 * and inserts (made as upserts) and deletes hold it alone
+	 */
+	public static Target locked(final BTree<Long,String> tree)
+	{
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock( );
+		return new Target() {
+			public void insert(Long key, String value) {
+				lock.writeLock().lock();
+				try { tree.upsert(key, value); }
+				finally { lock.writeLock().unlock(); }
+			}
+
+			public boolean find(Long key) {
+				lock.readLock().lock();
+				try { return tree.getEntry(key) != null; }
+				finally { lock.readLock().unlock(); }
+			}
+
+			public void delete(Long key) {
+				lock.writeLock().lock();
+				try { tree.delete(key); }
+				finally { lock.writeLock().unlock(); }
+			}
+
+			public int scan(Long from, int max) {
+				lock.readLock().lock();
+				try {
+					if (tree.root == null) return 0;
+					Cursor<Long,String> cursor = new Cursor<Long,String>(tree);
+					cursor.seek(from);
+					int n = 0;
+					for (; (n < max) && cursor.hasNext(); n++)
+						cursor.next();
+					return n;
+				}
+				finally { lock.readLock().unlock(); }
+			}
+		};
+	}
+
+	/**
+	 * A target for a ShardedBTree, which does its own locking
+	 */
+	public static Target sharded(final ShardedBTree<Long,String> tree)
+	{
+		return new Target() {
+			public void insert(Long key, String value) { tree.upsert(key, value); }
+			public boolean find(Long key) { return tree.getEntry(key) != null; }
+			public void delete(Long key) { tree.delete(key); }
+
+			public int scan(Long from, int max) {
+				Iterator<Map.Entry<Long,String>> pairs = tree.range(from, null);
+				int n = 0;
+				for (; (n < max) && pairs.hasNext(); n++)
+					pairs.next();
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * Run a workload from the command line, and print its report.  The arguments are
+	 * name=value pairs, any of:
+	 *
+	 *   target=locked|sharded		the tree to run against (locked)
+	 *   degree=n					the maximum entries in a node (64)
+	 *   threads=n					the threads to run on (1)
+	 *   seconds=n					the time to run for (10)
+	 *   records=n					the records loaded first (100000)
+	 *   mix=i,f,d,s				the weights of inserts, finds, deletes and scans (5,90,0,5)
+	 *   keys=uniform|zipfian|latest|sequential		the key distribution (zipfian)
+	 *   scan=n						the most pairs read by a scan (100)
+	 *   ordered=true|false			insert the keys in ascending order (false)
+	 *
+	 * For example: java btree.Workload threads=4 mix=50,50,0,0 keys=uniform
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		Workload workload = new Workload( );
+		String target = "locked";
+		int degree = 64;
+
+		for (String arg : args)
+		{
+			int eq = arg.indexOf('=');
+			if (eq < 0)
+				throw new RuntimeException("Error - arguments are name=value, not " + arg);
+			String name = arg.substring(0, eq), value = arg.substring(eq + 1);
+
+			switch (name)
+			{
+			case "target": target = value; break;
+			case "degree": degree = Integer.parseInt(value); break;
+			case "threads": workload.setThreads(Integer.parseInt(value)); break;
+			case "seconds": workload.setDuration(Long.parseLong(value), TimeUnit.SECONDS); break;
+			case "records": workload.setRecords(Long.parseLong(value)); break;
+			case "keys": workload.setKeyChooser(KeyChooser.forName(value)); break;
+			case "scan": workload.setScanLength(Integer.parseInt(value)); break;
+			case "ordered": workload.setOrderedInserts(Boolean.parseBoolean(value)); break;
+			case "mix":
+				String[] w = value.split(",");
+				if (w.length != 4)
+					throw new RuntimeException("Error - the mix is four weights: inserts, finds, deletes and scans");
+				workload.setMix(Integer.parseInt(w[0]), Integer.parseInt(w[1]), Integer.parseInt(w[2]), Integer.parseInt(w[3]));
+				break;
+			default:
+				throw new RuntimeException("Error - there is no argument called " + name);
+			}
+		}
+
+		Target t;
+		if (target.equals("locked"))
+			t = locked(new BTree<Long,String>(degree));
+		else if (target.equals("sharded"))
+			t = sharded(new ShardedBTree<Long,String>(degree));
+		else
+			throw new RuntimeException("Error - there is no target called " + target);
+
+		System.out.print(workload.run(t));
+	}
+}
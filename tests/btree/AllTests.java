@@ -5,7 +5,8 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
-@SuiteClasses({ TestBTree.class, TestEntry.class, TestInnerNode.class, TestLeafNode.class })
+@SuiteClasses({ TestBTree.class, TestBufferedBTree.class, TestChangeFeed.class, TestCursor.class, TestEntry.class, TestExpirySweeper.class, TestFollower.class, TestFrozenBTree.class, TestInnerNode.class, TestKeyEncoder.class, TestLeafNode.class, TestLobBTree.class, TestMergeJoin.class,
+	TestMemTable.class, TestSerializers.class, TestShardedBTree.class, TestSnapshot.class, TestVersionedBTree.class, TestWorkload.class })
 
 public class AllTests {
 
@@ -2,6 +2,22 @@ package btree;
 
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -441,5 +457,850 @@ public class TestBTree {
 		
 		assertTrue(T.root == null);
 	}
-}
 
+	@Test
+	public void testUpsert( )
+	{
+		BTree<Long,String> T = new BTree<Long, String>(3);
+		assertFalse(T.upsert(new Long(10), "Ten"));
+		assertFalse(T.upsert(new Long(20), "Twenty"));
+		assertTrue(T.upsert(new Long(10), "TEN"));
+		
+		assertEquals("TEN", T.find(new Long(10)));
+		assertEquals("Twenty", T.find(new Long(20)));
+	}
+
+	@Test
+	public void testInsertLeftSplit( )
+	{
+		BTree<Long,String> T = new BTree<Long, String>(3);
+		T.insert(new Long(50), "Fifty");
+		T.insert(new Long(60), "Sixty");
+		T.insert(new Long(70), "Seventy");
+		T.insert(new Long(80), "Eighty");
+		
+		//         70
+		// 50 60       70 80
+		
+		T.insert(new Long(10), "Ten");
+		T.insert(new Long(20), "Twenty");
+		
+		//        50       70
+		// 10 20     50 60     70 80
+		
+		InnerNode<Long,String> root = (InnerNode<Long,String>) T.root;
+		assertEquals(2, root.keys.size());
+		assertEquals(50, (long) root.keys.get(0));
+		assertEquals(70, (long) root.keys.get(1));
+		
+		LeafNode<Long,String> left = (LeafNode<Long,String>) root.children.get(0);
+		LeafNode<Long,String> mid = (LeafNode<Long,String>) root.children.get(1);
+		assertEquals(10, (long) left.children.get(0).key);
+		assertEquals(20, (long) left.children.get(1).key);
+		assertEquals(50, (long) mid.children.get(0).key);
+		assertEquals(60, (long) mid.children.get(1).key);
+		
+		for (long key : new long[] { 10, 20, 50, 60, 70, 80 })
+			assertTrue(T.containsKey(key));
+	}
+	
+	@Test
+	public void testRandomInsertDelete( )
+	{
+		Random rnd = new Random(27);
+		BTree<Long,String> T = new BTree<Long, String>(4);
+		TreeMap<Long,String> model = new TreeMap<Long,String>( );
+		
+		for (int i = 0; i < 20000; i++)
+		{
+			long key = rnd.nextInt(1000);
+			if (rnd.nextInt(3) < 2) {
+				if (!model.containsKey(key)) {
+					T.insert(key, "V" + i);
+					model.put(key, "V" + i);
+				}
+			}
+			else
+				assertEquals(model.remove(key) != null, T.delete(key));
+		}
+		
+		for (long key = 0; key < 1000; key++)
+		{
+			assertEquals(model.containsKey(key), T.containsKey(key));
+			if (model.containsKey(key))
+				assertEquals(model.get(key), T.find(key));
+		}
+	}
+
+	/**
+	 * Check the size of every node against the degree of its kind
+	 */
+	private static void checkDegrees(BTreeNode<Long,String> node, int inner, int leaf)
+	{
+		if (node instanceof LeafNode) {
+			assertTrue(((LeafNode<Long,String>) node).children.size() <= leaf);
+			return;
+		}
+
+		InnerNode<Long,String> in = (InnerNode<Long,String>) node;
+		assertTrue(in.keys.size() <= inner);
+		assertEquals(inner, in.maxEntries);
+		for (BTreeNode<Long,String> child : in.children)
+			checkDegrees(child, inner, leaf);
+	}
+
+	@Test
+	public void testSeparateDegrees( )
+	{
+		int[][] degrees = { { 2, 7 }, { 9, 2 }, { 16, 3 } };
+		for (int[] d : degrees)
+		{
+			Random rnd = new Random(36);
+			BTree<Long,String> T = new BTree<Long, String>(d[0], d[1]);
+			TreeMap<Long,String> model = new TreeMap<Long,String>( );
+
+			for (int i = 0; i < 10000; i++)
+			{
+				long key = rnd.nextInt(1000);
+				if (rnd.nextInt(3) < 2) {
+					if (!model.containsKey(key)) {
+						T.insert(key, "V" + i);
+						model.put(key, "V" + i);
+					}
+				}
+				else
+					assertEquals(model.remove(key) != null, T.delete(key));
+			}
+
+			checkDegrees(T.root, d[0], d[1]);
+			for (long key = 0; key < 1000; key++)
+			{
+				assertEquals(model.containsKey(key), T.containsKey(key));
+				if (model.containsKey(key))
+					assertEquals(model.get(key), T.find(key));
+			}
+		}
+
+		try {
+			new BTree<Long,String>(1, 4);
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+	}
+
+	@Test
+	public void testWithPageSize( )
+	{
+		// (4096 - 64) / (16 + 8) keys, and (4096 - 64) / (16 + 100 + 16 + 4) entries
+		BTree<Long,String> T = BTree.withPageSize(4096, 16, 100);
+		assertEquals(168, T.maxInnerEntries);
+		assertEquals(29, T.maxEntries);
+
+		// never smaller than the least workable degree
+		T = BTree.withPageSize(64, 1000, 1000);
+		assertEquals(2, T.maxInnerEntries);
+		assertEquals(2, T.maxEntries);
+
+		T = BTree.withPageSize(16, 16);
+		for (long i = 0; i < 1000; i++)
+			T.insert(i, "V" + i);
+		checkDegrees(T.root, T.maxInnerEntries, T.maxEntries);
+		assertEquals("V500", T.find(new Long(500)));
+	}
+
+	/**
+	 * Check that the counts of every inner-node match the entries beneath its children
+	 * @return the number of entries beneath the node
+	 */
+	private static int checkCounts(BTreeNode<Long,String> node)
+	{
+		if (node instanceof LeafNode)
+			return ((LeafNode<Long,String>) node).children.size();
+
+		InnerNode<Long,String> inner = (InnerNode<Long,String>) node;
+		assertTrue(inner.children.size() <= inner.counts.length);
+		int total = 0;
+		for (int i = 0; i < inner.children.size(); i++)
+		{
+			int n = checkCounts(inner.children.get(i));
+			assertEquals(n, inner.counts[i]);
+			total += n;
+		}
+		assertEquals(total, inner.size);
+		return total;
+	}
+
+	@Test
+	public void testOrderStatistics( )
+	{
+		Random rnd = new Random(37);
+		BTree<Long,String> T = new BTree<Long, String>(3, 4);
+		T.countSubtrees();
+		TreeMap<Long,String> model = new TreeMap<Long,String>( );
+
+		for (int i = 0; i < 20000; i++)
+		{
+			long key = rnd.nextInt(2000);
+			int op = rnd.nextInt(5);
+			if (op < 2) {
+				if (!model.containsKey(key)) {
+					T.insert(key, "V" + i);
+					model.put(key, "V" + i);
+				}
+			}
+			else if (op == 2) {
+				T.upsert(key, "U" + i);
+				model.put(key, "U" + i);
+			}
+			else
+				assertEquals(model.remove(key) != null, T.delete(key));
+
+			if (i % 1000 == 0 && T.root != null)
+				checkCounts(T.root);
+		}
+
+		assertEquals(model.size(), T.size());
+		Long[] keys = model.keySet().toArray(new Long[0]);
+		for (int i = 0; i < keys.length; i++)
+		{
+			assertEquals(keys[i], T.select(i));
+			assertEquals(i, T.rank(keys[i]));
+		}
+
+		for (int i = 0; i < 500; i++)
+		{
+			long from = rnd.nextInt(2200) - 100, to = rnd.nextInt(2200) - 100;
+			assertEquals(model.headMap(from).size(), T.rank(from));
+			assertEquals((from < to) ? model.subMap(from, to).size() : 0, T.count(from, to));
+		}
+		assertEquals(model.size(), T.count(null, null));
+		assertEquals(model.tailMap(1000L).size(), T.count(1000L, null));
+
+		try {
+			T.select(model.size());
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+	}
+
+	@Test
+	public void testCountExistingTree( )
+	{
+		BTree<Long,String> T = new BTree<Long, String>(3);
+		for (long i = 0; i < 500; i++)
+			T.insert(i * 2, "V" + i);
+		assertEquals(500, T.size());
+
+		try {
+			T.rank(new Long(10));
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+
+		// counting can be turned on for a tree that already has entries
+		T.countSubtrees();
+		checkCounts(T.root);
+		assertEquals(5, T.rank(new Long(10)));
+		assertEquals(6, T.rank(new Long(11)));
+		assertEquals(990, (long) T.select(495));
+
+		// the 99th percentile key
+		assertEquals(990, (long) T.select((int) (0.99 * T.size())));
+
+		for (long i = 0; i < 500; i += 2)
+			T.delete(i * 2);
+		checkCounts(T.root);
+		assertEquals(250, T.size());
+		assertEquals(2, (long) T.select(0));
+	}
+
+	@Test
+	public void testAggregates( )
+	{
+		Random rnd = new Random(38);
+		BTree<Long,Long> T = new BTree<Long, Long>(3, 4);
+		T.aggregateWith(Aggregates.LONG_SUM);
+		TreeMap<Long,Long> model = new TreeMap<Long,Long>( );
+
+		for (int i = 0; i < 20000; i++)
+		{
+			long key = rnd.nextInt(2000);
+			long value = rnd.nextInt(1000) - 500;
+			int op = rnd.nextInt(5);
+			if (op < 2) {
+				if (!model.containsKey(key)) {
+					T.insert(key, value);
+					model.put(key, value);
+				}
+			}
+			else if (op == 2) {
+				T.upsert(key, value);
+				model.put(key, value);
+			}
+			else
+				assertEquals(model.remove(key) != null, T.delete(key));
+
+			if (i % 100 == 0) {
+				long from = rnd.nextInt(2200) - 100, to = from + rnd.nextInt(1000);
+				long sum = 0;
+				for (long v : model.subMap(from, to).values())
+					sum += v;
+				assertEquals(sum, (long) T.aggregate(Aggregates.LONG_SUM, from, to));
+			}
+		}
+
+		long total = 0;
+		for (long v : model.values())
+			total += v;
+		assertEquals(total, (long) T.aggregate(Aggregates.LONG_SUM, null, null));
+		assertEquals(0, (long) T.aggregate(Aggregates.LONG_SUM, new Long(10), new Long(10)));
+
+		// a different aggregate can replace it, computed from the existing tree
+		Aggregate<Long,Long> max = Aggregates.max();
+		T.aggregateWith(max);
+		for (int i = 0; i < 200; i++)
+		{
+			long from = rnd.nextInt(2000), to = from + 1 + rnd.nextInt(300);
+			Long expected = null;
+			for (long v : model.subMap(from, to).values())
+				expected = (expected == null) ? v : Math.max(expected, v);
+			assertEquals(expected, T.aggregate(max, from, to));
+		}
+
+		try {
+			T.aggregate(Aggregates.LONG_SUM, null, null);
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+	}
+
+	@Test
+	public void testBloomFilters( )
+	{
+		Random rnd = new Random(39);
+		BTree<Long,String> T = new BTree<Long, String>(3, 6);
+		TreeMap<Long,String> model = new TreeMap<Long,String>( );
+
+		// start half way through, so the filters are built for an existing tree
+		for (int i = 0; i < 20000; i++)
+		{
+			if (i == 5000)
+				T.useBloomFilters(10);
+
+			long key = rnd.nextInt(3000);
+			int op = rnd.nextInt(4);
+			if (op < 2) {
+				if (!model.containsKey(key)) {
+					T.insert(key, "V" + key);
+					model.put(key, "V" + key);
+				}
+			}
+			else if (op == 2)
+				assertEquals(model.remove(key) != null, T.delete(key));
+			else
+				assertEquals(model.containsKey(key), T.containsKey(key));
+		}
+
+		for (long key = -10; key < 3010; key++)
+		{
+			assertEquals(model.containsKey(key), T.containsKey(key));
+			if (model.containsKey(key))
+				assertEquals(model.get(key), T.find(key));
+		}
+	}
+
+	@Test
+	public void testBloomFilterSkipsLeaf( )
+	{
+		BTree<Long,String> T = new BTree<Long, String>(4);
+		for (long i = 0; i < 100; i += 2)
+			T.insert(i, "V" + i);
+		T.useBloomFilters(16);
+
+		// slip a key into a leaf behind the back of its filter - only a lookup that
+		// scans the leaf can see it
+		BTreeNode<Long,String> curr = T.root;
+		while (curr instanceof InnerNode)
+			curr = ((InnerNode<Long,String>) curr).getChildForKey(new Long(41));
+		((LeafNode<Long,String>) curr).insert(new Long(41), "V41");
+
+		assertFalse(T.containsKey(new Long(41)));
+		try {
+			T.find(new Long(41));
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+
+		// and without the filters it is found
+		T.useBloomFilters(0);
+		assertTrue(T.containsKey(new Long(41)));
+		assertEquals("V41", T.find(new Long(41)));
+	}
+
+	@Test
+	public void testLookupCache( )
+	{
+		Random rnd = new Random(40);
+		BTree<Long,String> T = new BTree<Long, String>(4);
+		T.useLookupCache(50);
+		TreeMap<Long,String> model = new TreeMap<Long,String>( );
+
+		// a small cache over a busy key space, so entries are evicted, updated and deleted
+		for (int i = 0; i < 30000; i++)
+		{
+			long key = rnd.nextInt(500);
+			int op = rnd.nextInt(6);
+			if (op == 0) {
+				if (!model.containsKey(key)) {
+					T.insert(key, "V" + key);
+					model.put(key, "V" + key);
+				}
+			}
+			else if (op == 1) {
+				T.upsert(key, "U" + i);
+				model.put(key, "U" + i);
+			}
+			else if (op == 2)
+				assertEquals(model.remove(key) != null, T.delete(key));
+			else {
+				assertEquals(model.containsKey(key), T.containsKey(key));
+				if (model.containsKey(key))
+					assertEquals(model.get(key), T.find(key));
+			}
+		}
+		assertTrue(T.getCacheHits() > 0);
+		assertTrue(T.getCacheMisses() > 0);
+	}
+
+	@Test
+	public void testLookupCacheHitRate( )
+	{
+		BTree<Long,String> T = new BTree<Long, String>(8);
+		for (long i = 0; i < 10000; i++)
+			T.insert(i, "V" + i);
+		assertEquals(0, T.getCacheHits());
+
+		// nine lookups in ten go to a hot set that fits the cache, and they stay cached
+		// while the cold keys pass through
+		Random rnd = new Random(40);
+		T.useLookupCache(100);
+		for (int i = 0; i < 20000; i++)
+		{
+			long key = (rnd.nextInt(10) > 0) ? rnd.nextInt(50) : 50 + rnd.nextInt(9950);
+			assertEquals("V" + key, T.find(key));
+		}
+		assertEquals(20000, T.getCacheHits() + T.getCacheMisses());
+		assertTrue(T.getCacheHitRate() > 0.85);
+
+		// a deleted key is not answered from the cache
+		T.find(new Long(7));
+		assertTrue(T.delete(new Long(7)));
+		assertFalse(T.containsKey(new Long(7)));
+		try {
+			T.find(new Long(7));
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+
+		T.useLookupCache(0);
+		assertEquals(0, T.getCacheHits());
+		assertEquals(0.0, T.getCacheHitRate(), 0.0);
+	}
+
+	@Test
+	public void testLookupCacheReaders( ) throws Exception
+	{
+		final BTree<Long,String> T = new BTree<Long, String>(8);
+		for (long i = 0; i < 5000; i++)
+			T.insert(i, "V" + i);
+		T.useLookupCache(64);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>( );
+		final int threads = 4, each = 50000;
+
+		// readers share the tree (as they would a read lock), so they hit, miss and evict
+		// at once - each must still be answered with the value of its own key
+		Thread[] readers = new Thread[threads];
+		for (int t = 0; t < threads; t++)
+		{
+			final Random rnd = new Random(40 + t);
+			readers[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int n = 0; n < each; n++)
+						{
+							long key = (rnd.nextInt(4) > 0) ? rnd.nextInt(48) : rnd.nextInt(5000);
+							assertEquals("V" + key, T.find(key));
+							assertTrue(T.containsKey(key));
+						}
+					}
+					catch (Throwable E) {
+						failure.compareAndSet(null, E);
+					}
+				}
+			});
+			readers[t].start();
+		}
+		for (Thread reader : readers)
+			reader.join();
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+
+		assertEquals(threads * each, T.getCacheHits() + T.getCacheMisses());
+		assertTrue(T.getCacheHitRate() > 0.5);
+	}
+
+	@Test
+	public void testFinger( )
+	{
+		BTree<Long,String> T = new BTree<Long, String>(3, 4);
+		T.countSubtrees();
+		T.aggregateWith(Aggregates.<String>max());
+		T.useBloomFilters(10);
+
+		// keys in order land in the last leaf, which the finger holds between splits
+		for (long i = 0; i < 1000; i++)
+		{
+			T.insert(i, "V" + i);
+			if (T.finger != null) {
+				assertTrue(T.finger.covers(i));
+				assertNull(T.finger.high);
+			}
+		}
+		assertEquals(1000, T.size());
+		assertEquals(500, T.rank(new Long(500)));
+
+		Finger<Long,String> f = T.finger;
+		assertEquals("V999", T.find(new Long(999)));
+		assertSame(f, T.finger);
+
+		// a lookup elsewhere descends from the root, leaving the finger where it is
+		assertEquals("V10", T.find(new Long(10)));
+		assertFalse(T.containsKey(new Long(1000)));
+		assertSame(f, T.finger);
+		for (long i = 0; i < 1000; i++)
+			assertEquals("V" + i, T.find(i));
+
+		// removing a leaf drops the finger
+		LeafNode<Long,String> leaf = T.finger.leaf;
+		while (leaf.children.size() > 1)
+			T.delete(leaf.children.get(0).key);
+		assertNotNull(T.finger);
+		T.delete(leaf.children.get(0).key);
+		assertNull(T.finger);
+		assertEquals("V0", T.find(new Long(0)));
+		assertFalse(T.containsKey(new Long(999)));
+	}
+
+	@Test
+	public void testLookupFinger( )
+	{
+		Random rnd = new Random(41);
+		BTree<Long,String> T = new BTree<Long, String>(8, 16);
+		int n = 20000;
+		for (int i = 0; i < n; i++)
+		{
+			long key = rnd.nextInt(1000000);
+			if (!T.containsKey(key))
+				T.insert(key, "V" + key);
+		}
+		T.useBloomFilters(10);
+		Long[] keys = new Long[T.size()];
+		Cursor<Long,String> cursor = new Cursor<Long,String>(T);
+		for (int i = 0; cursor.hasNext(); i++)
+			keys[i] = cursor.next().key;
+
+		// keys found in order mostly stay in the leaf of the thread's finger, and climb
+		// no further than they must to move on, so each visits a constant number of
+		// inner-nodes - well under one, as a leaf holds many keys
+		LookupFinger<Long,String> f = T.lookupFinger();
+		long before = f.visits;
+		for (Long key : keys)
+			assertEquals("V" + key, T.find(key));
+		assertTrue(f.visits - before < keys.length / 4);
+
+		// keys found out of order descend again, through at least one inner-node each
+		before = f.visits;
+		for (int i = 0; i < keys.length; i++)
+			assertTrue(T.containsKey(keys[rnd.nextInt(keys.length)]));
+		assertTrue(f.visits - before > keys.length);
+
+		// a change to the structure of the tree moves the finger back to the root
+		int structure = T.structure;
+		for (long key = 1000000; T.structure == structure; key++)
+			T.insert(key, "V" + key);
+		assertEquals("V" + keys[0], T.find(keys[0]));
+		assertEquals(T.structure, f.structure);
+		assertFalse(T.containsKey(new Long(-1)));
+	}
+
+	@Test
+	public void testFingerRandom( )
+	{
+		Random rnd = new Random(41);
+		BTree<Long,String> T = new BTree<Long, String>(3);
+		T.countSubtrees();
+		TreeMap<Long,String> model = new TreeMap<Long,String>( );
+
+		// runs of ascending keys from random starting points, mixed with deletes
+		long next = 0;
+		for (int i = 0; i < 30000; i++)
+		{
+			if (rnd.nextInt(20) == 0)
+				next = rnd.nextInt(5000);
+			long key = next++;
+			int op = rnd.nextInt(4);
+			if (op < 2) {
+				if (!model.containsKey(key)) {
+					T.insert(key, "V" + key);
+					model.put(key, "V" + key);
+				}
+			}
+			else if (op == 2)
+				assertEquals(model.remove(key) != null, T.delete(key));
+			else
+				assertEquals(model.containsKey(key), T.containsKey(key));
+		}
+
+		assertEquals(model.size(), T.size());
+		for (Long key : model.keySet())
+			assertEquals(model.get(key), T.find(key));
+	}
+
+	@Test
+	public void testGetAll( )
+	{
+		Random rnd = new Random(42);
+		BTree<Long,String> T = new BTree<Long, String>(3, 5);
+		TreeMap<Long,String> model = new TreeMap<Long,String>( );
+		assertEquals(Arrays.asList(null, null), T.getAll(Arrays.asList(new Long(1), new Long(2))));
+
+		for (int i = 0; i < 5000; i++)
+		{
+			long key = rnd.nextInt(20000);
+			if (!model.containsKey(key)) {
+				T.insert(key, "V" + key);
+				model.put(key, "V" + key);
+			}
+		}
+
+		// unsorted batches, with repeated keys and misses, on and off the pool
+		ForkJoinPool pool = new ForkJoinPool(4);
+		for (int size : new int[] { 0, 1, 10, 500, 5000 })
+		{
+			List<Long> batch = new ArrayList<Long>( );
+			for (int i = 0; i < size; i++)
+				batch.add((long) rnd.nextInt(21000) - 500);
+			if (size > 1)
+				batch.add(batch.get(0));
+
+			List<String> expected = new ArrayList<String>( );
+			for (Long key : batch)
+				expected.add(model.get(key));
+			assertEquals(expected, T.getAll(batch));
+			assertEquals(expected, T.getAll(batch, pool));
+		}
+		pool.shutdown();
+
+		try {
+			T.getAll(Arrays.asList(new Long(1), null));
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+	}
+
+	@Test
+	public void testExpiry( )
+	{
+		BTree<Long,String> T = new BTree<Long, String>(3, 4);
+		T.clock = Clock.fixed(Instant.ofEpochMilli(1000), ZoneOffset.UTC);
+		T.useLookupCache(10);
+		for (long i = 0; i < 20; i++)
+		{
+			if (i % 2 == 0) T.insert(i, "V" + i, 5, TimeUnit.SECONDS);
+			else T.insert(i, "V" + i);
+		}
+		assertEquals("V4", T.find(new Long(4)));
+
+		// the even keys expire, but are only hidden until they are swept
+		T.clock = Clock.fixed(Instant.ofEpochMilli(6000), ZoneOffset.UTC);
+		assertFalse(T.containsKey(new Long(4)));
+		try {
+			T.find(new Long(4));
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+		assertEquals(Arrays.asList(null, "V5"), T.getAll(Arrays.asList(new Long(4), new Long(5))));
+		Cursor<Long,String> cursor = new Cursor<Long,String>(T);
+		for (long i = 1; i < 20; i += 2)
+			assertEquals(new Long(i), cursor.next().key);
+		assertFalse(cursor.hasNext());
+		assertEquals(20, T.size());
+
+		// an expired key can be inserted again, and an upsert of one adds it
+		T.insert(new Long(2), "again");
+		assertEquals("again", T.find(new Long(2)));
+		assertFalse(T.upsert(new Long(6), "again", 1, TimeUnit.SECONDS));
+		assertTrue(T.upsert(new Long(6), "and again"));
+		assertFalse(T.delete(new Long(8)));
+
+		assertEquals(7, T.expire());
+		assertEquals(12, T.size());
+		assertEquals(0, T.expire());
+		try {
+			T.insert(new Long(100), "never", 0, TimeUnit.SECONDS);
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+	}
+
+	@Test
+	public void testExpiryRandom( )
+	{
+		Random rnd = new Random(44);
+		long time = 0;
+		for (int degree = 2; degree <= 5; degree++)
+		{
+			BTree<Long,Long> T = new BTree<Long, Long>(degree, degree + 1);
+			T.countSubtrees();
+			T.aggregateWith(Aggregates.LONG_SUM);
+			TreeMap<Long,Long> model = new TreeMap<Long,Long>( );
+			TreeMap<Long,Long> expiry = new TreeMap<Long,Long>( );
+
+			for (int round = 0; round < 20; round++)
+			{
+				T.clock = Clock.fixed(Instant.ofEpochMilli(time), ZoneOffset.UTC);
+				for (int i = 0; i < 200; i++)
+				{
+					long key = rnd.nextInt(1000);
+					long ttl = 1 + rnd.nextInt(100);
+					if (!model.containsKey(key) || (expiry.containsKey(key) && (expiry.get(key) <= time))) {
+						if (rnd.nextBoolean()) {
+							T.upsert(key, key, ttl, TimeUnit.MILLISECONDS);
+							expiry.put(key, time + ttl);
+						}
+						else {
+							T.insert(key, key);
+							expiry.remove(key);
+						}
+						model.put(key, key);
+					}
+				}
+
+				// sweeping removes exactly the pairs that have expired, through the same
+				// restructuring (and upkeep of counts and aggregates) as a delete
+				time += 50;
+				T.clock = Clock.fixed(Instant.ofEpochMilli(time), ZoneOffset.UTC);
+				int gone = 0;
+				for (Iterator<Map.Entry<Long,Long>> it = expiry.entrySet().iterator(); it.hasNext(); )
+				{
+					Map.Entry<Long,Long> e = it.next();
+					if (e.getValue() <= time) {
+						model.remove(e.getKey());
+						it.remove();
+						gone++;
+					}
+				}
+				assertEquals(gone, T.expire());
+
+				assertEquals(model.size(), T.size());
+				long sum = 0;
+				for (long v : model.values())
+					sum += v;
+				assertEquals(sum, (long) T.aggregate(Aggregates.LONG_SUM, null, null));
+				for (Long key : model.keySet())
+					assertEquals(key, T.find(key));
+			}
+		}
+	}
+
+	@Test
+	public void testNoAllocation( )
+	{
+		// the bytes allocated by this thread are only reported by HotSpot
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(mx.isThreadAllocatedMemorySupported() && mx.isThreadAllocatedMemoryEnabled());
+		long id = Thread.currentThread().getId();
+
+		// the keys are boxed up front, and visited in a random order, so every
+		// operation descends the tree rather than following the finger
+		Random rnd = new Random(49);
+		int n = 20000;
+		Long[] keys = new Long[n];
+		for (int i = 0; i < n; i++)
+			keys[i] = new Long(i);
+		for (int i = n - 1; i > 0; i--)
+		{
+			int j = rnd.nextInt(i + 1);
+			Long t = keys[i]; keys[i] = keys[j]; keys[j] = t;
+		}
+		String value = "value";
+
+		// the subtree counts are kept in place, so they cost nothing either
+		BTree<Long,String> T = new BTree<Long, String>(8, 16);
+		T.countSubtrees();
+		for (Long key : keys)
+			T.insert(key, value);
+
+		for (int round = 0; round < 5; round++)
+		{
+			// deleting every other key never empties a leaf, so nothing is split or removed
+			long before = mx.getThreadAllocatedBytes(id);
+			for (int i = 0; i < n; i += 2)
+				assertTrue(T.delete(keys[i]));
+			long deletes = mx.getThreadAllocatedBytes(id) - before;
+
+			// putting them back only refills the leaves they came from, so nothing is
+			// allocated but the entry that holds each pair
+			before = mx.getThreadAllocatedBytes(id);
+			for (int i = 0; i < n; i += 2)
+				T.insert(keys[i], value);
+			long inserts = mx.getThreadAllocatedBytes(id) - before;
+
+			before = mx.getThreadAllocatedBytes(id);
+			for (int i = 0; i < n; i++)
+				assertTrue(T.upsert(keys[i], value));
+			long upserts = mx.getThreadAllocatedBytes(id) - before;
+
+			// lookups follow the finger or descend without recording the path
+			before = mx.getThreadAllocatedBytes(id);
+			for (int i = 0; i < n; i++)
+				assertTrue(T.containsKey(keys[i]) && (T.find(keys[i]) == value));
+			long finds = mx.getThreadAllocatedBytes(id) - before;
+
+			// (allowing for the few bytes the measurement itself allocates)
+			assertTrue("deletes allocated " + deletes + " bytes", deletes < 1024);
+			assertTrue("upserts allocated " + upserts + " bytes", upserts < 1024);
+			assertTrue("finds allocated " + finds + " bytes", finds < 1024);
+			assertTrue("inserts allocated " + inserts + " bytes", inserts < 1024 + (n / 2) * 48);
+		}
+		assertEquals(n, T.size());
+	}
+}
@@ -0,0 +1,172 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class TestBufferedBTree {
+
+	@Test
+	public void testInsertFind() {
+
+		BufferedBTree<Long,String> T = new BufferedBTree<Long, String>(3, 4);
+		for (long i = 0; i < 100; i++)
+			T.insert(i * 10, "V" + i);
+
+		assertTrue(T.root instanceof InnerNode);
+		for (long i = 0; i < 100; i++)
+			assertEquals("V" + i, T.find(i * 10));
+
+		try {
+			T.find(new Long(5));
+			fail("this should have failed");
+		}
+		catch(Throwable E)
+		{
+			;
+		}
+	}
+
+	@Test
+	public void testInsertKeepsExisting() {
+
+		BufferedBTree<Long,String> T = new BufferedBTree<Long, String>(3, 4);
+		for (long i = 0; i < 20; i++)
+			T.insert(i, "A" + i);
+
+		T.insert(new Long(7), "B");
+		assertEquals("A7", T.find(new Long(7)));
+
+		T.upsert(new Long(7), "C");
+		assertEquals("C", T.find(new Long(7)));
+
+		T.flush();
+		assertEquals("C", T.find(new Long(7)));
+	}
+
+	@Test
+	public void testBufferedDelete() {
+
+		BufferedBTree<Long,String> T = new BufferedBTree<Long, String>(3, 8);
+		for (long i = 0; i < 50; i++)
+			T.insert(i, "V" + i);
+
+		// the delete is still pending in a buffer, but the key must be gone
+		T.delete(new Long(25));
+		try {
+			T.find(new Long(25));
+			fail("this should have failed");
+		}
+		catch(Throwable E)
+		{
+			;
+		}
+
+		T.insert(new Long(25), "Again");
+		assertEquals("Again", T.find(new Long(25)));
+	}
+
+	@Test
+	public void testRandom() {
+
+		Random rnd = new Random(26);
+		BufferedBTree<Long,String> T = new BufferedBTree<Long, String>(4, 6);
+		TreeMap<Long,String> model = new TreeMap<Long,String>( );
+
+		for (int i = 0; i < 20000; i++)
+		{
+			long key = rnd.nextInt(2000);
+			int op = rnd.nextInt(10);
+			if (op < 4) {
+				T.insert(key, "I" + i);
+				if (!model.containsKey(key)) model.put(key, "I" + i);
+			}
+			else if (op < 7) {
+				T.upsert(key, "U" + i);
+				model.put(key, "U" + i);
+			}
+			else {
+				T.delete(key);
+				model.remove(key);
+			}
+
+			if (i % 1000 == 0) check(T, model);
+		}
+
+		check(T, model);
+
+		// after a flush, every pair is found in the leaf-nodes
+		T.flush();
+		check(T, model);
+		assertFalse(hasPending(T.root));
+		assertTrue(depth(T.root) > 0);
+
+		TreeMap<Long,String> leaves = new TreeMap<Long,String>( );
+		collect(T.root, leaves);
+		assertEquals(model, leaves);
+
+		// and deleting everything empties the tree
+		for (Long key : model.keySet())
+			T.delete(key);
+		T.flush();
+		assertNull(T.root);
+	}
+
+	private void check(BufferedBTree<Long,String> T, TreeMap<Long,String> model)
+	{
+		for (long key = 0; key < 2000; key++)
+		{
+			if (model.containsKey(key))
+				assertEquals(model.get(key), T.find(key));
+			else {
+				try {
+					T.find(key);
+					fail("key " + key + " should not be found");
+				}
+				catch(RuntimeException E)
+				{
+					;
+				}
+			}
+		}
+	}
+
+	private boolean hasPending(BTreeNode<Long,String> node)
+	{
+		if (!(node instanceof InnerNode)) return false;
+		InnerNode<Long,String> inner = (InnerNode<Long,String>) node;
+		if (inner.buffer.size() > 0) return true;
+		for (BTreeNode<Long,String> child : inner.children)
+			if (hasPending(child)) return true;
+		return false;
+	}
+
+	// the depth of the leaf-nodes, or -1 if they are not all on the same level
+	private int depth(BTreeNode<Long,String> node)
+	{
+		if (node instanceof LeafNode) return 1;
+		int d = 0;
+		for (BTreeNode<Long,String> child : ((InnerNode<Long,String>) node).children)
+		{
+			int c = depth(child);
+			if ((c < 0) || ((d != 0) && (c != d))) return -1;
+			d = c;
+		}
+		return d + 1;
+	}
+
+	private void collect(BTreeNode<Long,String> node, Map<Long,String> out)
+	{
+		if (node instanceof LeafNode) {
+			for (Entry<Long,String> e : ((LeafNode<Long,String>) node).children)
+				out.put(e.key, e.value);
+			return;
+		}
+		for (BTreeNode<Long,String> child : ((InnerNode<Long,String>) node).children)
+			collect(child, out);
+	}
+}
@@ -0,0 +1,139 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestChangeFeed {
+
+	@Test
+	public void testReplay() {
+
+		Random rnd = new Random(43);
+		BTree<Long,String> T = new BTree<Long, String>(4);
+		T.insert(new Long(-1), "before the feed");
+
+		ChangeFeed<Long,String> feed = T.useChangeFeed(100000);
+		assertSame(feed, T.getChangeFeed());
+		ChangeFeed<Long,String>.Subscription sub = feed.subscribe(feed.getNextSequence());
+
+		// a replica built only from the feed ends up holding the same pairs
+		TreeMap<Long,String> replica = new TreeMap<Long,String>( );
+		replica.put(new Long(-1), "before the feed");
+		long expected = 1;
+		for (int i = 0; i < 20000; i++)
+		{
+			long key = rnd.nextInt(1000);
+			int op = rnd.nextInt(3);
+			if (op == 0) {
+				if (!T.containsKey(key))
+					T.insert(key, "V" + i);
+			}
+			else if (op == 1)
+				T.upsert(key, "U" + i);
+			else
+				T.delete(key);
+
+			if (i % 50 == 0) {
+				for (Change<Long,String> c : sub.poll(20))
+				{
+					assertEquals(expected++, c.getSequence());
+					if (c.getType() == Change.Type.DELETE) replica.remove(c.getKey());
+					else replica.put(c.getKey(), c.getValue());
+				}
+			}
+		}
+
+		List<Change<Long,String>> batch;
+		while (!(batch = sub.poll(1000)).isEmpty())
+		{
+			for (Change<Long,String> c : batch)
+			{
+				assertEquals(expected++, c.getSequence());
+				if (c.getType() == Change.Type.DELETE) replica.remove(c.getKey());
+				else replica.put(c.getKey(), c.getValue());
+			}
+		}
+		assertEquals(feed.getNextSequence(), sub.getPosition());
+
+		Cursor<Long,String> cursor = new Cursor<Long,String>(T);
+		for (Long key : replica.keySet())
+			assertEquals(replica.get(key), cursor.next().value);
+		assertFalse(cursor.hasNext());
+	}
+
+	@Test
+	public void testFallenBehind() {
+
+		BTree<Long,String> T = new BTree<Long, String>(4);
+		ChangeFeed<Long,String> feed = T.useChangeFeed(10);
+		ChangeFeed<Long,String>.Subscription slow = feed.subscribe(1);
+		for (long i = 0; i < 25; i++)
+			T.insert(i, "V" + i);
+
+		assertEquals(16, feed.getFirstSequence());
+		assertEquals(26, feed.getNextSequence());
+
+		// a subscription from the oldest change still held sees the rest
+		List<Change<Long,String>> batch = feed.subscribe(16).poll(100);
+		assertEquals(10, batch.size());
+		assertEquals(new Long(15), batch.get(0).getKey());
+
+		try {
+			slow.poll(10);
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+		try {
+			feed.subscribe(15);
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+
+		assertNull(T.useChangeFeed(0));
+		T.delete(new Long(3));
+		assertEquals(26, feed.getNextSequence());
+	}
+
+	@Test
+	public void testWaitForChanges() throws Exception {
+
+		final BTree<Long,String> T = new BTree<Long, String>(4);
+		ChangeFeed<Long,String> feed = T.useChangeFeed(1000);
+		ChangeFeed<Long,String>.Subscription sub = feed.subscribe(1);
+
+		// nothing to deliver before the timeout
+		assertTrue(sub.poll(10, 10, TimeUnit.MILLISECONDS).isEmpty());
+
+		Thread writer = new Thread() {
+			public void run() {
+				for (long i = 0; i < 500; i++)
+					T.insert(i, "V" + i);
+			}
+		};
+		writer.start();
+
+		long seen = 0;
+		while (seen < 500)
+		{
+			for (Change<Long,String> c : sub.poll(64, 5, TimeUnit.SECONDS))
+			{
+				assertEquals(Change.Type.INSERT, c.getType());
+				assertEquals(new Long(seen++), c.getKey());
+			}
+		}
+		writer.join();
+		assertEquals(501, sub.getPosition());
+	}
+}
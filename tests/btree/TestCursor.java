@@ -0,0 +1,54 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCursor {
+
+	BTree<Long,String> T;
+
+	@Before
+	public void setUp() throws Exception {
+		T = new BTree<Long, String>(3);
+		for (long i = 1; i <= 50; i++)
+			T.insert(i * 10, "V" + i * 10);
+	}
+
+	@Test
+	public void testScan() {
+
+		Cursor<Long,String> cursor = new Cursor<Long,String>(T);
+		for (long i = 1; i <= 50; i++)
+			assertEquals(i * 10, (long) cursor.next().key);
+		assertFalse(cursor.hasNext());
+	}
+
+	@Test
+	public void testSeek() {
+
+		Cursor<Long,String> cursor = new Cursor<Long,String>(T);
+
+		cursor.seek(new Long(255));
+		assertEquals(260, (long) cursor.next().key);
+
+		cursor.seek(new Long(300));
+		assertEquals(300, (long) cursor.next().key);
+		assertEquals(310, (long) cursor.next().key);
+
+		cursor.seek(new Long(0));
+		assertEquals(10, (long) cursor.next().key);
+
+		cursor.seek(new Long(501));
+		assertFalse(cursor.hasNext());
+	}
+
+	@Test
+	public void testEmpty() {
+
+		Cursor<Long,String> cursor = new Cursor<Long,String>(new BTree<Long,String>(3));
+		assertFalse(cursor.hasNext());
+		assertNull(cursor.leaf);
+	}
+}
@@ -0,0 +1,64 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Test;
+
+public class TestExpirySweeper {
+
+	@Test
+	public void testSweepNow() {
+
+		BTree<Long,String> T = new BTree<Long, String>(3);
+		ReentrantLock lock = new ReentrantLock( );
+		ExpirySweeper<Long,String> sweeper = new ExpirySweeper<Long,String>(T, lock, 1, TimeUnit.HOURS);
+		assertEquals(0, sweeper.sweepNow());
+
+		for (long i = 0; i < 1000; i++)
+		{
+			if (i % 10 < 7) T.insert(i, "V" + i, 1, TimeUnit.MILLISECONDS);
+			else T.insert(i, "V" + i);
+		}
+		T.clock = Clock.offset(T.clock, Duration.ofSeconds(1));
+
+		assertEquals(700, sweeper.sweepNow());
+		assertEquals(700, sweeper.getSweptCount());
+		assertEquals(300, T.size());
+		for (long i = 0; i < 1000; i++)
+			assertEquals(i % 10 >= 7, T.containsKey(i));
+		sweeper.close();
+	}
+
+	@Test
+	public void testBackground() throws Exception {
+
+		final BTree<Long,String> T = new BTree<Long, String>(4);
+		final ReentrantLock lock = new ReentrantLock( );
+		ExpirySweeper<Long,String> sweeper = new ExpirySweeper<Long,String>(T, lock, 5, TimeUnit.MILLISECONDS);
+
+		// writers keep adding short-lived pairs under the lock while the sweeper runs
+		for (long i = 0; i < 2000; i++)
+		{
+			lock.lock();
+			try {
+				T.insert(i, "V" + i, 1 + (i % 20), TimeUnit.MILLISECONDS);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while ((sweeper.getSweptCount() < 2000) && (System.currentTimeMillis() < deadline))
+			Thread.sleep(5);
+		sweeper.close();
+
+		assertEquals(2000, sweeper.getSweptCount());
+		assertNull(T.root);
+	}
+}
@@ -0,0 +1,120 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Test;
+
+public class TestFollower {
+
+	// make a random change to the leader, under its lock
+	private void change(BTree<Long,String> T, ReentrantLock lock, Random rnd, int i)
+	{
+		long key = rnd.nextInt(1000);
+		lock.lock();
+		try {
+			if (rnd.nextInt(3) == 0)
+				T.delete(key);
+			else
+				T.upsert(key, "V" + i);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// the follower holds the same pairs as the leader
+	private void assertReplica(BTree<Long,String> T, Follower<Long,String> F)
+	{
+		assertEquals(T.size(), F.size());
+		for (long key = 0; key < 1000; key++)
+		{
+			assertEquals(T.containsKey(key), F.containsKey(key));
+			if (T.containsKey(key))
+				assertEquals(T.find(key), F.find(key));
+		}
+	}
+
+	@Test
+	public void testFollow() throws Exception {
+
+		Random rnd = new Random(47);
+		BTree<Long,String> T = new BTree<Long, String>(4);
+		ReentrantLock lock = new ReentrantLock( );
+
+		try {
+			new Follower<Long,String>(T, lock);
+			fail("this should have failed");
+		} catch(RuntimeException E) { ; }
+
+		// the pairs before the feed was started come from the copy
+		for (int i = 0; i < 500; i++)
+			change(T, lock, rnd, i);
+		T.useChangeFeed(100000);
+		Follower<Long,String> F = new Follower<Long,String>(T, lock, 64);
+		assertReplica(T, F);
+
+		for (int i = 0; i < 20000; i++)
+			change(T, lock, rnd, i);
+		assertTrue(F.awaitSequence(T.getChangeFeed().getNextSequence(), 10, TimeUnit.SECONDS));
+		assertEquals(0, F.getLag());
+		assertEquals(T.getChangeFeed().getNextSequence(), F.getAppliedSequence());
+		assertReplica(T, F);
+
+		// a closed follower stops applying the changes, and reports how far behind it is
+		F.close();
+		for (int i = 0; i < 10; i++)
+			change(T, lock, rnd, i);
+		assertEquals(10, F.getLag());
+		assertFalse(F.awaitSequence(T.getChangeFeed().getNextSequence(), 10, TimeUnit.MILLISECONDS));
+		assertEquals(0, F.getResyncCount());
+	}
+
+	@Test
+	public void testPromote() {
+
+		Random rnd = new Random(48);
+		BTree<Long,String> T = new BTree<Long, String>(5);
+		ReentrantLock lock = new ReentrantLock( );
+		T.useChangeFeed(100000);
+		Follower<Long,String> F = new Follower<Long,String>(T, lock);
+		BTree<Long,String> copy = F.tree;
+
+		for (int i = 0; i < 5000; i++)
+			change(T, lock, rnd, i);
+
+		// the promoted tree is the follower's own, brought up to date
+		BTree<Long,String> P = F.promote();
+		assertSame(copy, P);
+		assertEquals(0, F.getLag());
+		assertEquals(0, F.getResyncCount());
+		assertReplica(T, F);
+
+		// and it can be written to as the leader
+		P.upsert(new Long(2000), "new leader");
+		assertEquals("new leader", P.find(new Long(2000)));
+		assertSame(P, F.promote());
+	}
+
+	@Test
+	public void testFallenBehind() {
+
+		Random rnd = new Random(49);
+		BTree<Long,String> T = new BTree<Long, String>(4);
+		ReentrantLock lock = new ReentrantLock( );
+		T.useChangeFeed(10);
+		Follower<Long,String> F = new Follower<Long,String>(T, lock);
+
+		// the feed holds too few changes for a stopped follower to catch up from,
+		// so it copies the leader again
+		F.close();
+		for (int i = 0; i < 1000; i++)
+			change(T, lock, rnd, i);
+		F.promote();
+		assertEquals(1, F.getResyncCount());
+		assertReplica(T, F);
+	}
+}
@@ -0,0 +1,95 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class TestFrozenBTree {
+
+	@Test
+	public void testFind() {
+
+		// every size from empty up to a few levels of index, and a range of degrees
+		for (int degree = 2; degree <= 6; degree++)
+		{
+			for (int n = 0; n < 60; n++)
+			{
+				BTree<Long,String> T = new BTree<Long, String>(degree);
+				for (long i = 0; i < n; i++)
+					T.insert(i * 2, "V" + i);
+
+				FrozenBTree<Long,String> F = T.freeze();
+				assertEquals(n, F.size());
+				for (long i = 0; i < n; i++)
+				{
+					assertEquals("V" + i, F.find(i * 2));
+					assertEquals(-((int) i + 1) - 1, F.search(i * 2 + 1));
+				}
+				assertEquals(-1, F.search(new Long(-1)));
+				assertFalse(F.containsKey(new Long(2 * n)));
+			}
+		}
+	}
+
+	@Test
+	public void testNotFound() {
+
+		BTree<Long,String> T = new BTree<Long, String>(3);
+		T.insert(new Long(10), "Ten");
+		FrozenBTree<Long,String> F = T.freeze();
+
+		// later changes do not reach the frozen copy
+		T.insert(new Long(20), "Twenty");
+		assertFalse(F.containsKey(new Long(20)));
+
+		try {
+			F.find(new Long(20));
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+	}
+
+	@Test
+	public void testRange() {
+
+		Random rnd = new Random(35);
+		BTree<Long,String> T = new BTree<Long, String>(4);
+		TreeMap<Long,String> model = new TreeMap<Long,String>( );
+		for (int i = 0; i < 3000; i++)
+		{
+			long key = rnd.nextInt(100000);
+			if (!model.containsKey(key)) {
+				T.insert(key, "V" + key);
+				model.put(key, "V" + key);
+			}
+		}
+
+		FrozenBTree<Long,String> F = T.freeze();
+		for (int i = 0; i < 200; i++)
+		{
+			long from = rnd.nextInt(110000) - 5000;
+			long to = from + rnd.nextInt(5000);
+
+			Iterator<Map.Entry<Long,String>> it = F.range(from, to);
+			for (Map.Entry<Long,String> expected : model.subMap(from, to).entrySet())
+			{
+				assertTrue(it.hasNext());
+				assertEquals(expected, it.next());
+			}
+			assertFalse(it.hasNext());
+		}
+
+		Iterator<Map.Entry<Long,String>> all = F.range(null, null);
+		for (Long key : model.keySet())
+			assertEquals(key, all.next().getKey());
+		assertFalse(all.hasNext());
+	}
+}
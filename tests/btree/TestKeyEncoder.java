@@ -0,0 +1,117 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestKeyEncoder {
+
+	private static final String[] WORDS = { "", "a", "a\u0000", "a\u0000b", "ab", "b", "caf\u00e9", "\u6f22", "zz" };
+
+	// (String name, long time descending, nullable int id)
+	private final KeyEncoder encoder = new KeyEncoder().addString().addLong(true, false).addInt(false, true);
+
+	private static int compareTuples(Object[] a, Object[] b)
+	{
+		int c = ((String) a[0]).compareTo((String) b[0]);
+		if (c != 0) return c;
+		c = Long.compare((Long) b[1], (Long) a[1]);		// descending
+		if (c != 0) return c;
+		if (a[2] == null) return (b[2] == null) ? 0 : -1;
+		if (b[2] == null) return 1;
+		return Integer.compare((Integer) a[2], (Integer) b[2]);
+	}
+
+	@Test
+	public void testOrder() {
+
+		Random rnd = new Random(34);
+		long[] longs = { Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE };
+		List<Object[]> tuples = new ArrayList<Object[]>( );
+		for (int i = 0; i < 2000; i++)
+		{
+			Integer id = rnd.nextInt(4) == 0 ? null : (rnd.nextBoolean() ? rnd.nextInt() : rnd.nextInt(3) - 1);
+			tuples.add(new Object[] { WORDS[rnd.nextInt(WORDS.length)], longs[rnd.nextInt(longs.length)], id });
+		}
+
+		List<NormalizedKey> keys = new ArrayList<NormalizedKey>( );
+		for (Object[] t : tuples)
+			keys.add(encoder.encode(t));
+
+		for (int i = 0; i < 5000; i++)
+		{
+			int a = rnd.nextInt(tuples.size()), b = rnd.nextInt(tuples.size());
+			assertEquals(Integer.signum(compareTuples(tuples.get(a), tuples.get(b))),
+					Integer.signum(keys.get(a).compareTo(keys.get(b))));
+		}
+
+		// and sorting the keys sorts the tuples
+		Collections.sort(keys);
+		Collections.sort(tuples, new Comparator<Object[]>() {
+			public int compare(Object[] a, Object[] b) { return compareTuples(a, b); }
+		});
+		for (int i = 0; i < keys.size(); i++)
+			assertArrayEquals(tuples.get(i), encoder.decode(keys.get(i)));
+	}
+
+	@Test
+	public void testDescendingStrings() {
+
+		KeyEncoder desc = new KeyEncoder().addString(true, true).addInt();
+		assertTrue(desc.encode("ab", 0).compareTo(desc.encode("a", 0)) < 0);
+		assertTrue(desc.encode("a", 0).compareTo(desc.encode("a\u0000", 0)) > 0);
+		assertTrue(desc.encode("a", 5).compareTo(desc.encode("a", 6)) < 0);
+		assertTrue(desc.encode(null, 0).compareTo(desc.encode("", 0)) > 0);
+		assertArrayEquals(new Object[] { "a\u0000b", 7 }, desc.decode(desc.encode("a\u0000b", 7)));
+		assertArrayEquals(new Object[] { null, -7 }, desc.decode(desc.encode(null, -7)));
+	}
+
+	@Test
+	public void testBadFields() {
+
+		try {
+			encoder.encode("a", 1L);
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+		try {
+			encoder.encode(null, 1L, 1);
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+	}
+
+	@Test
+	public void testAsTreeKey() {
+
+		BTree<NormalizedKey,String> T = new BTree<NormalizedKey, String>(4);
+		for (int i = 0; i < 200; i++)
+			T.insert(encoder.encode("k" + (i % 10), (long) i, i % 7 == 0 ? null : i), "V" + i);
+
+		for (int i = 0; i < 200; i++)
+			assertEquals("V" + i, T.find(encoder.encode("k" + (i % 10), (long) i, i % 7 == 0 ? null : i)));
+
+		// the leaves come out in the order of the fields
+		Cursor<NormalizedKey,String> cursor = new Cursor<NormalizedKey,String>(T);
+		Object[] last = null;
+		while (cursor.hasNext())
+		{
+			Object[] t = encoder.decode(cursor.next().key);
+			if (last != null)
+				assertTrue(compareTuples(last, t) < 0);
+			last = t;
+		}
+	}
+}
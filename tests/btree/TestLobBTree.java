@@ -0,0 +1,341 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestLobBTree {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder( );
+
+	Path file;
+	LobBTree<Long> T;
+
+	@Before
+	public void setUp() throws Exception {
+		file = folder.getRoot().toPath().resolve("values.dat");
+		T = new LobBTree<Long>(file, 4, 512, 64);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		T.close();
+	}
+
+	private static byte[] value(long key, int length)
+	{
+		byte[] v = new byte[length];
+		new Random(key).nextBytes(v);
+		return v;
+	}
+
+	@Test
+	public void testInlineAndOverflow() throws Exception {
+
+		T.insert(new Long(1), value(1, 10));
+		T.insert(new Long(2), value(2, 64));
+		assertEquals(0, Files.size(file));
+
+		T.insert(new Long(3), value(3, 65));
+		T.insert(new Long(4), value(4, 2000));
+		assertEquals(1 + 4, T.pages.pageCount);
+
+		ValueRef small = T.tree.find(new Long(2));
+		ValueRef large = T.tree.find(new Long(4));
+		assertTrue(small.isInline());
+		assertFalse(large.isInline());
+		assertEquals(1, large.page);
+
+		assertArrayEquals(value(1, 10), T.find(new Long(1)));
+		assertArrayEquals(value(2, 64), T.find(new Long(2)));
+		assertArrayEquals(value(3, 65), T.find(new Long(3)));
+		assertArrayEquals(value(4, 2000), T.find(new Long(4)));
+		assertEquals(2000, T.valueLength(new Long(4)));
+	}
+
+	@Test
+	public void testManyValues() throws Exception {
+
+		Random rnd = new Random(29);
+		int[] lengths = new int[300];
+		for (int i = 0; i < lengths.length; i++)
+		{
+			lengths[i] = rnd.nextBoolean() ? rnd.nextInt(64) : rnd.nextInt(100000);
+			T.insert((long) i, value(i, lengths[i]));
+		}
+
+		for (int i = 0; i < lengths.length; i++)
+			assertArrayEquals(value(i, lengths[i]), T.find((long) i));
+
+		T.upsert(new Long(7), value(70, 5000));
+		assertArrayEquals(value(70, 5000), T.find(new Long(7)));
+
+		assertTrue(T.delete(new Long(8)));
+		assertFalse(T.containsKey(new Long(8)));
+	}
+
+	@Test
+	public void testKeysWithoutValues() throws Exception {
+
+		for (long i = 0; i < 50; i++)
+			T.insert(i, value(i, 1000));
+
+		// the keys are read from the leaves alone, even with the overflow file closed
+		T.pages.close();
+
+		Iterator<Long> keys = T.keys(new Long(45));
+		for (long i = 45; i < 50; i++)
+			assertEquals(i, (long) keys.next());
+		assertFalse(keys.hasNext());
+	}
+
+	@Test
+	public void testDuplicate() throws Exception {
+
+		T.insert(new Long(1), value(1, 1000));
+		long size = Files.size(file);
+		try {
+			T.insert(new Long(1), value(1, 1000));
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+		assertEquals(size, Files.size(file));
+	}
+
+	@Test
+	public void testPageReuse() throws Exception {
+
+		T.insert(new Long(1), value(1, 2000));	// pages 0-3
+		T.insert(new Long(2), value(2, 2000));	// pages 4-7
+		T.insert(new Long(3), value(3, 2000));	// pages 8-11
+
+		assertTrue(T.delete(new Long(2)));
+		assertEquals(4, T.pages.freeCount());
+
+		// a smaller value fits in the hole
+		T.insert(new Long(4), value(4, 1000));
+		assertEquals(4, T.tree.find(new Long(4)).page);
+		assertEquals(2, T.pages.freeCount());
+
+		// freeing the end of the file truncates it, along with the free pages before it
+		assertTrue(T.delete(new Long(3)));
+		assertEquals(6, T.pages.pageCount);
+		assertEquals(0, T.pages.freeCount());
+		assertEquals(6 * 512, Files.size(file));
+
+		// replacing a value frees its old pages
+		T.upsert(new Long(1), value(10, 10));
+		assertEquals(4, T.pages.freeCount());
+		assertArrayEquals(value(4, 1000), T.find(new Long(4)));
+	}
+
+	@Test
+	public void testCompact() throws Exception {
+
+		Random rnd = new Random(31);
+		TreeMap<Long,Integer> model = new TreeMap<Long,Integer>( );
+		for (int i = 0; i < 2000; i++)
+		{
+			long key = rnd.nextInt(300);
+			int length = rnd.nextInt(4000);
+			if (rnd.nextInt(3) == 0) {
+				assertEquals(model.containsKey(key), T.delete(key));
+				model.remove(key);
+			}
+			else {
+				T.upsert(key, value(key * 10000 + length, length));
+				model.put(key, length);
+			}
+		}
+
+		T.compact();
+
+		// the values are back-to-back, in key order, from the start of the file
+		long next = 0;
+		for (Long key : model.keySet())
+		{
+			int length = model.get(key);
+			assertArrayEquals(value(key * 10000 + length, length), T.find(key));
+
+			ValueRef ref = T.tree.find(key);
+			if (!ref.isInline()) {
+				assertEquals(next, ref.page);
+				next += T.pages.pagesFor(ref.length);
+			}
+		}
+		assertEquals(next, T.pages.pageCount);
+		assertEquals(0, T.pages.freeCount());
+	}
+
+	@Test
+	public void testCompactWithReaders() throws Exception {
+
+		for (long i = 0; i < 500; i++)
+			T.insert(i, value(i, 1000));
+		for (long i = 0; i < 500; i += 2)
+			T.delete(i);
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>( );
+		final AtomicBoolean stop = new AtomicBoolean( );
+		Thread[] readers = new Thread[4];
+		for (int t = 0; t < readers.length; t++)
+		{
+			final Random rnd = new Random(t);
+			readers[t] = new Thread() {
+				public void run() {
+					try {
+						while (!stop.get()) {
+							long key = 2 * rnd.nextInt(250) + 1;
+							assertArrayEquals(value(key, 1000), T.find(key));
+						}
+					}
+					catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			};
+			readers[t].start();
+		}
+
+		T.compact();
+		T.compact();
+
+		stop.set(true);
+		for (Thread reader : readers)
+			reader.join();
+
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		assertEquals(250 * 2, T.pages.pageCount);
+	}
+
+	@Test
+	public void testReadAhead() throws Exception {
+
+		for (long i = 0; i < 400; i++)
+			T.insert(i, value(i, (i % 3 == 0) ? 10 : 3000));
+
+		ReadAhead<Long> scan = T.values();
+		for (long i = 0; i < 400; i++)
+		{
+			assertTrue(scan.hasNext());
+			assertArrayEquals(value(i, (i % 3 == 0) ? 10 : 3000), scan.next());
+			assertEquals(i, (long) scan.key());
+			assertTrue((scan.depth >= 1) && (scan.depth <= ReadAhead.MAX_DEPTH));
+		}
+		assertFalse(scan.hasNext());
+		scan.close();
+
+		// only the values out of line are read ahead, and a finished scan wastes none
+		assertEquals(266, T.getPrefetchCount());
+		assertEquals(0, T.getPrefetchWasted());
+	}
+
+	@Test
+	public void testReadAheadAbandoned() throws Exception {
+
+		for (long i = 0; i < 100; i++)
+			T.insert(i, value(i, 3000));
+
+		ReadAhead<Long> scan = T.values(new Long(50));
+		assertArrayEquals(value(50, 3000), scan.next());
+		assertArrayEquals(value(51, 3000), scan.next());
+
+		// a slow caller shrinks the window back down, once the values are ready in time
+		Thread.sleep(100);
+		int depth = scan.depth;
+		for (int i = 0; i < depth; i++)
+			scan.next();
+		assertTrue(scan.depth < Math.max(2, depth));
+
+		int inFlight = scan.depth;
+		long before = T.getPrefetchWasted();
+		scan.close();
+		assertEquals(inFlight, T.getPrefetchWasted() - before);
+		assertFalse(scan.hasNext());
+	}
+
+	@Test
+	public void testAsync() throws Exception {
+
+		// many calls in flight at once, each waiting on its own I/O
+		List<CompletableFuture<Void>> inserts = new ArrayList<CompletableFuture<Void>>( );
+		for (long i = 0; i < 300; i++)
+			inserts.add(T.insertAsync(i, value(i, (int) (i * 7 % 1500))));
+		for (CompletableFuture<Void> f : inserts)
+			f.get();
+
+		List<CompletableFuture<byte[]>> finds = new ArrayList<CompletableFuture<byte[]>>( );
+		for (long i = 0; i < 300; i++)
+			finds.add(T.findAsync(i));
+		for (long i = 0; i < 300; i++)
+			assertArrayEquals(value(i, (int) (i * 7 % 1500)), finds.get((int) i).get());
+
+		// a failure comes back through the future
+		try {
+			T.findAsync(new Long(1000)).get();
+			fail("this should have failed");
+		}
+		catch(ExecutionException E)
+		{
+			assertTrue(E.getCause() instanceof RuntimeException);
+		}
+
+		// the scan is read a page at a time, each after the last key of the one before
+		Long after = null;
+		long next = 0;
+		List<Map.Entry<Long, byte[]>> page;
+		do {
+			page = T.scanAsync(after, 64).get();
+			for (Map.Entry<Long, byte[]> e : page)
+			{
+				assertEquals(new Long(next), e.getKey());
+				assertArrayEquals(value(next, (int) (next * 7 % 1500)), e.getValue());
+				next++;
+			}
+			if (!page.isEmpty())
+				after = page.get(page.size() - 1).getKey();
+		} while (page.size() == 64);
+		assertEquals(300, next);
+	}
+
+	@Test
+	public void testAsyncExecutor() throws Exception {
+
+		final AtomicInteger tasks = new AtomicInteger( );
+		T.setAsyncExecutor(new Executor() {
+			public void execute(Runnable r) {
+				tasks.incrementAndGet();
+				new Thread(r).start();
+			}
+		});
+
+		T.insertAsync(new Long(1), value(1, 1000)).get();
+		assertArrayEquals(value(1, 1000), T.findAsync(new Long(1)).get());
+		assertEquals(1, T.scanAsync(null, 10).get().size());
+		assertEquals(3, tasks.get());
+	}
+}
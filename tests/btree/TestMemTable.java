@@ -0,0 +1,92 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestMemTable {
+
+	@Test
+	public void testFindBeforeMerge() {
+
+		BTree<Long,String> T = new BTree<Long, String>(3);
+		T.insert(new Long(10), "Ten");
+		T.insert(new Long(20), "Twenty");
+
+		MemTable<Long,String> M = new MemTable<Long,String>(T, 1000, 1000, 0);
+		M.insert(new Long(30), "Thirty");
+		M.insert(new Long(10), "Not Ten");
+		M.upsert(new Long(20), "TWENTY");
+		M.delete(new Long(10));
+
+		// nothing has reached the tree yet
+		assertFalse(T.containsKey(new Long(30)));
+		assertEquals("Twenty", T.find(new Long(20)));
+
+		assertEquals("Thirty", M.find(new Long(30)));
+		assertEquals("TWENTY", M.find(new Long(20)));
+		try {
+			M.find(new Long(10));
+			fail("this should have failed");
+		}
+		catch(Throwable E)
+		{
+			;
+		}
+
+		M.flush();
+		assertEquals("Thirty", T.find(new Long(30)));
+		assertEquals("TWENTY", T.find(new Long(20)));
+		assertFalse(T.containsKey(new Long(10)));
+		M.close();
+	}
+
+	@Test
+	public void testInsertAfterDelete() {
+
+		BTree<Long,String> T = new BTree<Long, String>(3);
+		T.insert(new Long(10), "Ten");
+
+		MemTable<Long,String> M = new MemTable<Long,String>(T, 1000, 1000, 0);
+		M.delete(new Long(10));
+		M.insert(new Long(10), "TEN");
+		assertEquals("TEN", M.find(new Long(10)));
+
+		M.close();
+		assertEquals("TEN", T.find(new Long(10)));
+	}
+
+	@Test
+	public void testBackgroundMerge() throws Exception {
+
+		BTree<Long,String> T = new BTree<Long, String>(4);
+		final MemTable<Long,String> M = new MemTable<Long,String>(T, 50, 200, 10);
+
+		List<Thread> writers = new ArrayList<Thread>( );
+		for (int t = 0; t < 4; t++)
+		{
+			final long base = t * 10000;
+			Thread w = new Thread(new Runnable() {
+				public void run() {
+					for (long i = 0; i < 2000; i++) {
+						M.insert(base + i, "V" + (base + i));
+						assertEquals("V" + (base + i), M.find(base + i));
+					}
+				}
+			});
+			writers.add(w);
+			w.start();
+		}
+
+		for (Thread w : writers)
+			w.join();
+
+		M.close();
+		for (int t = 0; t < 4; t++)
+			for (long i = 0; i < 2000; i++)
+				assertEquals("V" + (t * 10000 + i), T.find(t * 10000 + i));
+	}
+}
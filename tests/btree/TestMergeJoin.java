@@ -0,0 +1,158 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class TestMergeJoin {
+
+	// a key that counts the comparisons made between keys
+	static class Counted implements Comparable<Counted> {
+		static long compares = 0;
+		final long n;
+		Counted(long n) { this.n = n; }
+		public int compareTo(Counted o) { compares++; return Long.compare(n, o.n); }
+		public String toString() { return Long.toString(n); }
+	}
+
+	private void assertPairs(Map<Long,String> expected, Iterator<Map.Entry<Long,String>> I)
+	{
+		for (Map.Entry<Long,String> e : expected.entrySet())
+		{
+			assertTrue(I.hasNext());
+			Map.Entry<Long,String> p = I.next();
+			assertEquals(e.getKey(), p.getKey());
+			assertEquals(e.getValue(), p.getValue());
+		}
+		assertFalse(I.hasNext());
+		try {
+			I.next();
+			fail("this should have failed");
+		} catch(RuntimeException E) { ; }
+	}
+
+	@Test
+	public void testRandom() {
+
+		Random rnd = new Random(50);
+		for (int round = 0; round < 40; round++)
+		{
+			// trees of different sizes and degrees, over ranges that overlap by varying amounts
+			int degree = 2 + rnd.nextInt(10);
+			BTree<Long,String> A = new BTree<Long, String>(degree);
+			BTree<Long,String> B = new BTree<Long, String>(degree + 1, degree);
+			TreeMap<Long,String> a = new TreeMap<Long,String>( );
+			TreeMap<Long,String> b = new TreeMap<Long,String>( );
+
+			int na = rnd.nextInt(round < 5 ? 3 : 2000), nb = rnd.nextInt(round < 5 ? 3 : 2000);
+			int spread = 1 + rnd.nextInt(5000), offset = rnd.nextInt(5000);
+			for (int i = 0; i < na; i++)
+			{
+				long key = rnd.nextInt(spread);
+				if (!a.containsKey(key)) {
+					A.insert(key, "A" + key);
+					a.put(key, "A" + key);
+				}
+			}
+			for (int i = 0; i < nb; i++)
+			{
+				long key = offset + rnd.nextInt(spread);
+				if (!b.containsKey(key)) {
+					B.insert(key, "B" + key);
+					b.put(key, "B" + key);
+				}
+			}
+
+			TreeMap<Long,String> both = new TreeMap<Long,String>(a);
+			both.keySet().retainAll(b.keySet());
+			assertPairs(both, MergeJoin.intersect(A, B));
+
+			TreeMap<Long,String> only = new TreeMap<Long,String>(a);
+			only.keySet().removeAll(b.keySet());
+			assertPairs(only, MergeJoin.difference(A, B));
+
+			TreeMap<Long,String> all = new TreeMap<Long,String>(b);
+			all.putAll(a);
+			assertPairs(all, MergeJoin.union(A, B));
+
+			Iterator<MergeJoin.Row<Long,String,String>> J = MergeJoin.join(A, B);
+			for (Long key : both.keySet())
+			{
+				MergeJoin.Row<Long,String,String> row = J.next();
+				assertEquals(key, row.getKey());
+				assertEquals("A" + key, row.getLeft());
+				assertEquals("B" + key, row.getRight());
+			}
+			assertFalse(J.hasNext());
+		}
+	}
+
+	@Test
+	public void testJoinTypes() {
+
+		BTree<String,Integer> users = new BTree<String, Integer>(3);
+		BTree<String,String> plans = new BTree<String, String>(3);
+		users.insert("ann", 1);
+		users.insert("bob", 2);
+		users.insert("cat", 3);
+		plans.insert("bob", "gold");
+		plans.insert("cat", "free");
+		plans.insert("dan", "gold");
+
+		Iterator<MergeJoin.Row<String,Integer,String>> J = MergeJoin.join(users, plans);
+		assertEquals("bob->(2, gold)", J.next().toString());
+		assertEquals("cat->(3, free)", J.next().toString());
+		assertFalse(J.hasNext());
+
+		Iterator<Map.Entry<String,Integer>> D = MergeJoin.difference(users, plans);
+		assertEquals("ann", D.next().getKey());
+		assertFalse(D.hasNext());
+
+		// an empty tree on either side
+		assertFalse(MergeJoin.intersect(users, new BTree<String,String>(3)).hasNext());
+		assertFalse(MergeJoin.join(new BTree<String,Integer>(3), plans).hasNext());
+		assertEquals(3, count(MergeJoin.difference(users, new BTree<String,String>(3))));
+		assertEquals(3, count(MergeJoin.union(new BTree<String,Integer>(3), users)));
+	}
+
+	private int count(Iterator<?> I)
+	{
+		int n = 0;
+		for (; I.hasNext(); I.next())
+			n++;
+		return n;
+	}
+
+	@Test
+	public void testSkipAhead() {
+
+		BTree<Counted,String> large = new BTree<Counted, String>(16);
+		BTree<Counted,String> small = new BTree<Counted, String>(16);
+		for (long i = 0; i < 100000; i++)
+			large.insert(new Counted(i), "L");
+		for (long i = 0; i < 10; i++)
+			small.insert(new Counted(i * 10000 + 4), "S");
+
+		// the large tree is sought for each key of the small one, not scanned
+		Counted.compares = 0;
+		assertEquals(10, count(MergeJoin.intersect(large, small)));
+		assertTrue("made " + Counted.compares + " comparisons", Counted.compares < 10000);
+
+		Counted.compares = 0;
+		assertEquals(10, count(MergeJoin.join(small, large)));
+		assertTrue("made " + Counted.compares + " comparisons", Counted.compares < 10000);
+
+		// keys that interleave closely are merged a leaf at a time
+		BTree<Counted,String> odd = new BTree<Counted, String>(16);
+		for (long i = 1; i < 100000; i += 2)
+			odd.insert(new Counted(i), "O");
+		assertEquals(0, count(MergeJoin.intersect(odd, small)));
+		assertEquals(50000, count(MergeJoin.difference(odd, small)));
+		assertEquals(50010, count(MergeJoin.union(odd, small)));
+	}
+}
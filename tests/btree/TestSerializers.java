@@ -0,0 +1,108 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class TestSerializers {
+
+	private static <T> T roundTrip(Serializer<T> s, T value)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(s.sizeOf(value));
+		s.write(buf, value);
+		assertFalse(buf.hasRemaining());
+		buf.flip();
+		return s.read(buf);
+	}
+
+	@Test
+	public void testRoundTrip() {
+
+		assertEquals(new Long(-1234567890123L), roundTrip(Serializers.LONG, -1234567890123L));
+		assertEquals(new Integer(-42), roundTrip(Serializers.INTEGER, -42));
+		assertEquals(new Double(-0.5), roundTrip(Serializers.DOUBLE, -0.5));
+
+		UUID id = UUID.randomUUID();
+		assertEquals(id, roundTrip(Serializers.UUID, id));
+
+		assertEquals("", roundTrip(Serializers.STRING, ""));
+		assertEquals("caf\u00e9 \u6f22 \ud83d\ude00", roundTrip(Serializers.STRING, "caf\u00e9 \u6f22 \ud83d\ude00"));
+		assertEquals(4 + 5, Serializers.STRING.sizeOf("hello"));
+
+		byte[] bytes = { 1, 2, 3, -1 };
+		assertArrayEquals(bytes, roundTrip(Serializers.BYTES, bytes));
+	}
+
+	@Test
+	public void testUtf8Length() {
+
+		String[] samples = { "abc", "\u00e9\u00e8", "\u6f22\u5b57", "\ud83d\ude00", "x\ud800y", "\udc00" };
+		for (String s : samples)
+			assertEquals(s, s.getBytes(java.nio.charset.StandardCharsets.UTF_8).length, Serializers.utf8Length(s));
+	}
+
+	@Test
+	public void testCompareAt() {
+
+		Random rnd = new Random(30);
+		ByteBuffer buf = ByteBuffer.allocate(32);
+		for (int i = 0; i < 1000; i++)
+		{
+			long a = rnd.nextLong(), b = (i % 10 == 0) ? a : rnd.nextLong();
+			buf.clear();
+			Serializers.LONG.write(buf, a);
+			assertEquals(Long.signum(Long.compare(a, b)), Long.signum(Serializers.LONG.compareAt(buf, 0, b)));
+
+			double x = rnd.nextGaussian(), y = rnd.nextGaussian();
+			Serializers.DOUBLE.write(buf, x);
+			assertEquals(Integer.signum(Double.compare(x, y)), Integer.signum(Serializers.DOUBLE.compareAt(buf, 8, y)));
+
+			UUID u = new UUID(rnd.nextLong(), rnd.nextLong()), v = new UUID(u.getMostSignificantBits(), rnd.nextLong());
+			Serializers.UUID.write(buf, u);
+			assertEquals(Integer.signum(u.compareTo(v)), Integer.signum(Serializers.UUID.compareAt(buf, 16, v)));
+		}
+	}
+
+	@Test
+	public void testLeafPage() {
+
+		List<Entry<Long,String>> entries = new ArrayList<Entry<Long,String>>( );
+		for (long i = 0; i < 100; i++)
+			entries.add(new Entry<Long,String>(i * 2, "V" + i));
+
+		// write the page part-way into a buffer, to check the offsets are page-relative
+		int size = LeafPage.sizeOf(entries, Serializers.LONG, Serializers.STRING);
+		ByteBuffer buf = ByteBuffer.allocate(size + 10);
+		buf.position(10);
+		LeafPage.write(buf, entries, Serializers.LONG, Serializers.STRING);
+		assertFalse(buf.hasRemaining());
+
+		assertEquals(100, LeafPage.count(buf, 10));
+		assertEquals(0, LeafPage.search(buf, 10, Serializers.LONG, new Long(0)));
+		assertEquals(37, LeafPage.search(buf, 10, Serializers.LONG, new Long(74)));
+		assertEquals(-38 - 1, LeafPage.search(buf, 10, Serializers.LONG, new Long(75)));
+		assertEquals(-100 - 1, LeafPage.search(buf, 10, Serializers.LONG, new Long(1000)));
+
+		assertEquals("V37", LeafPage.find(buf, 10, Serializers.LONG, Serializers.STRING, new Long(74)));
+		assertNull(LeafPage.find(buf, 10, Serializers.LONG, Serializers.STRING, new Long(75)));
+		assertEquals(new Long(198), LeafPage.keyAt(buf, 10, Serializers.LONG, 99));
+
+		// variable-width keys are searched through the offset table
+		List<Entry<String,Long>> names = new ArrayList<Entry<String,Long>>( );
+		for (String s : Arrays.asList("ant", "bee", "cat", "dog", "eel"))
+			names.add(new Entry<String,Long>(s, (long) s.length()));
+
+		ByteBuffer page = ByteBuffer.allocate(LeafPage.sizeOf(names, Serializers.STRING, Serializers.LONG));
+		LeafPage.write(page, names, Serializers.STRING, Serializers.LONG);
+		assertEquals(3, LeafPage.search(page, 0, Serializers.STRING, "dog"));
+		assertEquals(-3 - 1, LeafPage.search(page, 0, Serializers.STRING, "cow"));
+		assertEquals(new Long(3), LeafPage.find(page, 0, Serializers.STRING, Serializers.LONG, "eel"));
+	}
+}
@@ -0,0 +1,266 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TestShardedBTree {
+
+	@Test
+	public void testRandom() {
+
+		ShardedBTree<Integer,String> T = new ShardedBTree<Integer,String>(4, 8, Arrays.asList(250, 500, 750));
+		TreeMap<Integer,String> model = new TreeMap<Integer,String>( );
+		Random R = new Random(46);
+
+		for (int n = 0; n < 20000; n++)
+		{
+			int key = R.nextInt(1000);
+			switch (R.nextInt(4))
+			{
+			case 0:
+				assertEquals(model.put(key, "U" + n) != null, T.upsert(key, "U" + n));
+				break;
+			case 1:
+				assertEquals(model.remove(key) != null, T.delete(key));
+				break;
+			case 2:
+				if (!model.containsKey(key)) {
+					T.insert(key, "I" + n);
+					model.put(key, "I" + n);
+				}
+				break;
+			default:
+				assertEquals(model.containsKey(key), T.containsKey(key));
+				if (model.containsKey(key))
+					assertEquals(model.get(key), T.find(key));
+			}
+		}
+		assertEquals(model.size(), T.size());
+		assertEquals(4, T.getShardCount());
+	}
+
+	@Test
+	public void testBoundaries() {
+
+		try {
+			new ShardedBTree<Integer,String>(4, 8, Arrays.asList(10, 10));
+			fail("this should have failed");
+		} catch(RuntimeException E) { ; }
+
+		try {
+			new ShardedBTree<Integer,String>(4, 2, Arrays.asList(10, 20));
+			fail("this should have failed");
+		} catch(RuntimeException E) { ; }
+
+		ShardedBTree<Integer,String> T = new ShardedBTree<Integer,String>(4, 8, Arrays.asList(10, 20));
+		try {
+			T.find(5);
+			fail("this should have failed");
+		} catch(RuntimeException E) { ; }
+	}
+
+	@Test
+	public void testRange() {
+
+		ShardedBTree<Integer,String> T = new ShardedBTree<Integer,String>(3, 8, Arrays.asList(100, 200, 300));
+		for (int i = 0; i < 400; i += 2)
+			T.insert(i, "V" + i);
+
+		assertRange(T, null, null, 0, 400);
+		assertRange(T, 51, 251, 52, 252);
+		assertRange(T, 100, 200, 100, 200);
+		assertRange(T, 150, 151, 150, 152);
+		assertRange(T, 151, 152, 0, 0);
+		assertRange(T, 390, null, 390, 400);
+		assertRange(T, null, 7, 0, 8);
+
+		// a shard left empty is skipped
+		for (int i = 100; i < 200; i += 2)
+			T.delete(i);
+		Iterator<Map.Entry<Integer,String>> I = T.range(90, 210);
+		for (int i : new int[] { 90, 92, 94, 96, 98, 200, 202, 204, 206, 208 })
+			assertEquals(i, (int) I.next().getKey());
+		assertFalse(I.hasNext());
+
+		// a scan of a large shard is copied in batches, and sees the changes made
+		// to the pairs it has not reached yet
+		T = new ShardedBTree<Integer,String>(3);
+		for (int i = 0; i < 10 * ShardedBTree.RANGE_BATCH; i += 2)
+			T.insert(i, "V" + i);
+		assertRange(T, null, null, 0, 10 * ShardedBTree.RANGE_BATCH);
+		assertRange(T, 3, 2 * ShardedBTree.RANGE_BATCH + 1, 4, 2 * ShardedBTree.RANGE_BATCH + 2);
+
+		I = T.range(null, null);
+		for (int i = 0; i < ShardedBTree.RANGE_BATCH; i++)
+			assertEquals(2 * i, (int) I.next().getKey());
+		T.delete(2 * ShardedBTree.RANGE_BATCH);
+		T.insert(2 * ShardedBTree.RANGE_BATCH + 1, "late");
+		assertEquals(2 * ShardedBTree.RANGE_BATCH + 1, (int) I.next().getKey());
+		assertEquals(2 * ShardedBTree.RANGE_BATCH + 2, (int) I.next().getKey());
+	}
+
+	private void assertRange(ShardedBTree<Integer,String> T, Integer from, Integer to, int first, int end)
+	{
+		Iterator<Map.Entry<Integer,String>> I = T.range(from, to);
+		for (int i = first; i < end; i += 2)
+		{
+			assertTrue(I.hasNext());
+			Map.Entry<Integer,String> E = I.next();
+			assertEquals(i, (int) E.getKey());
+			assertEquals("V" + i, E.getValue());
+		}
+		assertFalse(I.hasNext());
+	}
+
+	@Test
+	public void testSplitHotShard() {
+
+		ShardedBTree<Integer,String> T = new ShardedBTree<Integer,String>(8);
+		for (int i = 0; i < 10000; i++)
+			T.insert(i, "V" + i);
+		assertEquals(1, T.getShardCount());
+
+		// a single shard is split once it is busy, though it has no other shard to compare with
+		for (int n = 0; n < 2 * ShardedBTree.REBALANCE_OPS; n++)
+			T.find(n % 10000);
+		assertTrue(T.getShardCount() > 1);
+		assertEquals(10000, T.size());
+		assertRangeAll(T, 10000);
+
+		T = new ShardedBTree<Integer,String>(8, 8, Arrays.asList(5000));
+		for (int i = 0; i < 10000; i++)
+			T.insert(i, "V" + i);
+		T.rebalance();
+
+		// all of the load goes to the keys above 5000
+		for (int n = 0; n < 4 * ShardedBTree.REBALANCE_OPS; n++)
+			T.find(5000 + (n % 5000));
+
+		assertTrue(T.getShardCount() > 2);
+		assertTrue(T.getShardCount() <= 8);
+		assertTrue(T.shards[T.shards.length - 2].low >= 5000);
+		for (int i = 1; i < T.shards.length; i++)
+			assertTrue(T.shards[i - 1].tree.size() > 0);
+		assertEquals(10000, T.size());
+		assertRangeAll(T, 10000);
+
+		// the shards keep working after they have been split
+		for (int i = 0; i < 10000; i += 3)
+			assertTrue(T.delete(i));
+		for (int i = 0; i < 10000; i++)
+			assertEquals(i % 3 != 0, T.containsKey(i));
+	}
+
+	@Test
+	public void testUniformLoad() {
+
+		ShardedBTree<Integer,String> T = new ShardedBTree<Integer,String>(8, 16, Arrays.asList(250, 500, 750));
+		for (int i = 0; i < 1000; i++)
+			T.insert(i, "V" + i);
+
+		// a load spread evenly over the shards is no reason to split any of them
+		for (int n = 0; n < 8 * ShardedBTree.REBALANCE_OPS; n++)
+			T.find(n % 1000);
+		T.rebalance();
+		assertEquals(4, T.getShardCount());
+		assertRangeAll(T, 1000);
+	}
+
+	@Test
+	public void testMergeColdShards() {
+
+		ShardedBTree<Integer,String> T = new ShardedBTree<Integer,String>(8, 8, Arrays.asList(100, 200, 300, 400));
+		for (int i = 0; i < 500; i++)
+			T.insert(i, "V" + i);
+		T.rebalance();
+
+		// only the last shard is used, so it is split, and the first two shards are merged
+		for (int n = 0; n < 1000; n++)
+			T.find(400 + (n % 100));
+		T.rebalance();
+		assertEquals(5, T.getShardCount());
+		assertNull(T.shards[0].low);
+		assertEquals(200, (int) T.shards[1].low);
+		assertEquals(450, (int) T.shards[4].low);
+		assertEquals(500, T.size());
+		assertRangeAll(T, 500);
+	}
+
+	private void assertRangeAll(ShardedBTree<Integer,String> T, int size)
+	{
+		Iterator<Map.Entry<Integer,String>> I = T.range(null, null);
+		for (int i = 0; i < size; i++)
+			assertEquals(i, (int) I.next().getKey());
+		assertFalse(I.hasNext());
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+
+		final ShardedBTree<Integer,String> T = new ShardedBTree<Integer,String>(6, 16, new ArrayList<Integer>( ));
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>( );
+		final int threads = 4, each = 50000;
+
+		// each thread owns the keys equal to its number modulo the threads, and the
+		// early threads are kept busier, so the load is uneven and shards are split
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++)
+		{
+			final int me = t;
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						Random R = new Random(me);
+						int range = 20000 >> me;
+						for (int n = 0; n < each; n++)
+						{
+							int key = R.nextInt(range) * threads + me;
+							if (R.nextBoolean()) {
+								T.upsert(key, "V" + key);
+								assertEquals("V" + key, T.find(key));
+							}
+							else {
+								T.delete(key);
+								assertFalse(T.containsKey(key));
+							}
+						}
+					}
+					catch (Throwable E) {
+						failure.compareAndSet(null, E);
+					}
+				}
+			});
+			workers[t].start();
+		}
+
+		// a reader scans the whole tree while the writers run
+		for (int n = 0; n < 20; n++)
+		{
+			Integer last = null;
+			Iterator<Map.Entry<Integer,String>> I = T.range(null, null);
+			while (I.hasNext())
+			{
+				Map.Entry<Integer,String> E = I.next();
+				if (last != null)
+					assertTrue(last < E.getKey());
+				assertEquals("V" + E.getKey(), E.getValue());
+				last = E.getKey();
+			}
+		}
+
+		for (Thread worker : workers)
+			worker.join();
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		assertTrue(T.getShardCount() > 1);
+	}
+}
@@ -0,0 +1,213 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSnapshot {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder( );
+
+	@Test
+	public void testRoundTrip() throws Exception {
+
+		Random rnd = new Random(28);
+		BTree<Long,String> T = new BTree<Long, String>(5);
+		TreeMap<Long,String> model = new TreeMap<Long,String>( );
+		for (int i = 0; i < 10000; i++)
+		{
+			long key = rnd.nextInt(1000000);
+			if (!model.containsKey(key)) {
+				T.insert(key, "V" + key);
+				model.put(key, "V" + key);
+			}
+		}
+
+		Path file = folder.getRoot().toPath().resolve("tree.snap");
+		T.checkpoint(file);
+
+		BTree<Long,String> R = BTree.restore(file);
+		assertEquals(5, R.maxEntries);
+
+		// the leaf level comes back in the same order
+		Cursor<Long,String> cursor = new Cursor<Long,String>(R);
+		for (Long key : model.keySet())
+		{
+			assertTrue(cursor.hasNext());
+			Entry<Long,String> e = cursor.next();
+			assertEquals(key, e.key);
+			assertEquals(model.get(key), e.value);
+		}
+		assertFalse(cursor.hasNext());
+
+		// and the restored tree is a normal, working tree
+		for (Long key : model.keySet())
+			assertEquals(model.get(key), R.find(key));
+
+		R.insert(new Long(-1), "Minus One");
+		assertEquals("Minus One", R.find(new Long(-1)));
+		for (Long key : model.keySet())
+			assertTrue(R.delete(key));
+		R.delete(new Long(-1));
+		assertNull(R.root);
+	}
+
+	@Test
+	public void testPagedRoundTrip() throws Exception {
+
+		BTree<Long,String> T = new BTree<Long, String>(4);
+		for (long i = 0; i < 5000; i++)
+			T.insert(i * 3, "V" + i);
+
+		Path file = folder.getRoot().toPath().resolve("tree.pages");
+		T.checkpoint(file, Serializers.LONG, Serializers.STRING);
+
+		BTree<Long,String> R = BTree.restore(file, Serializers.LONG, Serializers.STRING);
+		assertEquals(4, R.maxEntries);
+		for (long i = 0; i < 5000; i++)
+			assertEquals("V" + i, R.find(i * 3));
+		assertFalse(R.containsKey(new Long(1)));
+
+		// a paged snapshot needs the serializers, and a plain one cannot be mapped
+		try {
+			BTree.restore(file);
+			fail("this should have failed");
+		}
+		catch(java.io.IOException E)
+		{
+			;
+		}
+
+		T.checkpoint(file);
+		try {
+			BTree.restore(file, Serializers.LONG, Serializers.STRING);
+			fail("this should have failed");
+		}
+		catch(java.io.IOException E)
+		{
+			;
+		}
+	}
+
+	@Test
+	public void testSeparateDegrees() throws Exception {
+
+		BTree<Long,String> T = new BTree<Long, String>(8, 3);
+		for (long i = 0; i < 1000; i++)
+			T.insert(i, "V" + i);
+
+		Path file = folder.getRoot().toPath().resolve("degrees.snap");
+		T.checkpoint(file);
+		BTree<Long,String> R = BTree.restore(file);
+		assertEquals(8, R.maxInnerEntries);
+		assertEquals(3, R.maxEntries);
+		assertEquals(8, ((InnerNode<Long,String>) R.root).maxEntries);
+
+		T.checkpoint(file, Serializers.LONG, Serializers.STRING);
+		R = BTree.restore(file, Serializers.LONG, Serializers.STRING);
+		assertEquals(8, R.maxInnerEntries);
+		assertEquals(3, R.maxEntries);
+		assertEquals("V999", R.find(new Long(999)));
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+
+		BTree<Long,String> T = new BTree<Long, String>(3);
+		T.clock = Clock.fixed(Instant.ofEpochMilli(1000), ZoneOffset.UTC);
+
+		// whole leaves of pairs that expire, among pairs that expire later, or never
+		for (long i = 0; i < 300; i++)
+		{
+			if (i < 100) T.insert(i, "V" + i, 1, TimeUnit.SECONDS);
+			else if (i < 200) T.insert(i, "V" + i, 1, TimeUnit.HOURS);
+			else T.insert(i, "V" + i);
+		}
+
+		Path file = folder.getRoot().toPath().resolve("expiry.snap");
+		T.clock = Clock.fixed(Instant.ofEpochMilli(5000), ZoneOffset.UTC);
+		for (int format = 0; format < 2; format++)
+		{
+			BTree<Long,String> R;
+			if (format == 0) {
+				T.checkpoint(file);
+				R = BTree.restore(file);
+			}
+			else {
+				T.checkpoint(file, Serializers.LONG, Serializers.STRING);
+				R = BTree.restore(file, Serializers.LONG, Serializers.STRING);
+			}
+
+			// the expired pairs are left out, and the rest expire when they would have
+			R.clock = Clock.fixed(Instant.ofEpochMilli(5000), ZoneOffset.UTC);
+			assertEquals(200, R.size());
+			assertFalse(R.containsKey(new Long(1)));
+			for (long i = 100; i < 300; i++)
+				assertEquals("V" + i, R.find(i));
+
+			R.clock = Clock.fixed(Instant.ofEpochMilli(1000 + TimeUnit.HOURS.toMillis(1)), ZoneOffset.UTC);
+			assertFalse(R.containsKey(new Long(100)));
+			assertEquals("V200", R.find(new Long(200)));
+		}
+	}
+
+	@Test
+	public void testEmptyAndSingle() throws Exception {
+
+		Path file = folder.getRoot().toPath().resolve("empty.snap");
+		BTree<Long,String> T = new BTree<Long, String>(3);
+		T.checkpoint(file);
+		assertNull(BTree.restore(file).root);
+
+		T.insert(new Long(10), "Ten");
+		T.checkpoint(file);
+		BTree<Long,String> R = BTree.restore(file);
+		assertTrue(R.root instanceof LeafNode);
+		assertEquals("Ten", R.find(new Long(10)));
+	}
+
+	@Test
+	public void testShape() {
+
+		// 10 full leaves of 3 entries, never leaving a lone child for the last parent
+		BulkLoader<Long,String> loader = new BulkLoader<Long,String>(3);
+		for (long i = 0; i < 30; i++)
+			loader.add(i, "V" + i);
+
+		InnerNode<Long,String> root = (InnerNode<Long,String>) loader.finish();
+		assertEquals(3, root.children.size());
+		assertEquals(4, ((InnerNode<Long,String>) root.children.get(0)).children.size());
+		assertEquals(4, ((InnerNode<Long,String>) root.children.get(1)).children.size());
+		assertEquals(2, ((InnerNode<Long,String>) root.children.get(2)).children.size());
+		assertEquals(12, (long) root.keys.get(0));
+		assertEquals(24, (long) root.keys.get(1));
+	}
+
+	@Test
+	public void testNotASnapshot() throws Exception {
+
+		File file = folder.newFile("junk.snap");
+		Files.write(file.toPath(), new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+		try {
+			BTree.restore(file.toPath());
+			fail("this should have failed");
+		}
+		catch(java.io.IOException E)
+		{
+			;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestVersionedBTree {
+
+	VersionedBTree<Long,Long> T;
+
+	@Before
+	public void setUp() throws Exception {
+		T = new VersionedBTree<Long,Long>(4);
+	}
+
+	@Test
+	public void testSnapshotIsolation() {
+
+		Transaction<Long,Long> setup = T.begin();
+		setup.insert(new Long(1), new Long(100));
+		setup.insert(new Long(2), new Long(200));
+		assertTrue(setup.commit());
+
+		Transaction<Long,Long> reader = T.begin();
+		Transaction<Long,Long> writer = T.begin();
+		writer.upsert(new Long(1), new Long(101));
+		assertTrue(writer.delete(new Long(2)));
+		writer.insert(new Long(3), new Long(300));
+
+		// the writes are private until the commit
+		assertEquals(101, (long) writer.find(new Long(1)));
+		assertFalse(writer.containsKey(new Long(2)));
+		assertEquals(100, (long) reader.find(new Long(1)));
+		assertTrue(writer.commit());
+
+		// and the reader keeps its snapshot after it
+		assertEquals(100, (long) reader.find(new Long(1)));
+		assertEquals(200, (long) reader.find(new Long(2)));
+		assertFalse(reader.containsKey(new Long(3)));
+		assertTrue(reader.commit());
+
+		Transaction<Long,Long> after = T.begin();
+		assertEquals(101, (long) after.find(new Long(1)));
+		assertFalse(after.containsKey(new Long(2)));
+		assertEquals(300, (long) after.find(new Long(3)));
+		after.abort();
+	}
+
+	@Test
+	public void testWriteConflict() {
+
+		Transaction<Long,Long> setup = T.begin();
+		setup.insert(new Long(1), new Long(0));
+		assertTrue(setup.commit());
+
+		Transaction<Long,Long> a = T.begin();
+		Transaction<Long,Long> b = T.begin();
+		a.upsert(new Long(1), new Long(10));
+		b.upsert(new Long(1), new Long(20));
+		b.upsert(new Long(2), new Long(20));
+		assertTrue(a.commit());
+		assertFalse(b.commit());
+
+		// none of the writes of the loser are made
+		Transaction<Long,Long> check = T.begin();
+		assertEquals(10, (long) check.find(new Long(1)));
+		assertFalse(check.containsKey(new Long(2)));
+
+		// disjoint writes do not conflict
+		Transaction<Long,Long> c = T.begin();
+		c.upsert(new Long(3), new Long(30));
+		check.upsert(new Long(4), new Long(40));
+		assertTrue(c.commit());
+		assertTrue(check.commit());
+
+		try {
+			check.find(new Long(1));
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+	}
+
+	@Test
+	public void testAbort() {
+
+		Transaction<Long,Long> a = T.begin();
+		a.insert(new Long(1), new Long(1));
+		a.abort();
+
+		Transaction<Long,Long> b = T.begin();
+		assertFalse(b.containsKey(new Long(1)));
+		try {
+			b.insert(new Long(2), new Long(2));
+			b.insert(new Long(2), new Long(2));
+			fail("this should have failed");
+		}
+		catch(RuntimeException E)
+		{
+			;
+		}
+		b.abort();
+	}
+
+	@Test
+	public void testVacuum() {
+
+		for (long i = 0; i < 5; i++)
+		{
+			Transaction<Long,Long> t = T.begin();
+			t.upsert(new Long(1), i);
+			t.upsert(new Long(2), i);
+			assertTrue(t.commit());
+		}
+
+		// a running transaction holds on to the versions it can see
+		Transaction<Long,Long> old = T.begin();
+		Transaction<Long,Long> t = T.begin();
+		t.upsert(new Long(1), new Long(5));
+		t.delete(new Long(2));
+		assertTrue(t.commit());
+
+		T.vacuum();
+		assertEquals(4, (long) old.find(new Long(1)));
+		assertEquals(4, (long) old.find(new Long(2)));
+		assertNotNull(T.tree.find(new Long(2)).older);
+
+		// once it finishes, they go, along with the deleted key
+		old.abort();
+		assertEquals(3, T.vacuum());
+		assertNull(T.tree.find(new Long(1)).older);
+		assertFalse(T.tree.containsKey(new Long(2)));
+	}
+
+	@Test
+	public void testTransfers() throws Exception {
+
+		// move amounts between accounts, while readers check the total never changes
+		final int accounts = 50;
+		Transaction<Long,Long> setup = T.begin();
+		for (long i = 0; i < accounts; i++)
+			setup.insert(i, new Long(1000));
+		assertTrue(setup.commit());
+
+		final AtomicBoolean stop = new AtomicBoolean( );
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>( );
+		Thread[] threads = new Thread[6];
+		for (int n = 0; n < threads.length; n++)
+		{
+			final boolean writer = (n % 2 == 0);
+			final Random rnd = new Random(n);
+			threads[n] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; (i < 2000) && !stop.get(); i++)
+						{
+							Transaction<Long,Long> t = T.begin();
+							if (writer) {
+								long from = rnd.nextInt(accounts), to = rnd.nextInt(accounts);
+								long amount = rnd.nextInt(10);
+								if (from != to) {
+									t.upsert(from, t.find(from) - amount);
+									t.upsert(to, t.find(to) + amount);
+								}
+								t.commit();
+								if (i % 100 == 0)
+									T.vacuum();
+							}
+							else {
+								long total = 0;
+								for (long k = 0; k < accounts; k++)
+									total += t.find(k);
+								t.abort();
+								assertEquals(accounts * 1000, total);
+							}
+						}
+					}
+					catch (Throwable e) {
+						failure.set(e);
+						stop.set(true);
+					}
+				}
+			};
+			threads[n].start();
+		}
+
+		for (Thread thread : threads)
+			thread.join();
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+
+		T.vacuum();
+		Transaction<Long,Long> t = T.begin();
+		long total = 0;
+		for (long k = 0; k < accounts; k++) {
+			total += t.find(k);
+			assertNull(T.tree.find(k).older);
+		}
+		assertEquals(accounts * 1000, total);
+		t.abort();
+	}
+}
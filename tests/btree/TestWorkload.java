@@ -0,0 +1,165 @@
+package btree;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestWorkload {
+
+	@Test
+	public void testHistogram() {
+
+		LatencyHistogram H = new LatencyHistogram( );
+		assertEquals(0, H.getPercentile(99));
+
+		// every bucket holds the latencies it stands for
+		for (long v : new long[] { 0, 1, 127, 128, 129, 255, 256, 1000, 123456789, Long.MAX_VALUE })
+		{
+			long w = LatencyHistogram.valueOf(LatencyHistogram.bucketOf(v));
+			assertTrue(Math.abs(w - v) <= v / 64.0);
+		}
+
+		for (long v = 1; v <= 100000; v++)
+			H.record(v * 1000);
+		assertEquals(100000, H.getCount());
+		assertEquals(1000, H.getMin());
+		assertEquals(100000000, H.getMax());
+		assertEquals(50000500.0, H.getMean(), 1);
+		for (double p : new double[] { 1, 50, 90, 99, 99.9, 100 })
+			assertEquals(p * 1000000, H.getPercentile(p), p * 1000000 / 64);
+
+		LatencyHistogram G = new LatencyHistogram( );
+		G.record(5);
+		G.add(H);
+		assertEquals(100001, G.getCount());
+		assertEquals(5, G.getMin());
+		assertEquals(5, G.getPercentile(0));
+
+		try {
+			H.getPercentile(101);
+			fail("this should have failed");
+		} catch(RuntimeException E) { ; }
+	}
+
+	@Test
+	public void testKeyChoosers() {
+
+		Random rnd = new Random(48);
+		int n = 1000, draws = 100000;
+		for (String name : new String[] { "uniform", "sequential", "zipfian", "latest" })
+		{
+			KeyChooser K = KeyChooser.forName(name);
+			assertEquals(name, K.toString());
+			int[] counts = new int[n];
+			for (int i = 0; i < draws; i++)
+			{
+				long k = K.next(rnd, n);
+				assertTrue((k >= 0) && (k < n));
+				counts[(int) k]++;
+			}
+
+			if (name.equals("uniform") || name.equals("sequential")) {
+				for (int c : counts)
+					assertEquals(draws / n, c, (name.equals("uniform") ? draws / n / 2 : 0));
+			}
+			else {
+				// the hottest key takes far more than its share, and the top tenth most of them
+				int hot = name.equals("zipfian") ? 0 : n - 1;
+				int top = 0;
+				for (int i = 0; i < n / 10; i++)
+					top += counts[name.equals("zipfian") ? i : n - 1 - i];
+				assertTrue(counts[hot] > 50 * draws / n);
+				assertTrue(top > draws / 2);
+			}
+		}
+
+		// the zipfian keys follow the number of keys as it grows
+		KeyChooser Z = KeyChooser.zipfian(0.5);
+		for (long count = 1; count < 5000; count += 7)
+		{
+			long k = Z.next(rnd, count);
+			assertTrue((k >= 0) && (k < count));
+		}
+
+		try {
+			KeyChooser.forName("normal");
+			fail("this should have failed");
+		} catch(RuntimeException E) { ; }
+		try {
+			KeyChooser.zipfian(1.0);
+			fail("this should have failed");
+		} catch(RuntimeException E) { ; }
+	}
+
+	@Test
+	public void testRun() throws Exception {
+
+		Workload W = new Workload( );
+		W.setThreads(3);
+		W.setRecords(5000);
+		W.setDuration(200, TimeUnit.MILLISECONDS);
+		W.setMix(20, 60, 10, 10);
+		W.setScanLength(20);
+		W.setKeyChooser(KeyChooser.latest());
+
+		BTree<Long,String> T = new BTree<Long,String>(16);
+		Workload.Report R = W.run(Workload.locked(T));
+		assertTrue(R.getOperations() > 0);
+		assertTrue(R.getThroughput() > 0);
+		assertTrue(R.getElapsed(TimeUnit.MILLISECONDS) >= 200);
+		for (Workload.Operation op : Workload.Operation.values())
+			assertTrue(R.getLatencies(op).getCount() > 0);
+		long inserts = R.getLatencies(Workload.Operation.INSERT).getCount();
+		long deletes = R.getLatencies(Workload.Operation.DELETE).getCount();
+		assertTrue(T.size() >= 5000 + inserts - deletes);
+		assertTrue(R.toString().contains("ops/s"));
+
+		W.setMix(10, 80, 0, 10);
+		W.setOrderedInserts(true);
+		W.setKeyChooser(KeyChooser.uniform());
+		ShardedBTree<Long,String> S = new ShardedBTree<Long,String>(16);
+		R = W.run(Workload.sharded(S));
+		assertEquals(5000 + R.getLatencies(Workload.Operation.INSERT).getCount(), S.size());
+		assertEquals(0, R.getLatencies(Workload.Operation.DELETE).getCount());
+
+		try {
+			W.setMix(0, 0, 0, 0);
+			fail("this should have failed");
+		} catch(RuntimeException E) { ; }
+	}
+
+	@Test
+	public void testFind() throws Exception {
+
+		// a missing key is a miss, found without an exception, on either target
+		BTree<Long,String> T = new BTree<Long,String>(16);
+		ShardedBTree<Long,String> S = new ShardedBTree<Long,String>(16);
+		Workload.Target[] targets = { Workload.locked(T), Workload.sharded(S) };
+		for (Workload.Target target : targets)
+		{
+			assertFalse(target.find(new Long(1)));
+			target.insert(new Long(1), "One");
+			assertTrue(target.find(new Long(1)));
+			assertFalse(target.find(new Long(2)));
+		}
+
+		// but a target that fails is not counted as missing - the run fails
+		Workload W = new Workload( );
+		W.setRecords(10);
+		W.setDuration(50, TimeUnit.MILLISECONDS);
+		W.setMix(0, 1, 0, 0);
+		final Workload.Target locked = Workload.locked(T);
+		try {
+			W.run(new Workload.Target() {
+				public void insert(Long key, String value) { locked.insert(key, value); }
+				public boolean find(Long key) { throw new IllegalStateException("broken"); }
+				public void delete(Long key) { locked.delete(key); }
+				public int scan(Long from, int max) { return locked.scan(from, max); }
+			});
+			fail("this should have failed");
+		} catch(IllegalStateException E) { ; }
+	}
+}